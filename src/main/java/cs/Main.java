@@ -1,27 +1,46 @@
 package cs;
 
-import com.esotericsoftware.kryo.Kryo;
-import com.esotericsoftware.kryo.io.Input;
-import com.esotericsoftware.kryo.io.Output;
-import com.esotericsoftware.kryo.util.DefaultInstantiatorStrategy;
 import cs.cose.ChangeDetection;
 import cs.cose.DeltagraphExtraction;
 import cs.cose.ShapesExtractor;
 import cs.cose.ShapesMerger;
 import cs.cose.encoders.ConcurrentStringEncoder;
+import cs.cose.encoders.EncodedTripleStream;
 import cs.cose.encoders.Encoder;
+import cs.cose.encoders.JenaNodeEncoder;
+import cs.cose.encoders.MappedStringEncoder;
+import cs.cose.encoders.PrefixCompressedStringEncoder;
+import cs.cose.encoders.TieredEncoder;
 import cs.utils.ConfigManager;
+import cs.utils.Constants;
+import cs.utils.DictionaryCompactor;
+import cs.utils.EncodedTripleFile;
+import cs.utils.ExternalSorter;
 import cs.utils.FilesUtil;
+import cs.utils.GraphFiles;
+import cs.utils.GraphInput;
+import cs.utils.GraphSession;
+import cs.utils.GraphUnion;
+import cs.utils.IntTripleStore;
+import cs.utils.LazyGroupedMap;
+import cs.utils.NTriplesScanner;
+import cs.utils.ObjectTypeJoin;
+import cs.utils.ParallelNTriplesLoader;
 import cs.utils.SHACLCleaner;
 import cs.utils.SHACLValidator;
+import cs.utils.StatsPartial;
 import cs.utils.StatsComputer;
+import cs.utils.StatsSnapshot;
+import cs.utils.SubjectOffsetIndex;
+import cs.utils.SubjectGroupedAggregator;
 import cs.utils.SupportConfidence;
+import cs.utils.TdbGraphStore;
 import cs.utils.Tuple3;
 import cs.utils.Utils;
+import org.apache.jena.graph.Node;
 import org.apache.jena.riot.Lang;
 import org.apache.jena.riot.RDFDataMgr;
 import org.apache.jena.riot.RDFParser;
-import org.apache.jena.riot.system.StreamRDFBase;
 import org.apache.jena.rdf.model.Model;
 import org.apache.jena.rdf.model.ModelFactory;
 import org.apache.jena.rdf.model.Resource;
@@ -32,12 +51,16 @@ import org.apache.jena.vocabulary.RDF;
 import org.eclipse.rdf4j.model.impl.LinkedHashModel;
 import org.eclipse.rdf4j.rio.RDFFormat;
 import org.eclipse.rdf4j.rio.Rio;
-import org.objenesis.strategy.StdInstantiatorStrategy;
 
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
 
 public class Main {
 
@@ -52,26 +75,26 @@ public class Main {
     public static int SAMPLE_SIZE;
     public static boolean useFullGraphs;
     public static boolean extractMaxCardConstraints = true;
-    private static final Encoder resourceEncoder = new ConcurrentStringEncoder();
-
-    public static final Map<Integer, Map<Integer, Set<Integer>>> classToPropWithObjTypes = new ConcurrentHashMap<>();
-    public static final Map<Tuple3<Integer, Integer, Integer>, SupportConfidence> sts = new ConcurrentHashMap<>();
-    public static final Map<Integer, Integer> classToEntityCount = new ConcurrentHashMap<>();
-    private static Model model = ModelFactory.createDefaultModel();
-    private static Kryo kryo;
-
-    static {
-        kryo = new Kryo();
-        kryo.register(HashMap.class);
-        kryo.register(ConcurrentHashMap.class);
-        kryo.register(ConcurrentHashMap.KeySetView.class);
-        kryo.register(ArrayList.class);
-        kryo.register(HashSet.class);
-        kryo.register(Tuple3.class);
-        kryo.register(SupportConfidence.class);
-        kryo.setInstantiatorStrategy(new DefaultInstantiatorStrategy(new StdInstantiatorStrategy()));
-        kryo.setRegistrationRequired(true);
-    }
+    private static Encoder resourceEncoder = new ConcurrentStringEncoder();
+    private static MappedStringEncoder termDictionary;
+    // Generation of termDictionary; a compaction writes the next one, which the snapshot names once it is rewritten.
+    private static long dictionaryGeneration;
+    // Generation replaced by a compaction in this run, deleted once the snapshot no longer refers to it; -1 if none.
+    private static long retiredDictionaryGeneration = -1;
+    private static JenaNodeEncoder nodeEncoder = new JenaNodeEncoder(resourceEncoder);
+
+    // Filled class by class on first access when loaded from a packed snapshot; plain concurrent maps otherwise. All
+    // three record the keys written since the last snapshot save, which is all the next save compares.
+    public static final Map<Integer, Map<Integer, Set<Integer>>> classToPropWithObjTypes = LazyGroupedMap.byKey();
+    public static final Map<Tuple3<Integer, Integer, Integer>, SupportConfidence> sts = LazyGroupedMap.byFirstComponent();
+    public static final Map<Integer, Integer> classToEntityCount = LazyGroupedMap.byKey();
+    private static final int ENCODE_BATCH_SIZE = 4096;
+    // Data graphs shared by the stages of this run; each file is parsed at most once.
+    private static final GraphSession graphs = new GraphSession((path, lang) -> lang == Lang.NTRIPLES ? loadGraph(path) : loadModel(path, lang));
+    // Subject offset indexes opened in this run, by graph file (subject_index=true).
+    private static final Map<String, SubjectOffsetIndex> subjectIndexes = new HashMap<>();
+    // Kryo snapshot of cpot, sts and cec at graphDataPath, with an optional delta log (snapshot_log=true).
+    private static StatsSnapshot statsSnapshot;
 
     public static void main(String[] args) {
         configPath = args[0];
@@ -95,6 +118,20 @@ public class Main {
             Model jenaShapesModel = RDFDataMgr.loadModel(originalShapePath, Lang.TURTLE);
             Utils.logRuntime(runtimeLogPath, "Load SHACL Shapes", calculateElapsedTime(startTime), calculateMemoryUsage(startMemory));
 
+            // The updated graph is read by the full-graph or validation stage and by delta extraction, the original
+            // graph only by delta extraction; stages that work from class-keyed stats, a subject index or the encoded
+            // triples skip it.
+            boolean updatedIndexed = usesSubjectIndex(datasetPath);
+            int updatedUses = updatedIndexed ? 0 : 1;
+            if (useFullGraphs ? !classKeyedStats() : !updatedIndexed && !validatesEncodedTargets(datasetPath, jenaShapesModel)) {
+                updatedUses++;
+            }
+            if (updatedUses > 0) {
+                graphs.expect(datasetPath, updatedUses);
+            }
+            if (!usesSubjectIndex(originalGraphPath)) {
+                graphs.expect(originalGraphPath, 1);
+            }
             if (useFullGraphs) {
                 processFullGraphs(runtimeLogPath, jenaShapesModel);
             } else {
@@ -108,20 +145,43 @@ public class Main {
         } catch (Exception e) {
             e.printStackTrace();
             System.err.println("Error encountered: " + e.getMessage());
+        } finally {
+            IOException snapshotFailure = awaitPendingSnapshots();
+            graphs.close();
+            closeSubjectIndexes();
+            if (snapshotFailure != null) {
+                throw new RuntimeException("Failed to save data structures: " + snapshotFailure.getMessage(), snapshotFailure);
+            }
         }
     }
 
     private static void processFullGraphs(String runtimeLogPath, Model jenaShapesModel) throws IOException {
         long startTime = System.nanoTime();
         long startMemory = getMemoryUsage();
-        Model updatedGraph = RDFDataMgr.loadModel(datasetPath, Lang.NTRIPLES);
-        Utils.logRuntime(runtimeLogPath, "Load Updated Full Graph", calculateElapsedTime(startTime), calculateMemoryUsage(startMemory));
+        Map<Integer, Map<Integer, Set<Integer>>> newCpot;
+        Map<Integer, Integer> newCec;
+        Map<Tuple3<Integer, Integer, Integer>, SupportConfidence> newSts;
+        if (classKeyedStats()) {
+            // The stored statistics are keyed by class, so the new ones are built by the same stats_mode pass instead
+            // of being extracted per subject from the model; ChangeDetection compares them key by key.
+            newCpot = new ConcurrentHashMap<>();
+            newCec = new ConcurrentHashMap<>();
+            newSts = new ConcurrentHashMap<>();
+            parseGraphStreaming(datasetPath, newCpot, newCec, newSts);
+            Utils.logRuntime(runtimeLogPath, "Parse Updated Full Graph", calculateElapsedTime(startTime), calculateMemoryUsage(startMemory));
+            startTime = System.nanoTime();
+            startMemory = getMemoryUsage();
+        } else {
+            Model updatedGraph = graphs.acquire(datasetPath, Lang.NTRIPLES);
+            Utils.logRuntime(runtimeLogPath, "Load Updated Full Graph", calculateElapsedTime(startTime), calculateMemoryUsage(startMemory));
 
-        startTime = System.nanoTime();
-        startMemory = getMemoryUsage();
-        Map<Integer, Map<Integer, Set<Integer>>> newCpot = extractGraphData(updatedGraph);
-        Map<Integer, Integer> newCec = extractEntityCount(updatedGraph);
-        Map<Tuple3<Integer, Integer, Integer>, SupportConfidence> newSts = extractSupportConfidence(updatedGraph);
+            startTime = System.nanoTime();
+            startMemory = getMemoryUsage();
+            newCpot = extractGraphData(updatedGraph);
+            newCec = extractEntityCount(updatedGraph);
+            newSts = extractSupportConfidence(updatedGraph);
+            graphs.release(datasetPath);
+        }
 
         String changesOutputPath = generateOutputFilePath("_changes.nt");
         ChangeDetection.detectChangesToFile(classToPropWithObjTypes, classToEntityCount, sts, newCpot, newCec, newSts, datasetPath, changesOutputPath);
@@ -164,11 +224,23 @@ public class Main {
         Model cleanedShapesModel = cleaner.cleanSHACLShapes(jenaShapesModel);
         AtomicInteger violationCount = new AtomicInteger(0);
         Set<Resource> visitedNodes = ConcurrentHashMap.newKeySet();
-        Model updatedGraph = RDFDataMgr.loadModel(datasetPath, Lang.NTRIPLES);
-        Model deltaGraph = ModelFactory.createDefaultModel();
-
-        List<ReportEntry> violations = validator.validateModel(updatedGraph, cleanedShapesModel);
-        validator.validateModelInParallelAndProcessDirectly(updatedGraph, Shapes.parse(cleanedShapesModel), violationCount, updatedGraph, deltaGraph, visitedNodes);
+        SubjectOffsetIndex updatedIndex = subjectIndex(datasetPath);
+        List<ReportEntry> violations;
+        if (updatedIndex != null) {
+            // The entities are enumerated and validated from the index, so the updated graph is not loaded.
+            violations = validator.validateIndexedEntities(updatedIndex, Shapes.parse(cleanedShapesModel));
+        } else if (validatesEncodedTargets(datasetPath, jenaShapesModel)) {
+            // Only the target classes' instances are read, through the block index of the encoded triples.
+            try (EncodedTripleFile updatedTriples = EncodedTripleFile.openOrConvert(datasetPath)) {
+                violations = validator.validateClassTargets(updatedTriples, cleanedShapesModel, Shapes.parse(cleanedShapesModel));
+            }
+        } else {
+            Model updatedGraph = graphs.acquire(datasetPath, Lang.NTRIPLES);
+            Model deltaGraph = ModelFactory.createDefaultModel();
+            violations = validator.validateModel(updatedGraph, cleanedShapesModel);
+            validator.validateModelInParallelAndProcessDirectly(updatedGraph, Shapes.parse(cleanedShapesModel), violationCount, updatedGraph, deltaGraph, visitedNodes);
+            graphs.release(datasetPath);
+        }
         Utils.logRuntime(runtimeLogPath, "Validate Incremental Changes", calculateElapsedTime(startTime), calculateMemoryUsage(startMemory));
 
         processDeltaGraph(runtimeLogPath, violations, jenaShapesModel, newCpot, newCec, newSts);
@@ -180,12 +252,28 @@ public class Main {
         long startTime = System.nanoTime();
         long startMemory = getMemoryUsage();
 
-        Model originalGraph = RDFDataMgr.loadModel(originalGraphPath, Lang.NTRIPLES);
+        // A graph with a subject index is read through it only; an empty model stands in for it.
+        SubjectOffsetIndex updatedIndex = subjectIndex(datasetPath);
+        SubjectOffsetIndex originalIndex = subjectIndex(originalGraphPath);
+        Model updatedGraph = updatedIndex != null ? ModelFactory.createDefaultModel() : graphs.acquire(datasetPath, Lang.NTRIPLES);
+        Model originalGraph = originalIndex != null ? ModelFactory.createDefaultModel() : graphs.acquire(originalGraphPath, Lang.NTRIPLES);
         // Use sampling parameters: alpha=0.15 and kmin=5000.
-        Model deltaGraph = DeltagraphExtraction.extractDeltaGraph(
-                RDFDataMgr.loadModel(datasetPath, Lang.NTRIPLES),
-                originalGraph, violations, jenaShapesModel,
-                SAMPLE_SIZE, 0.15, 5000, classToPropWithObjTypes, sts);
+        Model deltaGraph;
+        try (EncodedTripleFile updatedTriples = encodedTriples(datasetPath);
+             EncodedTripleFile originalTriples = encodedTriples(originalGraphPath)) {
+            deltaGraph = DeltagraphExtraction.extractDeltaGraph(
+                    updatedGraph,
+                    originalGraph, violations, jenaShapesModel,
+                    SAMPLE_SIZE, 0.15, 5000, classToPropWithObjTypes, sts,
+                    updatedIndex, originalIndex, updatedTriples, originalTriples);
+        }
+        String namespace = Utils.extractNamespaceFromModel(originalIndex != null ? firstEntity(originalIndex) : originalGraph);
+        if (updatedIndex == null) {
+            graphs.release(datasetPath);
+        }
+        if (originalIndex == null) {
+            graphs.release(originalGraphPath);
+        }
 
         System.out.println("Triples in Delta Graph: " + deltaGraph.size());
 
@@ -193,10 +281,11 @@ public class Main {
         Utils.saveModelToFile(deltaGraph, deltaGraphOutputPath, Lang.NTRIPLES);
         Utils.logRuntime(runtimeLogPath, "Generate Delta Graph", calculateElapsedTime(startTime), calculateMemoryUsage(startMemory));
 
-        postDeltaGraphProcessing(runtimeLogPath, deltaGraph, newSts);
+        postDeltaGraphProcessing(runtimeLogPath, deltaGraph, newSts, namespace);
     }
 
-    private static void postDeltaGraphProcessing(String runtimeLogPath, Model deltaGraph, Map<Tuple3<Integer, Integer, Integer>, SupportConfidence> newSts) throws IOException {
+    private static void postDeltaGraphProcessing(String runtimeLogPath, Model deltaGraph, Map<Tuple3<Integer, Integer, Integer>, SupportConfidence> newSts,
+                                                 String namespace) throws IOException {
         long startTime = System.nanoTime();
         long startMemory = getMemoryUsage();
         StatsComputer statsComputer = new StatsComputer();
@@ -205,9 +294,7 @@ public class Main {
 
         startTime = System.nanoTime();
         startMemory = getMemoryUsage();
-        Encoder encoder = new ConcurrentStringEncoder();
-        String namespace = Utils.extractNamespaceFromGraph(originalGraphPath);
-        ShapesExtractor shapesExtractor = new ShapesExtractor(encoder, sts, classToEntityCount, classToPropWithObjTypes, namespace);
+        ShapesExtractor shapesExtractor = new ShapesExtractor(resourceEncoder, sts, classToEntityCount, classToPropWithObjTypes, namespace);
         shapesExtractor.generateAndSaveShapes(true, 0.5, 10);
         // Convert the RDF4J model (from ShapesExtractor) to a Jena model.
         Model extractedShapes = convertRDF4JToJena(shapesExtractor.getGeneratedShapesModel());
@@ -336,48 +423,111 @@ public class Main {
         return new Tuple3<>(subject, predicate, object);
     }
 
+    // stats_mode=subject_grouped and type_resolved key cpot, sts and cec by rdf:type class rather than by subject.
+    public static boolean classKeyedStats() {
+        String statsMode = ConfigManager.getProperty("stats_mode");
+        return "subject_grouped".equalsIgnoreCase(statsMode) || "type_resolved".equalsIgnoreCase(statsMode);
+    }
+
+    // stats_mode=type_resolved also types IRI objects by their classes instead of as undefined.
+    public static boolean objectTypesResolved() {
+        return "type_resolved".equalsIgnoreCase(ConfigManager.getProperty("stats_mode"));
+    }
+
     private static Map<Integer, Map<Integer, Set<Integer>>> extractGraphData(Model graph) {
         Map<Integer, Map<Integer, Set<Integer>>> cpot = new ConcurrentHashMap<>();
-        graph.listStatements().forEachRemaining(stmt -> {
-            Resource subject = stmt.getSubject();
-            org.apache.jena.rdf.model.Property predicate = stmt.getPredicate();
-            org.apache.jena.rdf.model.RDFNode object = stmt.getObject();
-            int classId = encodeResource(subject);
-            int predicateId = encodeResource(predicate);
-            int objectTypeId = object.isResource() ? encodeResource(object.asResource()) : encodeLiteralType(object);
-            cpot.computeIfAbsent(classId, k -> new ConcurrentHashMap<>())
-                    .computeIfAbsent(predicateId, k -> ConcurrentHashMap.newKeySet())
-                    .add(objectTypeId);
+        encodeInBatches(graph.listStatements(), encoded -> {
+            for (int i = 0; i < encoded.length; i += 3) {
+                cpot.computeIfAbsent(encoded[i], k -> new ConcurrentHashMap<>())
+                        .computeIfAbsent(encoded[i + 1], k -> ConcurrentHashMap.newKeySet())
+                        .add(encoded[i + 2]);
+            }
         });
         return cpot;
     }
 
     private static Map<Integer, Integer> extractEntityCount(Model graph) {
         Map<Integer, Integer> entityCount = new ConcurrentHashMap<>();
-        graph.listStatements(null, RDF.type, (org.apache.jena.rdf.model.RDFNode) null).forEachRemaining(stmt -> {
-            Resource subject = stmt.getSubject();
-            Resource classType = stmt.getObject().asResource();
-            int classId = encodeResource(classType);
-            entityCount.merge(classId, 1, Integer::sum);
+        encodeInBatches(graph.listStatements(null, RDF.type, (org.apache.jena.rdf.model.RDFNode) null), encoded -> {
+            for (int i = 0; i < encoded.length; i += 3) {
+                entityCount.merge(encoded[i + 2], 1, Integer::sum);
+            }
         });
         return entityCount;
     }
 
     private static Map<Tuple3<Integer, Integer, Integer>, SupportConfidence> extractSupportConfidence(Model graph) {
         Map<Tuple3<Integer, Integer, Integer>, SupportConfidence> sts = new ConcurrentHashMap<>();
-        graph.listStatements().forEachRemaining(stmt -> {
-            Resource subject = stmt.getSubject();
-            org.apache.jena.rdf.model.Property predicate = stmt.getPredicate();
-            org.apache.jena.rdf.model.RDFNode object = stmt.getObject();
-            int classId = encodeResource(subject);
-            int predicateId = encodeResource(predicate);
-            int objectTypeId = object.isResource() ? encodeResource(object.asResource()) : encodeLiteralType(object);
-            Tuple3<Integer, Integer, Integer> triplet = new Tuple3<>(classId, predicateId, objectTypeId);
-            sts.computeIfAbsent(triplet, k -> new SupportConfidence()).incrementSupport();
+        encodeInBatches(graph.listStatements(), encoded -> {
+            for (int i = 0; i < encoded.length; i += 3) {
+                Tuple3<Integer, Integer, Integer> triplet = new Tuple3<>(encoded[i], encoded[i + 1], encoded[i + 2]);
+                sts.computeIfAbsent(triplet, k -> new SupportConfidence()).incrementSupport();
+            }
         });
         return sts;
     }
 
+    // Feeds the statements through encodeStatements in batches of ENCODE_BATCH_SIZE.
+    private static void encodeInBatches(Iterator<Statement> statements, Consumer<int[]> consumer) {
+        List<Statement> batch = new ArrayList<>(ENCODE_BATCH_SIZE);
+        while (statements.hasNext()) {
+            batch.add(statements.next());
+            if (batch.size() == ENCODE_BATCH_SIZE) {
+                consumer.accept(encodeStatements(batch));
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            consumer.accept(encodeStatements(batch));
+        }
+    }
+
+    // Encodes statements as consecutive [subjectId, predicateId, objectTypeId] ints. Schema terms (predicates,
+    // rdf:type objects, datatypes) go to the encoder as one batch, so the repeated ones hit its per-thread cache.
+    public static int[] encodeStatements(List<Statement> stmts) {
+        int n = stmts.size();
+        CharSequence[] schemaTerms = new CharSequence[2 * n];
+        CharSequence[] instanceTerms = new CharSequence[2 * n];
+        for (int i = 0; i < n; i++) {
+            Statement stmt = stmts.get(i);
+            org.apache.jena.rdf.model.RDFNode object = stmt.getObject();
+            instanceTerms[2 * i] = stmt.getSubject().getURI();
+            schemaTerms[2 * i] = stmt.getPredicate().getURI();
+            if (object.isLiteral()) {
+                schemaTerms[2 * i + 1] = object.asLiteral().getDatatypeURI();
+            } else if (RDF.type.equals(stmt.getPredicate())) {
+                schemaTerms[2 * i + 1] = object.asResource().getURI();
+            } else {
+                instanceTerms[2 * i + 1] = object.asResource().getURI();
+            }
+        }
+        int[] schemaIds = resourceEncoder.encode(schemaTerms);
+        int[] instanceIds = encodeInstances(instanceTerms);
+        int[] encoded = new int[3 * n];
+        for (int i = 0; i < n; i++) {
+            encoded[3 * i] = instanceIds[2 * i];
+            encoded[3 * i + 1] = schemaIds[2 * i];
+            encoded[3 * i + 2] = instanceTerms[2 * i + 1] != null ? instanceIds[2 * i + 1] : schemaIds[2 * i + 1];
+        }
+        return encoded;
+    }
+
+    public static int[] encodeSchemaTerms(CharSequence[] terms) {
+        return resourceEncoder.encode(terms);
+    }
+
+    // Entity IRIs rarely repeat within a batch, so they bypass the term cache instead of evicting schema terms from it.
+    private static int[] encodeInstances(CharSequence[] iris) {
+        if (resourceEncoder instanceof TieredEncoder) {
+            return ((TieredEncoder) resourceEncoder).encodeInstances(iris);
+        }
+        int[] ids = new int[iris.length];
+        for (int i = 0; i < iris.length; i++) {
+            ids[i] = iris[i] == null ? -1 : resourceEncoder.encode(iris[i].toString());
+        }
+        return ids;
+    }
+
     public static int encodeResource(Resource resource) {
         if (resource == null || resource.getURI() == null) {
             throw new IllegalArgumentException("Resource URI cannot be null.");
@@ -385,6 +535,17 @@ public class Main {
         return resourceEncoder.encode(resource.getURI());
     }
 
+    // Entity IRIs never need decoding, so with tiered_dictionary=true they are fingerprinted instead of interned.
+    public static int encodeInstance(Resource resource) {
+        if (resource == null || resource.getURI() == null) {
+            return -1;
+        }
+        if (resourceEncoder instanceof TieredEncoder) {
+            return ((TieredEncoder) resourceEncoder).encodeInstance(resource.getURI());
+        }
+        return resourceEncoder.encode(resource.getURI());
+    }
+
     public static int encodeLiteralType(org.apache.jena.rdf.model.RDFNode literalNode) {
         if (!literalNode.isLiteral()) {
             throw new IllegalArgumentException("Node is not a literal.");
@@ -398,9 +559,135 @@ public class Main {
         return RDFDataMgr.loadModel(filePath, lang);
     }
 
+    // N-Triples graphs; with graph_storage=tdb2 they are opened from an on-disk TDB2 database, with
+    // graph_storage=int_store they are served from an IntTripleStore over the encoded copy, and with
+    // binary_triples=true they are built from the encoded copy next to the file. A directory or glob of part files is
+    // loaded file by file on parse_threads threads: heap models are merged into one, while with tdb2 or int_store
+    // every file keeps its own store and the graph is a union view over them.
+    private static Model loadGraph(String graphPath) {
+        List<String> files = GraphFiles.resolve(graphPath);
+        if (files.size() == 1) {
+            return loadGraphFile(files.get(0));
+        }
+        String storage = ConfigManager.getProperty("graph_storage");
+        if ("tdb2".equalsIgnoreCase(storage) || "int_store".equalsIgnoreCase(storage) || useBinaryTriples()) {
+            List<org.apache.jena.graph.Graph> parts = GraphFiles.forEachFile(files, parseThreads(), file -> loadGraphFile(file).getGraph());
+            return ModelFactory.createModelForGraph(new GraphUnion(parts));
+        }
+        List<Model> parts = GraphFiles.forEachFile(files, parseThreads(), Main::loadGraphFile);
+        Model model = parts.get(0);
+        for (int i = 1; i < parts.size(); i++) {
+            model.add(parts.get(i));
+            parts.get(i).close();
+        }
+        System.out.println("Loaded " + files.size() + " files of " + graphPath + " (" + model.size() + " triples).");
+        return model;
+    }
+
+    private static Model loadGraphFile(String graphPath) {
+        String storage = ConfigManager.getProperty("graph_storage");
+        if ("tdb2".equalsIgnoreCase(storage)) {
+            return TdbGraphStore.open(graphPath, ConfigManager.getProperty("tdb2_directory"));
+        }
+        // binary_triples serves the graph from the encoded records too, rather than decoding them into a heap Model.
+        if ("int_store".equalsIgnoreCase(storage) || useBinaryTriples()) {
+            try {
+                // The encoded file stays open as the dictionary of the graph and is closed with it.
+                EncodedTripleFile triples = EncodedTripleFile.openOrConvert(graphPath);
+                return ModelFactory.createModelForGraph(IntTripleStore.load(triples).asGraph(triples));
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to load encoded triples for " + graphPath + ": " + e.getMessage(), e);
+            }
+        }
+        Model model = ModelFactory.createDefaultModel();
+        try (InputStream in = GraphInput.open(graphPath)) {
+            RDFParser.source(in).lang(Lang.NTRIPLES).parse(model.getGraph());
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read " + graphPath + ": " + e.getMessage(), e);
+        }
+        return model;
+    }
+
+    // With subject_index=true, entity triples are copied into the delta graph from <file>.subjects offsets into the
+    // N-Triples file instead of from the loaded graph; returns null otherwise.
+    private static SubjectOffsetIndex subjectIndex(String graphPath) {
+        if (!usesSubjectIndex(graphPath)) {
+            return null;
+        }
+        return subjectIndexes.computeIfAbsent(graphPath, path -> {
+            try {
+                return SubjectOffsetIndex.openOrBuild(path);
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to open subject index for " + path + ": " + e.getMessage(), e);
+            }
+        });
+    }
+
+    // True if the file is read through a subject index rather than loaded.
+    private static boolean usesSubjectIndex(String graphPath) {
+        if (!Boolean.parseBoolean(ConfigManager.getProperty("subject_index"))) {
+            return false;
+        }
+        if (GraphInput.isCompressed(graphPath) || GraphFiles.isMultiFile(graphPath)) {
+            System.err.println("subject_index needs a single uncompressed file, ignoring it for " + graphPath);
+            return false;
+        }
+        return true;
+    }
+
+    // Triples of the first IRI subject of an indexed file, enough to guess its namespace.
+    private static Model firstEntity(SubjectOffsetIndex index) {
+        Model model = ModelFactory.createDefaultModel();
+        for (long run = 0; run < index.size() && model.isEmpty(); run++) {
+            Node subject = index.subjectAt(run);
+            if (subject != null) {
+                index.triplesOf(subject).forEach(model.getGraph()::add);
+            }
+        }
+        return model;
+    }
+
+    private static void closeSubjectIndexes() {
+        for (SubjectOffsetIndex index : subjectIndexes.values()) {
+            try {
+                index.close();
+            } catch (IOException e) {
+                System.err.println("Could not close subject index: " + e.getMessage());
+            }
+        }
+        subjectIndexes.clear();
+    }
+
+    // The encoded copy of a single-file graph with binary_triples=true, null otherwise.
+    private static EncodedTripleFile encodedTriples(String graphPath) throws IOException {
+        return useBinaryTriples() && !GraphFiles.isMultiFile(graphPath) ? EncodedTripleFile.openOrConvert(graphPath) : null;
+    }
+
+    // True if the validation stage reads the graph's encoded triples: every shape then targets classes only, so the
+    // focus nodes are found through the blocks' class blooms instead of loading the graph.
+    private static boolean validatesEncodedTargets(String graphPath, Model shapesModel) {
+        return useBinaryTriples() && !GraphFiles.isMultiFile(graphPath) && SHACLValidator.classTargetsOnly(shapesModel);
+    }
+
+    // binary_triples=true converts every N-Triples input once into <file>.triples (see EncodedTripleFile) and
+    // reads that copy afterwards.
+    private static boolean useBinaryTriples() {
+        return Boolean.parseBoolean(ConfigManager.getProperty("binary_triples"));
+    }
+
     private static boolean initializeDataStructures(String originalGraphPath, String runtimeLogPath) {
-        File kryoFile = new File(graphDataPath);
-        if (kryoFile.exists()) {
+        String ratioProperty = ConfigManager.getProperty("snapshot_compaction_ratio");
+        statsSnapshot = new StatsSnapshot(graphDataPath, Boolean.parseBoolean(ConfigManager.getProperty("snapshot_log")),
+                ratioProperty == null || ratioProperty.isEmpty() ? 0.5 : Double.parseDouble(ratioProperty),
+                "packed".equalsIgnoreCase(ConfigManager.getProperty("snapshot_format")),
+                Boolean.parseBoolean(ConfigManager.getProperty("snapshot_verify")));
+        try {
+            dictionaryGeneration = statsSnapshot.dictionaryGeneration();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read " + graphDataPath + ": " + e.getMessage(), e);
+        }
+        openTermDictionary(statsSnapshot.exists());
+        if (statsSnapshot.exists()) {
             System.out.println("Loading data structures from " + graphDataPath + "...");
             try {
                 loadDataStructures();
@@ -415,47 +702,233 @@ public class Main {
         }
     }
 
+    // The term dictionary lives next to the Kryo snapshot, so the ids stored in it stay decodable across runs. The
+    // snapshot names the generation its ids refer to; the one before it is only left over if a run stopped between
+    // writing the renumbered snapshot and deleting the old dictionary.
+    private static void openTermDictionary(boolean snapshotExists) {
+        String dictionaryPath = getDictionaryPath(dictionaryGeneration);
+        try {
+            termDictionary = MappedStringEncoder.open(dictionaryPath, dictionaryOverlayFactory());
+            if (dictionaryGeneration > 0) {
+                MappedStringEncoder.delete(getDictionaryPath(dictionaryGeneration - 1));
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to open term dictionary: " + e.getMessage(), e);
+        }
+        if (snapshotExists && termDictionary.size() == 0) {
+            System.err.println("No term dictionary found at " + dictionaryPath + "; ids in " + graphDataPath + " cannot be decoded.");
+        }
+        installResourceEncoder();
+    }
+
+    // dictionary_mode=prefix keeps new terms namespace-compressed instead of as full strings.
+    private static IntFunction<Encoder> dictionaryOverlayFactory() {
+        boolean prefixCompressed = "prefix".equalsIgnoreCase(ConfigManager.getProperty("dictionary_mode"));
+        return prefixCompressed ? PrefixCompressedStringEncoder::new : ConcurrentStringEncoder::new;
+    }
+
+    private static void installResourceEncoder() {
+        resourceEncoder = Boolean.parseBoolean(ConfigManager.getProperty("tiered_dictionary"))
+                ? new TieredEncoder(termDictionary)
+                : termDictionary;
+        nodeEncoder = new JenaNodeEncoder(resourceEncoder);
+    }
+
+    // With dictionary_compaction_ratio set, terms no longer referenced by cpot, sts or cec are dropped once they
+    // make up at least that fraction of the dictionary, and the remaining ids are renumbered densely in all three.
+    // The compacted dictionary is written as the next generation next to the current one. Returns true if the ids
+    // were renumbered.
+    private static boolean compactTermDictionaryIfNeeded() {
+        String ratioProperty = ConfigManager.getProperty("dictionary_compaction_ratio");
+        if (ratioProperty == null || ratioProperty.isEmpty() || termDictionary.size() == 0) {
+            return false;
+        }
+        int size = termDictionary.size();
+        BitSet referenced = DictionaryCompactor.referencedIds(classToPropWithObjTypes, sts, classToEntityCount);
+        int unreferenced = size - referenced.cardinality();
+        if ((double) unreferenced / size < Double.parseDouble(ratioProperty)) {
+            return false;
+        }
+        int[] remap = new int[size];
+        try {
+            termDictionary = termDictionary.compact(referenced, remap, getDictionaryPath(dictionaryGeneration + 1), dictionaryOverlayFactory());
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to compact term dictionary: " + e.getMessage(), e);
+        }
+        retiredDictionaryGeneration = dictionaryGeneration;
+        dictionaryGeneration++;
+        DictionaryCompactor.remapStats(remap, classToPropWithObjTypes, sts, classToEntityCount);
+        installResourceEncoder();
+        System.out.println("Dropped " + unreferenced + " unreferenced dictionary terms.");
+        return true;
+    }
+
+    // Generation 0 is <name>.dict, later ones <name>.dict.<generation>.
+    private static String getDictionaryPath(long generation) {
+        String path = graphDataPath.substring(0, graphDataPath.length() - ".kryo".length()) + ".dict";
+        return generation == 0 ? path : path + "." + generation;
+    }
+
     private static void parseGraphStreaming(String graphPath, Map<Integer, Map<Integer, Set<Integer>>> targetCpot,
                                             Map<Integer, Integer> targetCec, Map<Tuple3<Integer, Integer, Integer>, SupportConfidence> targetSts) {
-        RDFParser.source(graphPath).lang(Lang.NTRIPLES).parse(new StreamRDFBase() {
-            @Override
-            public void triple(org.apache.jena.graph.Triple triple) {
-                try {
-                    Resource subject = triple.getSubject().isURI() ? model.createResource(triple.getSubject().getURI()) : model.createResource();
-                    org.apache.jena.rdf.model.Property predicate = triple.getPredicate().isURI() ? model.createProperty(triple.getPredicate().getURI()) : null;
-                    org.apache.jena.rdf.model.RDFNode object = triple.getObject().isURI() ? model.createResource(triple.getObject().getURI()) : model.createLiteral(triple.getObject().toString());
-                    if (subject != null && predicate != null) {
-                        Statement stmt = model.createStatement(subject, predicate, object);
-                        model.add(stmt);
-                        int classId = encodeNode(subject);
-                        int predicateId = encodeNode(predicate);
-                        int objectTypeId = encodeNode(object);
-                        targetCpot.computeIfAbsent(classId, k -> new ConcurrentHashMap<>())
-                                .computeIfAbsent(predicateId, k -> ConcurrentHashMap.newKeySet())
-                                .add(objectTypeId);
-                        Tuple3<Integer, Integer, Integer> triplet = new Tuple3<>(classId, predicateId, objectTypeId);
-                        targetSts.computeIfAbsent(triplet, k -> new SupportConfidence()).incrementSupport();
-                        targetCec.merge(classId, 1, Integer::sum);
-                    }
-                } catch (IllegalArgumentException e) {
-                    // Skip malformed triples.
-                }
+        // sort_input=subject sorts the graph on disk first, e.g. to give stats_mode=subject_grouped exact counts on
+        // unsorted dumps. The sorted copy lives in the spill directory and is removed afterwards. Part files are
+        // sorted together into one copy. No stats mode gains from another order (subject_grouped would split every
+        // subject's triples), so other values are rejected.
+        String sortInput = ConfigManager.getProperty("sort_input");
+        if (sortInput == null || sortInput.isEmpty()) {
+            parseGraphFiles(graphPath, targetCpot, targetCec, targetSts);
+            return;
+        }
+        if (!"subject".equalsIgnoreCase(sortInput.trim())) {
+            throw new IllegalArgumentException("Unsupported sort_input=" + sortInput + ": statistics can only use input sorted by subject.");
+        }
+        Path sorted = sortGraph(graphPath, ExternalSorter.BY_SUBJECT);
+        try {
+            parseGraphFile(sorted.toString(), parseThreads(), targetCpot, targetCec, targetSts);
+        } finally {
+            try {
+                Files.deleteIfExists(sorted);
+            } catch (IOException e) {
+                System.err.println("Could not delete sorted copy " + sorted + ": " + e.getMessage());
             }
-        });
+        }
     }
 
-    private static int encodeNode(Resource node) {
-        if (node != null && node.getURI() != null) {
-            return resourceEncoder.encode(node.getURI());
+    // Sorts an N-Triples file into the spill directory (sort_spill_directory, default: the system temp directory)
+    // using sort_memory_mb of heap (default: a quarter of the max heap) and merging sort_fan_in runs at a time.
+    public static Path sortGraph(String graphPath, ExternalSorter.KeyExtractor key) {
+        String memoryProperty = ConfigManager.getProperty("sort_memory_mb");
+        String fanInProperty = ConfigManager.getProperty("sort_fan_in");
+        long memoryBudget = memoryProperty != null && !memoryProperty.isEmpty()
+                ? Long.parseLong(memoryProperty.trim()) << 20
+                : Runtime.getRuntime().maxMemory() / 4;
+        Path spillDirectory = spillDirectory();
+        int fanIn = fanInProperty != null && !fanInProperty.isEmpty() ? Integer.parseInt(fanInProperty.trim()) : 64;
+        try {
+            Files.createDirectories(spillDirectory);
+            Path sorted = Files.createTempFile(spillDirectory, FilesUtil.getFileName(graphPath), ".sorted.nt");
+            List<Path> inputs = new ArrayList<>();
+            for (String file : GraphFiles.resolve(graphPath)) {
+                inputs.add(Paths.get(file));
+            }
+            new ExternalSorter(memoryBudget, spillDirectory, fanIn, parseThreads()).sort(inputs, sorted, key);
+            return sorted;
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to sort " + graphPath + ": " + e.getMessage(), e);
         }
-        return -1;
     }
 
-    private static int encodeNode(org.apache.jena.rdf.model.RDFNode node) {
-        if (node.isResource()) {
-            return encodeNode(node.asResource());
-        } else {
-            return encodeLiteralType(node);
+    private static Path spillDirectory() {
+        String spillProperty = ConfigManager.getProperty("sort_spill_directory");
+        return Paths.get(spillProperty != null && !spillProperty.isEmpty() ? spillProperty.trim() : System.getProperty("java.io.tmpdir"));
+    }
+
+    // Part files are parsed concurrently, parse_threads split between them, each into statistics of its own that are
+    // merged into the targets once all files are done. Class counts are summed across files, so with
+    // stats_mode=subject_grouped the triples of a subject should not be spread over several files (or use sort_input).
+    // stats_mode=type_resolved joins all files at once, since the types of objects may be in other files.
+    private static void parseGraphFiles(String graphPath, Map<Integer, Map<Integer, Set<Integer>>> targetCpot,
+                                        Map<Integer, Integer> targetCec, Map<Tuple3<Integer, Integer, Integer>, SupportConfidence> targetSts) {
+        List<String> files = GraphFiles.resolve(graphPath);
+        if (files.size() == 1 || "type_resolved".equalsIgnoreCase(ConfigManager.getProperty("stats_mode"))) {
+            parseGraphFile(files.size() == 1 ? files.get(0) : graphPath, parseThreads(), targetCpot, targetCec, targetSts);
+            return;
+        }
+        int concurrentFiles = Math.min(parseThreads(), files.size());
+        int threadsPerFile = Math.max(1, parseThreads() / concurrentFiles);
+        List<Tuple3<Map<Integer, Map<Integer, Set<Integer>>>, Map<Integer, Integer>, Map<Tuple3<Integer, Integer, Integer>, SupportConfidence>>> partials =
+                GraphFiles.forEachFile(files, concurrentFiles, file -> {
+                    Map<Integer, Map<Integer, Set<Integer>>> partialCpot = new ConcurrentHashMap<>();
+                    Map<Integer, Integer> partialCec = new ConcurrentHashMap<>();
+                    Map<Tuple3<Integer, Integer, Integer>, SupportConfidence> partialSts = new ConcurrentHashMap<>();
+                    parseGraphFile(file, threadsPerFile, partialCpot, partialCec, partialSts);
+                    return new Tuple3<>(partialCpot, partialCec, partialSts);
+                });
+        for (Tuple3<Map<Integer, Map<Integer, Set<Integer>>>, Map<Integer, Integer>, Map<Tuple3<Integer, Integer, Integer>, SupportConfidence>> partial : partials) {
+            StatsPartial.merge(partial._1(), partial._2(), partial._3(), targetCpot, targetCec, targetSts);
+        }
+        System.out.println("Parsed " + files.size() + " files of " + graphPath + ", " + concurrentFiles + " at a time.");
+    }
+
+    private static void parseGraphFile(String graphPath, int threads, Map<Integer, Map<Integer, Set<Integer>>> targetCpot,
+                                       Map<Integer, Integer> targetCec, Map<Tuple3<Integer, Integer, Integer>, SupportConfidence> targetSts) {
+        // stats_mode=subject_grouped keys the statistics by rdf:type class and counts distinct entities; it expects the
+        // triples of a subject to be adjacent and reads the file in a single sequential pass.
+        if ("subject_grouped".equalsIgnoreCase(ConfigManager.getProperty("stats_mode"))) {
+            String bufferProperty = ConfigManager.getProperty("subject_buffer_size");
+            int maxPairs = bufferProperty != null && !bufferProperty.isEmpty() ? Integer.parseInt(bufferProperty.trim()) : 1 << 16;
+            SubjectGroupedAggregator aggregator = new SubjectGroupedAggregator(targetCpot, targetCec, targetSts, maxPairs);
+            try (InputStream in = GraphInput.open(graphPath)) {
+                RDFParser.source(in).lang(Lang.NTRIPLES).parse(aggregator.stream(nodeEncoder, resourceEncoder.encode(Constants.OBJECT_UNDEFINED_TYPE)));
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to read " + graphPath + ": " + e.getMessage(), e);
+            }
+            return;
+        }
+        // stats_mode=type_resolved also keys the statistics by class, and resolves IRI objects to their classes with an
+        // out-of-core partitioned join (join_partitions files per spill, in the spill directory).
+        if ("type_resolved".equalsIgnoreCase(ConfigManager.getProperty("stats_mode"))) {
+            String partitionsProperty = ConfigManager.getProperty("join_partitions");
+            int partitions = partitionsProperty != null && !partitionsProperty.isEmpty() ? Integer.parseInt(partitionsProperty.trim()) : 64;
+            new ObjectTypeJoin(nodeEncoder, resourceEncoder.encode(Constants.OBJECT_UNDEFINED_TYPE), spillDirectory(), partitions, threads)
+                    .run(graphPath, targetCpot, targetCec, targetSts);
+            return;
+        }
+        // parse_mode=parallel splits the file into newline-aligned ranges parsed on parse_threads threads (default: all
+        // cores); parse_mode=scanner does the same with the byte-level scanner instead of Jena's parser. The scanner
+        // reads a memory-mapped file, so compressed input falls back to the parallel parser.
+        String parseMode = ConfigManager.getProperty("parse_mode");
+        if ("scanner".equalsIgnoreCase(parseMode) && GraphInput.isCompressed(graphPath)) {
+            System.err.println("parse_mode=scanner needs an uncompressed file, parsing " + graphPath + " with parse_mode=parallel");
+            parseMode = "parallel";
+        }
+        if ("parallel".equalsIgnoreCase(parseMode)) {
+            new ParallelNTriplesLoader(nodeEncoder, threads, ENCODE_BATCH_SIZE).load(graphPath, targetCpot, targetCec, targetSts);
+            return;
+        }
+        if ("scanner".equalsIgnoreCase(parseMode)) {
+            new NTriplesScanner(resourceEncoder, threads).scan(graphPath, targetCpot, targetCec, targetSts);
+            return;
+        }
+        if (useBinaryTriples()) {
+            try (EncodedTripleFile triples = EncodedTripleFile.openOrConvert(graphPath)) {
+                triples.encodeInto(resourceEncoder, ENCODE_BATCH_SIZE, encoded -> aggregateEncoded(encoded, targetCpot, targetCec, targetSts));
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to read encoded triples for " + graphPath + ": " + e.getMessage(), e);
+            }
+            return;
+        }
+        // Triples are encoded straight from the parser's Nodes and dropped once aggregated: only cpot, cec, sts and
+        // the dictionary outlive the parse. These stats are keyed by subject, so they still grow with the number of
+        // entities; the stats_modes above key them by class instead.
+        try (InputStream in = GraphInput.open(graphPath)) {
+            RDFParser.source(in).lang(Lang.NTRIPLES).parse(new EncodedTripleStream(nodeEncoder, ENCODE_BATCH_SIZE,
+                    encoded -> aggregateEncoded(encoded, targetCpot, targetCec, targetSts)));
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read " + graphPath + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static int parseThreads() {
+        String threadsProperty = ConfigManager.getProperty("parse_threads");
+        return threadsProperty != null && !threadsProperty.isEmpty()
+                ? Integer.parseInt(threadsProperty.trim())
+                : Runtime.getRuntime().availableProcessors();
+    }
+
+    private static void aggregateEncoded(int[] encoded, Map<Integer, Map<Integer, Set<Integer>>> targetCpot,
+                                         Map<Integer, Integer> targetCec, Map<Tuple3<Integer, Integer, Integer>, SupportConfidence> targetSts) {
+        for (int i = 0; i < encoded.length; i += 3) {
+            int classId = encoded[i];
+            int predicateId = encoded[i + 1];
+            int objectTypeId = encoded[i + 2];
+            targetCpot.computeIfAbsent(classId, k -> new ConcurrentHashMap<>())
+                    .computeIfAbsent(predicateId, k -> ConcurrentHashMap.newKeySet())
+                    .add(objectTypeId);
+            Tuple3<Integer, Integer, Integer> triplet = new Tuple3<>(classId, predicateId, objectTypeId);
+            targetSts.computeIfAbsent(triplet, k -> new SupportConfidence()).incrementSupport();
+            targetCec.merge(classId, 1, Integer::sum);
         }
     }
 
@@ -469,27 +942,8 @@ public class Main {
 
     private static void loadDataStructures() throws IOException {
         System.out.println("Loading data structures from Kryo file...");
-        try (Input input = new Input(new BufferedInputStream(new FileInputStream(graphDataPath)))) {
-            kryo.register(HashMap.class);
-            kryo.register(ConcurrentHashMap.class);
-            kryo.register(HashSet.class);
-            kryo.register(Tuple3.class);
-            kryo.register(SupportConfidence.class);
-            Map<Integer, Map<Integer, Set<Integer>>> serializedCpot = kryo.readObject(input, HashMap.class);
-            Map<Tuple3<Integer, Integer, Integer>, SupportConfidence> loadedSts = kryo.readObject(input, HashMap.class);
-            Map<Integer, Integer> loadedCec = kryo.readObject(input, HashMap.class);
-            System.out.println("Deserialized data structures: " + serializedCpot.size() + " " + loadedSts.size() + " " + loadedCec.size());
-            serializedCpot.forEach((key, value) -> {
-                Map<Integer, Set<Integer>> concurrentValue = new ConcurrentHashMap<>();
-                value.forEach((k, v) -> {
-                    Set<Integer> keySetView = ConcurrentHashMap.newKeySet();
-                    keySetView.addAll(v);
-                    concurrentValue.put(k, keySetView);
-                });
-                classToPropWithObjTypes.put(key, concurrentValue);
-            });
-            sts.putAll(loadedSts);
-            classToEntityCount.putAll(loadedCec);
+        try {
+            statsSnapshot.load(classToPropWithObjTypes, sts, classToEntityCount);
             System.out.println("Data structures loaded successfully.");
         } catch (IOException e) {
             System.err.println("IOException: Unable to read Kryo file. Details: " + e.getMessage());
@@ -499,27 +953,44 @@ public class Main {
 
     private static void saveDataStructures() {
         System.out.println("Saving updated data structures to " + graphDataPath + "...");
-        try (Output output = new Output(new BufferedOutputStream(new FileOutputStream(graphDataPath)))) {
-            kryo.register(HashMap.class);
-            kryo.register(ConcurrentHashMap.class);
-            kryo.register(HashSet.class);
-            kryo.register(Tuple3.class);
-            kryo.register(SupportConfidence.class);
-            Map<Integer, Map<Integer, Set<Integer>>> serializableCpot = new HashMap<>();
-            classToPropWithObjTypes.forEach((key, value) -> {
-                Map<Integer, Set<Integer>> newValue = new HashMap<>();
-                value.forEach((k, v) -> newValue.put(k, new HashSet<>(v)));
-                serializableCpot.put(key, newValue);
-            });
-            kryo.writeObject(output, serializableCpot);
-            kryo.writeObject(output, sts);
-            kryo.writeObject(output, classToEntityCount);
-            System.out.println("Data structures saved successfully.");
+        boolean remapped = compactTermDictionaryIfNeeded();
+        try {
+            // Persist new terms before the ids that reference them.
+            termDictionary.flush();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to save term dictionary: " + e.getMessage(), e);
+        }
+        try {
+            // Renumbered ids change nearly every entry, so a compacted dictionary gets a fresh base snapshot. Until that
+            // base is on disk the old one refers to the old dictionary, which is only deleted afterwards.
+            if (remapped) {
+                statsSnapshot.rewrite(classToPropWithObjTypes, sts, classToEntityCount, dictionaryGeneration);
+                statsSnapshot.awaitWrites();
+                MappedStringEncoder.delete(getDictionaryPath(retiredDictionaryGeneration));
+                retiredDictionaryGeneration = -1;
+            } else {
+                statsSnapshot.save(classToPropWithObjTypes, sts, classToEntityCount);
+            }
+            System.out.println("Data structures captured; the snapshot is written in the background.");
         } catch (IOException e) {
             throw new RuntimeException("Failed to save data structures: " + e.getMessage(), e);
         }
     }
 
+    // Snapshots are written on a daemon thread, so the run waits for them before it exits; returns the failure of
+    // a write, which then fails the run.
+    private static IOException awaitPendingSnapshots() {
+        if (statsSnapshot == null) {
+            return null;
+        }
+        try {
+            statsSnapshot.awaitWrites();
+            return null;
+        } catch (IOException e) {
+            return e;
+        }
+    }
+
     private static long getMemoryUsage() {
         return Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
     }
@@ -1,6 +1,8 @@
 package cs.cose;
 
 import cs.Main;
+import cs.utils.EncodedTripleFile;
+import cs.utils.SubjectOffsetIndex;
 import cs.utils.SupportConfidence;
 import cs.utils.TSSSampler;
 import cs.utils.Tuple3;
@@ -8,6 +10,7 @@ import org.apache.jena.graph.Node;
 import org.apache.jena.rdf.model.*;
 import org.apache.jena.riot.RDFDataMgr;
 import org.apache.jena.shacl.validation.ReportEntry;
+import org.apache.jena.vocabulary.RDF;
 
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -28,6 +31,66 @@ public class DeltagraphExtraction {
             int kmin,      // e.g., 5000
             Map<Integer, Map<Integer, Set<Integer>>> cpot,
             Map<Tuple3<Integer, Integer, Integer>, SupportConfidence> sts
+    ) {
+        return extractDeltaGraph(updatedGraph, originalGraph, violations, shapes, sampleSize, alpha, kmin, cpot, sts, null, null);
+    }
+
+    // Same as above; the triples of violating and sampled entities are read through the subject offset indexes of the
+    // updated and original graph files where given (either may be null). A graph with an index is not read at all, so
+    // an empty model can stand in for it.
+    public static Model extractDeltaGraph(
+            Model updatedGraph,
+            Model originalGraph,
+            List<ReportEntry> violations,
+            Model shapes,
+            int sampleSize,
+            double alpha,
+            int kmin,
+            Map<Integer, Map<Integer, Set<Integer>>> cpot,
+            Map<Tuple3<Integer, Integer, Integer>, SupportConfidence> sts,
+            SubjectOffsetIndex updatedIndex,
+            SubjectOffsetIndex originalIndex
+    ) {
+        return extractDeltaGraph(updatedGraph, originalGraph, violations, shapes, sampleSize, alpha, kmin, cpot, sts,
+                updatedIndex, originalIndex, null);
+    }
+
+    // Same as above; with the encoded copy of the updated graph (binary_triples=true, may be null), the triples of all
+    // violating subjects are read from it in one scan that skips the blocks holding none of them.
+    public static Model extractDeltaGraph(
+            Model updatedGraph,
+            Model originalGraph,
+            List<ReportEntry> violations,
+            Model shapes,
+            int sampleSize,
+            double alpha,
+            int kmin,
+            Map<Integer, Map<Integer, Set<Integer>>> cpot,
+            Map<Tuple3<Integer, Integer, Integer>, SupportConfidence> sts,
+            SubjectOffsetIndex updatedIndex,
+            SubjectOffsetIndex originalIndex,
+            EncodedTripleFile updatedTriples
+    ) {
+        return extractDeltaGraph(updatedGraph, originalGraph, violations, shapes, sampleSize, alpha, kmin, cpot, sts,
+                updatedIndex, originalIndex, updatedTriples, null);
+    }
+
+    // Same as above; with the encoded copy of the original graph (may be null), entities are sampled among the
+    // instances of the violating entities' classes, found through the blocks' class blooms, when there are enough.
+    public static Model extractDeltaGraph(
+            Model updatedGraph,
+            Model originalGraph,
+            List<ReportEntry> violations,
+            Model shapes,
+            int sampleSize,
+            double alpha,
+            int kmin,
+            Map<Integer, Map<Integer, Set<Integer>>> cpot,
+            Map<Tuple3<Integer, Integer, Integer>, SupportConfidence> sts,
+            SubjectOffsetIndex updatedIndex,
+            SubjectOffsetIndex originalIndex,
+            EncodedTripleFile updatedTriples,
+            EncodedTripleFile originalTriples
     ) {
         int availableThreads = Runtime.getRuntime().availableProcessors();
         ExecutorService executorService = Executors.newFixedThreadPool(availableThreads);
@@ -35,18 +98,29 @@ public class DeltagraphExtraction {
         Set<Resource> visitedNodes = ConcurrentHashMap.newKeySet();
         Model deltaGraph = ModelFactory.createDefaultModel();
         TSSSampler tssSampler = new TSSSampler(cpot, alpha, kmin);
+        if (updatedIndex != null) {
+            tssSampler.setSubjectIndex(updatedGraph, updatedIndex);
+        }
+        if (originalIndex != null) {
+            tssSampler.setSubjectIndex(originalGraph, originalIndex);
+        }
         AtomicInteger sampledCount = new AtomicInteger(0);
 
         // Process violations: copy only triples where the violating node appears as a subject.
-        processViolationsInMemory(violations, updatedGraph, deltaGraph, tssSampler, visitedNodes, sampledCount);
+        boolean scanned = updatedIndex == null && updatedTriples != null;
+        if (scanned) {
+            deltaGraph.add(violatingSubjectTriples(violations, updatedTriples));
+        }
+        processViolationsInMemory(violations, updatedGraph, deltaGraph, tssSampler, visitedNodes, sampledCount, updatedIndex != null, scanned);
 
         // Perform batch sampling in parallel.
-        performBatchSampling(sampleSize, originalGraph, deltaGraph, tssSampler, visitedNodes, futures, executorService, sampledCount, availableThreads);
+        List<Resource> candidates = originalTriples != null ? instancesOfViolatingClasses(deltaGraph, originalGraph, originalTriples, sampleSize) : null;
+        performBatchSampling(sampleSize, originalGraph, originalIndex, candidates, deltaGraph, tssSampler, visitedNodes, futures, executorService, sampledCount, availableThreads);
 
         waitForCompletion(futures);
         executorService.shutdown();
 
-        System.out.println("Triples in Updated Graph: " + updatedGraph.size());
+        System.out.println("Triples in Updated Graph: " + (updatedIndex != null ? updatedIndex.tripleCount() : updatedGraph.size()));
         System.out.println("Sampled nodes: " + sampledCount.get());
         System.out.println("Visited nodes: " + visitedNodes.size());
         System.out.println("Triples in Delta Graph: " + deltaGraph.size());
@@ -62,7 +136,9 @@ public class DeltagraphExtraction {
             Model deltaGraph,
             TSSSampler tssSampler,
             Set<Resource> visitedNodes,
-            AtomicInteger sampledCount
+            AtomicInteger sampledCount,
+            boolean indexed,
+            boolean scanned
     ) {
         // Use parallelStream for performance but synchronize writes to deltaGraph.
         violations.parallelStream().forEach(entry -> {
@@ -70,27 +146,82 @@ public class DeltagraphExtraction {
             if (focusNode.isURI()) {
                 Resource resourceFocusNode = updatedGraph.createResource(focusNode.getURI());
                 if (visitedNodes.add(resourceFocusNode)) {
-                    // Collect statements where this node is the subject.
-                    List<Statement> stmts = new ArrayList<>();
-                    StmtIterator subjIter = updatedGraph.listStatements(resourceFocusNode, null, (RDFNode) null);
-                    while (subjIter.hasNext()) {
-                        stmts.add(subjIter.next());
-                    }
-                    // Synchronized block to prevent concurrent writes.
-                    synchronized (deltaGraph) {
-                        deltaGraph.add(stmts);
+                    // With a subject index the sampler below copies the same subject triples from the file, and after
+                    // a block scan they are already in the delta graph, so the in-memory copy is only needed otherwise.
+                    if (!indexed && !scanned) {
+                        // Collect statements where this node is the subject.
+                        List<Statement> stmts = new ArrayList<>();
+                        StmtIterator subjIter = updatedGraph.listStatements(resourceFocusNode, null, (RDFNode) null);
+                        while (subjIter.hasNext()) {
+                            stmts.add(subjIter.next());
+                        }
+                        // Synchronized block to prevent concurrent writes.
+                        synchronized (deltaGraph) {
+                            deltaGraph.add(stmts);
+                        }
                     }
                     // Add additional relevant statements using the sampler.
-                    tssSampler.addRelevantStatements(resourceFocusNode, updatedGraph, deltaGraph);
+                    if (!scanned) {
+                        tssSampler.addRelevantStatements(resourceFocusNode, updatedGraph, deltaGraph);
+                    }
                     sampledCount.incrementAndGet();
                 }
             }
         });
     }
 
+    // Triples of the URI focus nodes, read from the encoded file through its block index.
+    private static Model violatingSubjectTriples(List<ReportEntry> violations, EncodedTripleFile triples) {
+        int[] subjects = violations.stream()
+                .map(ReportEntry::focusNode)
+                .filter(Node::isURI)
+                .mapToInt(node -> triples.termId(node.getURI()))
+                .filter(id -> id >= 0)
+                .distinct()
+                .sorted()
+                .toArray();
+        try {
+            return triples.toModel(subjects);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read violating subjects from encoded triples: " + e.getMessage(), e);
+        }
+    }
+
+    // IRI instances in the original file of the classes of the violating entities, whose triples are in the delta
+    // graph by now; null if there are fewer than the sample size, so that sampling draws from every subject instead.
+    private static List<Resource> instancesOfViolatingClasses(Model deltaGraph, Model originalGraph, EncodedTripleFile originalTriples, int sampleSize) {
+        int[] classes = deltaGraph.listObjectsOfProperty(RDF.type).toList().stream()
+                .filter(RDFNode::isURIResource)
+                .mapToInt(type -> originalTriples.termId(type.asResource().getURI()))
+                .filter(id -> id >= 0)
+                .distinct()
+                .toArray();
+        try {
+            int[] instances = originalTriples.subjectsOfClasses(classes);
+            if (instances.length < sampleSize) {
+                return null;
+            }
+            List<Resource> candidates = new ArrayList<>(instances.length);
+            for (int id : instances) {
+                String term = originalTriples.term(id);
+                if (!term.startsWith("_:")) {
+                    candidates.add(originalGraph.createResource(term));
+                }
+            }
+            System.out.println("Sampling among " + candidates.size() + " instances of " + classes.length + " violating classes");
+            return candidates;
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read class instances from encoded triples: " + e.getMessage(), e);
+        }
+    }
+
+    // Entities are drawn from the candidates when given, else from the subjects of the original graph, or from the
+    // runs of its index when there is one, in which case the graph is never enumerated and may be empty.
     private static void performBatchSampling(
             int threshold,
             Model originalGraph,
+            SubjectOffsetIndex originalIndex,
+            List<Resource> candidates,
             Model deltaGraph,
             TSSSampler tssSampler,
             Set<Resource> visitedNodes,
@@ -99,19 +230,26 @@ public class DeltagraphExtraction {
             AtomicInteger sampledCount,
             int availableThreads
     ) {
-        List<Resource> subjects = originalGraph.listSubjects().toList();
+        List<Resource> subjects = candidates != null ? candidates : originalIndex == null ? originalGraph.listSubjects().toList() : null;
+        long subjectCount = subjects != null ? subjects.size() : originalIndex.size();
         Random random = new Random();
-        int batchSize = Math.max(1, subjects.size() / availableThreads);
+        long batchSize = Math.max(1, subjectCount / availableThreads);
 
         for (int i = 0; i < availableThreads; i++) {
-            int startIndex = i * batchSize;
-            int endIndex = Math.min(subjects.size(), (i + 1) * batchSize);
+            long startIndex = i * batchSize;
+            long endIndex = Math.min(subjectCount, (i + 1) * batchSize);
             futures.add(executorService.submit(() -> {
-                for (int j = startIndex; j < endIndex; j++) {
+                for (long j = startIndex; j < endIndex; j++) {
                     if (visitedNodes.size() >= threshold || sampledCount.get() >= threshold)
                         break;
-                    Resource randomEntity = subjects.get(random.nextInt(subjects.size()));
-                    if (visitedNodes.add(randomEntity)) {
+                    Resource randomEntity;
+                    if (subjects != null) {
+                        randomEntity = subjects.get(random.nextInt(subjects.size()));
+                    } else {
+                        Node subject = originalIndex.subjectAt((long) (random.nextDouble() * subjectCount));
+                        randomEntity = subject == null ? null : originalGraph.createResource(subject.getURI());
+                    }
+                    if (randomEntity != null && visitedNodes.add(randomEntity)) {
                         tssSampler.sample(randomEntity, originalGraph, deltaGraph, visitedNodes);
                         sampledCount.incrementAndGet();
                     }
@@ -7,7 +7,6 @@ import cs.utils.Constants;
 import cs.utils.FilesUtil;
 import cs.utils.Tuple3;
 import cs.cose.encoders.StringEncoder;
-import org.apache.commons.io.FilenameUtils;
 import org.eclipse.rdf4j.model.*;
 import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
 import org.eclipse.rdf4j.model.util.ModelBuilder;
@@ -25,8 +24,6 @@ import org.eclipse.rdf4j.rio.Rio;
 import org.eclipse.rdf4j.sail.memory.MemoryStore;
 
 import java.io.FileWriter;
-import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
@@ -281,8 +278,7 @@ public class MinCardinalityExperiment {
     }
 
     public void writeModelToFile(String fileIdentifier) {
-        Path path = Paths.get(Main.datasetPath);
-        String fileName = FilenameUtils.removeExtension(path.getFileName().toString()) + "_" + fileIdentifier + "_SHACL.ttl";
+        String fileName = FilesUtil.getFileName(Main.datasetPath) + "_" + fileIdentifier + "_SHACL.ttl";
         System.out.println("::: SHACLER ~ WRITING MODEL TO FILE: " + fileName);
         try {
             FileWriter fileWriter = new FileWriter(Main.outputFilePath + fileName, false);
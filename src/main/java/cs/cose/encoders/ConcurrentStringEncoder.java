@@ -2,44 +2,109 @@ package cs.cose.encoders;
 
 
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
+// Thread-safe dictionary: ids are allocated once per term inside a single atomic insert on the reverse table,
+// and decoding is served by a dense chunked array indexed by id, so neither lookup direction takes a lock.
 public class ConcurrentStringEncoder implements Encoder {
-    int counter;
-    ConcurrentHashMap<Integer, String> table;
-    ConcurrentHashMap<String, Integer> reverseTable;
+    private static final int CHUNK_BITS = 16;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    final int firstId;
+    final AtomicInteger counter;
+    final ConcurrentHashMap<String, Integer> reverseTable;
+    private volatile String[][] chunks;
+    private final ThreadLocal<TermCache> frontCache = ThreadLocal.withInitial(TermCache::new);
 
     public ConcurrentStringEncoder() {
-        this.counter = -1;
-        this.table = new ConcurrentHashMap<>();
+        this(0);
+    }
+
+    // Ids start at firstId, so this encoder can extend an existing (e.g. persisted) id space.
+    public ConcurrentStringEncoder(int firstId) {
+        this.firstId = firstId;
+        this.counter = new AtomicInteger(firstId - 1);
         this.reverseTable = new ConcurrentHashMap<>();
+        this.chunks = new String[1][];
+        this.chunks[0] = new String[CHUNK_SIZE];
     }
 
     public int encode(String val) {
-        if (reverseTable.containsKey(val)) {
-            return reverseTable.get(val);
-        } else {
-            this.counter++;
-            table.put(counter, val);
-            reverseTable.put(val, counter);
-            return counter;
+        // Read-mostly fast path: a plain get on the concurrent map never blocks.
+        Integer id = reverseTable.get(val);
+        if (id != null) {
+            return id;
+        }
+        return reverseTable.computeIfAbsent(val, this::assign);
+    }
+
+    // Runs inside computeIfAbsent, so at most one id is handed out per term and the slot is written
+    // before the mapping becomes visible to other threads.
+    private Integer assign(String val) {
+        int id = counter.incrementAndGet();
+        int slot = id - firstId;
+        slotChunk(slot)[slot & CHUNK_MASK] = val;
+        return id;
+    }
+
+    private String[] slotChunk(int slot) {
+        int chunkIndex = slot >>> CHUNK_BITS;
+        String[][] current = chunks;
+        if (chunkIndex < current.length && current[chunkIndex] != null) {
+            return current[chunkIndex];
+        }
+        synchronized (this) {
+            current = chunks;
+            if (chunkIndex >= current.length) {
+                String[][] grown = new String[Math.max(current.length * 2, chunkIndex + 1)][];
+                System.arraycopy(current, 0, grown, 0, current.length);
+                current = grown;
+            }
+            if (current[chunkIndex] == null) {
+                current[chunkIndex] = new String[CHUNK_SIZE];
+            }
+            chunks = current;
+            return current[chunkIndex];
         }
     }
 
+    @Override
+    public int[] encode(CharSequence[] vals) {
+        return frontCache.get().encodeAll(vals, this);
+    }
+
     public boolean isEncoded(String val) {
         return reverseTable.containsKey(val);
     }
 
+    // Next id to be handed out, i.e. the size of the whole id space including ids below firstId.
+    public int size() {
+        return counter.get() + 1;
+    }
 
+    // Snapshot of the id -> term table; decode() should be preferred on hot paths.
     public ConcurrentHashMap<Integer, String> getTable() {
+        ConcurrentHashMap<Integer, String> table = new ConcurrentHashMap<>();
+        reverseTable.forEach((term, id) -> table.put(id, term));
         return table;
     }
 
     public String decode(int val) {
-        return this.table.get(val);
+        int slot = val - firstId;
+        if (slot < 0) {
+            return null;
+        }
+        String[][] current = chunks;
+        int chunkIndex = slot >>> CHUNK_BITS;
+        if (chunkIndex >= current.length || current[chunkIndex] == null) {
+            return null;
+        }
+        return current[chunkIndex][slot & CHUNK_MASK];
     }
 
     public ConcurrentHashMap<String, Integer> getRevTable() {
         return reverseTable;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,50 @@
+package cs.cose.encoders;
+
+import org.apache.jena.graph.Triple;
+import org.apache.jena.riot.system.StreamRDFBase;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+
+// StreamRDF sink that encodes parsed triples straight from their Nodes and hands them on in batches of
+// [subjectId, predicateId, objectTypeId] ints. Triples whose predicate is not an IRI are skipped.
+public class EncodedTripleStream extends StreamRDFBase {
+    private final JenaNodeEncoder encoder;
+    private final Consumer<int[]> consumer;
+    private final int[] buffer;
+    private int count;
+
+    public EncodedTripleStream(JenaNodeEncoder encoder, int batchSize, Consumer<int[]> consumer) {
+        this.encoder = encoder;
+        this.consumer = consumer;
+        this.buffer = new int[3 * batchSize];
+        this.count = 0;
+    }
+
+    @Override
+    public void triple(Triple triple) {
+        if (!triple.getPredicate().isURI()) {
+            return;
+        }
+        encoder.encodeTriple(triple, buffer, count);
+        count += 3;
+        if (count == buffer.length) {
+            flush();
+        }
+    }
+
+    @Override
+    public void finish() {
+        flush();
+    }
+
+    // The consumer must not keep the array: a full buffer is handed over as is and reused afterwards.
+    private void flush() {
+        if (count == 0) {
+            return;
+        }
+        consumer.accept(count == buffer.length ? buffer : Arrays.copyOf(buffer, count));
+        count = 0;
+    }
+}
@@ -7,4 +7,19 @@ public interface Encoder {
 
     public String decode(int val);
 
+    boolean isEncoded(String val);
+
+    // Size of the id space, i.e. the id the next new term would receive.
+    int size();
+
+    // Bulk variant of encode(String); null entries map to -1. Implementations backed by a shared dictionary
+    // override it to serve repeated terms from a per-thread TermCache.
+    default int[] encode(CharSequence[] vals) {
+        int[] ids = new int[vals.length];
+        for (int i = 0; i < vals.length; i++) {
+            ids[i] = vals[i] == null ? -1 : encode(vals[i].toString());
+        }
+        return ids;
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,89 @@
+package cs.cose.encoders;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.vocabulary.RDF;
+
+
+// Encodes Jena graph Nodes directly, without Model wrappers or intermediate strings: IRIs are encoded from the
+// label the Node already holds and literals by their datatype IRI. The RIOT parsers hand out the same Node instance
+// for a repeated IRI, so a small per-thread cache keyed on the Node answers most predicates and classes.
+public class JenaNodeEncoder {
+    private static final int CACHE_SIZE = 1 << 12;
+    private static final int CACHE_MASK = CACHE_SIZE - 1;
+    private static final Node RDF_TYPE = RDF.type.asNode();
+
+    private final Encoder encoder;
+    private final TieredEncoder tieredEncoder;
+    private final ThreadLocal<NodeCache> nodeCache = ThreadLocal.withInitial(NodeCache::new);
+    private final ThreadLocal<TermCache> datatypeCache = ThreadLocal.withInitial(TermCache::new);
+
+    public JenaNodeEncoder(Encoder encoder) {
+        this.encoder = encoder;
+        this.tieredEncoder = encoder instanceof TieredEncoder ? (TieredEncoder) encoder : null;
+    }
+
+    public Encoder getEncoder() {
+        return encoder;
+    }
+
+    // Schema term: an IRI is encoded as itself, a literal as its datatype; blank nodes map to -1.
+    public int encode(Node node) {
+        if (node.isURI()) {
+            return nodeCache.get().encode(node, encoder);
+        }
+        if (node.isLiteral()) {
+            String datatypeURI = node.getLiteralDatatypeURI();
+            return datatypeURI != null ? datatypeCache.get().encode(datatypeURI, encoder) : -1;
+        }
+        return -1;
+    }
+
+    // Entity IRI: fingerprinted when the encoder is tiered, interned otherwise; anything else maps to -1.
+    public int encodeInstance(Node node) {
+        if (!node.isURI()) {
+            return -1;
+        }
+        if (tieredEncoder != null) {
+            return tieredEncoder.encodeInstance(node.getURI());
+        }
+        return encoder.encode(node.getURI());
+    }
+
+    // Entity IRI as a key that tells entities apart: the full 64-bit fingerprint when the encoder is tiered, the
+    // dictionary id otherwise. Only for grouping and joining on entities; the stats hold encodeInstance() ids.
+    public long instanceKey(Node node) {
+        if (tieredEncoder != null) {
+            return TieredEncoder.fingerprint(node.getURI());
+        }
+        return encoder.encode(node.getURI());
+    }
+
+    // Writes [subjectId, predicateId, objectTypeId] at out[offset..offset+2]. Objects of rdf:type are classes
+    // and are encoded as schema terms, other IRI objects as entities.
+    public void encodeTriple(Triple triple, int[] out, int offset) {
+        Node predicate = triple.getPredicate();
+        Node object = triple.getObject();
+        out[offset] = encodeInstance(triple.getSubject());
+        out[offset + 1] = encode(predicate);
+        out[offset + 2] = object.isURI() && !RDF_TYPE.equals(predicate) ? encodeInstance(object) : encode(object);
+    }
+
+    private static final class NodeCache {
+        private final Node[] keys = new Node[CACHE_SIZE];
+        private final int[] ids = new int[CACHE_SIZE];
+
+        int encode(Node node, Encoder encoder) {
+            int h = node.hashCode();
+            int slot = (h ^ (h >>> 16)) & CACHE_MASK;
+            Node key = keys[slot];
+            if (key == node || (key != null && key.equals(node))) {
+                return ids[slot];
+            }
+            int id = encoder.encode(node.getURI());
+            keys[slot] = node;
+            ids[slot] = id;
+            return id;
+        }
+    }
+}
@@ -0,0 +1,388 @@
+package cs.cose.encoders;
+
+import cs.utils.MappedFileBuffer;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.function.IntFunction;
+
+// Persistent term dictionary. Terms from earlier runs live in two append-only files that are memory-mapped and
+// read lazily: <name>.dict holds length-prefixed UTF-8 terms, <name>.dict.idx holds a header with the committed
+// term count followed by one long offset per id. Terms first seen in this run are kept in an in-memory encoder
+// continuing the persisted id space and are appended to the files by flush(), so ids stay stable across runs.
+public class MappedStringEncoder implements Encoder, Closeable {
+    private static final int MAGIC = 0x434F5344; // "COSD"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+
+    private final Path termsPath;
+    private final Path offsetsPath;
+    private final MappedFileBuffer terms;
+    private final MappedFileBuffer offsets;
+    private final int mappedCount;
+    private final Encoder appended;
+    private final ThreadLocal<TermCache> frontCache = ThreadLocal.withInitial(TermCache::new);
+    private volatile int[] hashIndex;
+    private int persistedCount;
+    private long persistedEnd;
+
+    private MappedStringEncoder(Path termsPath, Path offsetsPath, MappedFileBuffer terms, MappedFileBuffer offsets,
+                                int mappedCount, long persistedEnd, IntFunction<Encoder> overlayFactory) {
+        this.termsPath = termsPath;
+        this.offsetsPath = offsetsPath;
+        this.terms = terms;
+        this.offsets = offsets;
+        this.mappedCount = mappedCount;
+        this.persistedCount = mappedCount;
+        this.persistedEnd = persistedEnd;
+        this.appended = overlayFactory.apply(mappedCount);
+    }
+
+    // Opens (or prepares to create) the dictionary stored at dictionaryPath and dictionaryPath + ".idx".
+    public static MappedStringEncoder open(String dictionaryPath) throws IOException {
+        return open(dictionaryPath, ConcurrentStringEncoder::new);
+    }
+
+    // overlayFactory creates the encoder for new terms, given the first id it has to hand out.
+    public static MappedStringEncoder open(String dictionaryPath, IntFunction<Encoder> overlayFactory) throws IOException {
+        Path termsPath = Paths.get(dictionaryPath);
+        Path offsetsPath = Paths.get(dictionaryPath + ".idx");
+        if (!Files.exists(termsPath) || !Files.exists(offsetsPath) || Files.size(offsetsPath) < HEADER_SIZE) {
+            return new MappedStringEncoder(termsPath, offsetsPath, null, null, 0, 0, overlayFactory);
+        }
+        MappedFileBuffer offsets = MappedFileBuffer.open(offsetsPath);
+        if (offsets.getInt(0) != MAGIC || offsets.getInt(4) != VERSION) {
+            offsets.close();
+            throw new IOException("Not a term dictionary index: " + offsetsPath);
+        }
+        int count = (int) offsets.getLong(8);
+        if (count == 0) {
+            offsets.close();
+            return new MappedStringEncoder(termsPath, offsetsPath, null, null, 0, 0, overlayFactory);
+        }
+        MappedFileBuffer terms = MappedFileBuffer.open(termsPath);
+        long lastOffset = offsets.getLong(HEADER_SIZE + (long) (count - 1) * Long.BYTES);
+        long end = lastOffset + Integer.BYTES + terms.getInt(lastOffset);
+        System.out.println("Opened term dictionary " + dictionaryPath + " with " + count + " terms.");
+        return new MappedStringEncoder(termsPath, offsetsPath, terms, offsets, count, end, overlayFactory);
+    }
+
+    public int encode(String val) {
+        if (mappedCount > 0) {
+            int id = lookupMapped(val);
+            if (id >= 0) {
+                return id;
+            }
+        }
+        return appended.encode(val);
+    }
+
+    @Override
+    public int[] encode(CharSequence[] vals) {
+        return frontCache.get().encodeAll(vals, this);
+    }
+
+    public String decode(int val) {
+        if (val < 0) {
+            return null;
+        }
+        if (val < mappedCount) {
+            long pos = termOffset(val);
+            byte[] bytes = new byte[terms.getInt(pos)];
+            terms.get(pos + Integer.BYTES, bytes, 0, bytes.length);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+        return appended.decode(val);
+    }
+
+    public boolean isEncoded(String val) {
+        return (mappedCount > 0 && lookupMapped(val) >= 0) || appended.isEncoded(val);
+    }
+
+    // Total number of ids, persisted or not.
+    public int size() {
+        return appended.size();
+    }
+
+    // Appends the terms encoded since the last flush and then commits the new count in the index header.
+    public synchronized void flush() throws IOException {
+        int total = appended.size();
+        if (total == persistedCount && Files.exists(offsetsPath)) {
+            return;
+        }
+        int count = persistedCount;
+        long end = persistedEnd;
+        try (FileChannel termsChannel = FileChannel.open(termsPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             FileChannel offsetsChannel = FileChannel.open(offsetsPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            termsChannel.truncate(end);
+            termsChannel.position(end);
+            offsetsChannel.truncate(HEADER_SIZE + (long) count * Long.BYTES);
+            offsetsChannel.position(HEADER_SIZE + (long) count * Long.BYTES);
+            DataOutputStream termsOut = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(termsChannel), 1 << 16));
+            DataOutputStream offsetsOut = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(offsetsChannel), 1 << 16));
+            for (; count < total; count++) {
+                String term = appended.decode(count);
+                if (term == null) {
+                    break;
+                }
+                byte[] bytes = term.getBytes(StandardCharsets.UTF_8);
+                offsetsOut.writeLong(end);
+                termsOut.writeInt(bytes.length);
+                termsOut.write(bytes);
+                end += Integer.BYTES + bytes.length;
+            }
+            termsOut.flush();
+            offsetsOut.flush();
+            termsChannel.force(false);
+            offsetsChannel.force(false);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putLong(count).flip();
+            offsetsChannel.write(header, 0);
+            offsetsChannel.force(false);
+        }
+        System.out.println("Term dictionary " + termsPath + " now holds " + count + " terms (" + (count - persistedCount) + " appended).");
+        persistedCount = count;
+        persistedEnd = end;
+    }
+
+    // Flushes and returns the dictionary reopened with every term persisted, so that the terms leave the heap overlay,
+    // e.g. every so often while a large file is encoded. The reverse index is carried over and only extended by the
+    // new terms unless it has to grow. This encoder must not be used afterwards.
+    public synchronized MappedStringEncoder checkpoint(IntFunction<Encoder> overlayFactory) throws IOException {
+        flush();
+        close();
+        MappedStringEncoder reopened = open(termsPath.toString(), overlayFactory);
+        int[] index = hashIndex;
+        if (index != null && reopened.mappedCount * 2 <= index.length) {
+            int mask = index.length - 1;
+            for (int id = mappedCount; id < reopened.mappedCount; id++) {
+                int slot = mix(reopened.stringHash(reopened.termOffset(id))) & mask;
+                while (index[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                index[slot] = id + 1;
+            }
+            reopened.hashIndex = index;
+        }
+        return reopened;
+    }
+
+    // Writes the dictionary with only the ids set in `keep`, renumbered densely in their current order, to
+    // targetPath (and targetPath + ".idx") and returns it opened. remap (sized size()) receives the new id of every old
+    // id, or -1 if dropped. This dictionary's files are left untouched and its channels are closed, so its ids stay
+    // decodable until whatever refers to the new ids is durable and the caller deletes it. Must not run concurrently
+    // with encode().
+    public synchronized MappedStringEncoder compact(BitSet keep, int[] remap, String targetPath, IntFunction<Encoder> overlayFactory) throws IOException {
+        // Left behind by a compaction whose snapshot never landed.
+        delete(targetPath);
+        MappedStringEncoder target = open(targetPath, ConcurrentStringEncoder::new);
+        for (int id = 0; id < remap.length; id++) {
+            String term = keep.get(id) ? decode(id) : null;
+            remap[id] = term != null ? target.encode(term) : -1;
+        }
+        target.flush();
+        close();
+        System.out.println("Compacted term dictionary " + termsPath + " from " + size() + " to " + target.size() + " terms in " + targetPath);
+        return open(targetPath, overlayFactory);
+    }
+
+    // Closes the files of the persisted terms; their mappings stay readable until they are garbage collected.
+    public synchronized void close() throws IOException {
+        if (terms != null) {
+            terms.close();
+        }
+        if (offsets != null) {
+            offsets.close();
+        }
+    }
+
+    // Deletes the files of the dictionary stored at dictionaryPath.
+    public static void delete(String dictionaryPath) throws IOException {
+        Files.deleteIfExists(Paths.get(dictionaryPath + ".idx"));
+        Files.deleteIfExists(Paths.get(dictionaryPath));
+    }
+
+    private long termOffset(int id) {
+        return offsets.getLong(HEADER_SIZE + (long) id * Long.BYTES);
+    }
+
+    private int lookupMapped(String val) {
+        int[] index = hashIndex;
+        if (index == null) {
+            index = buildHashIndex();
+        }
+        int mask = index.length - 1;
+        int slot = mix(val.hashCode()) & mask;
+        while (index[slot] != 0) {
+            int id = index[slot] - 1;
+            if (matches(termOffset(id), val)) {
+                return id;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    // Id of a persisted term given as its UTF-8 bytes, or -1 if it is not persisted (it may still be among the terms
+    // added in this run). Neither the span nor the stored term is turned into a String, so byte-level parsers can
+    // resolve known terms without allocating.
+    public int lookupPersisted(byte[] utf8, int start, int end) {
+        if (mappedCount == 0) {
+            return -1;
+        }
+        int[] index = hashIndex;
+        if (index == null) {
+            index = buildHashIndex();
+        }
+        int mask = index.length - 1;
+        int slot = mix(stringHash(utf8, start, end)) & mask;
+        while (index[slot] != 0) {
+            int id = index[slot] - 1;
+            if (matches(termOffset(id), utf8, start, end)) {
+                return id;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    // The reverse index holds only ids (open addressing on the String hash of each term), so strings of persisted
+    // terms are never materialized on the heap. It is built on the first encode, not at startup.
+    private synchronized int[] buildHashIndex() {
+        if (hashIndex != null) {
+            return hashIndex;
+        }
+        int capacity = Integer.highestOneBit(Math.max(2, mappedCount) * 2 - 1) << 1;
+        int[] index = new int[capacity];
+        int mask = capacity - 1;
+        for (int id = 0; id < mappedCount; id++) {
+            int slot = mix(stringHash(termOffset(id))) & mask;
+            while (index[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            index[slot] = id + 1;
+        }
+        hashIndex = index;
+        return index;
+    }
+
+    private static int mix(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    // String.hashCode() of the stored term, computed by decoding its UTF-8 bytes in place.
+    private int stringHash(long pos) {
+        int h = 0;
+        long cur = pos + Integer.BYTES;
+        long end = cur + terms.getInt(pos);
+        while (cur < end) {
+            int b = terms.get(cur) & 0xFF;
+            int width = utf8Width(b);
+            int cp = codePoint(cur, b, width);
+            cur += width;
+            if (cp >= Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+                h = 31 * h + Character.highSurrogate(cp);
+                h = 31 * h + Character.lowSurrogate(cp);
+            } else {
+                h = 31 * h + cp;
+            }
+        }
+        return h;
+    }
+
+    // String.hashCode() of a term given as UTF-8 bytes.
+    private static int stringHash(byte[] utf8, int start, int end) {
+        int h = 0;
+        int cur = start;
+        while (cur < end) {
+            int b = utf8[cur] & 0xFF;
+            int width = Math.min(utf8Width(b), end - cur);
+            int cp = b;
+            if (width > 1) {
+                cp &= 0x3F >> (width - 1);
+                for (int i = 1; i < width; i++) {
+                    cp = (cp << 6) | (utf8[cur + i] & 0x3F);
+                }
+            }
+            cur += width;
+            if (cp >= Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+                h = 31 * h + Character.highSurrogate(cp);
+                h = 31 * h + Character.lowSurrogate(cp);
+            } else {
+                h = 31 * h + cp;
+            }
+        }
+        return h;
+    }
+
+    private boolean matches(long pos, byte[] utf8, int start, int end) {
+        if (terms.getInt(pos) != end - start) {
+            return false;
+        }
+        long cur = pos + Integer.BYTES;
+        for (int i = start; i < end; i++, cur++) {
+            if (terms.get(cur) != utf8[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean matches(long pos, String val) {
+        long cur = pos + Integer.BYTES;
+        long end = cur + terms.getInt(pos);
+        int i = 0;
+        int length = val.length();
+        while (cur < end) {
+            int b = terms.get(cur) & 0xFF;
+            int width = utf8Width(b);
+            int cp = codePoint(cur, b, width);
+            cur += width;
+            if (cp >= Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+                if (i + 1 >= length || val.charAt(i) != Character.highSurrogate(cp) || val.charAt(i + 1) != Character.lowSurrogate(cp)) {
+                    return false;
+                }
+                i += 2;
+            } else {
+                if (i >= length || val.charAt(i) != cp) {
+                    return false;
+                }
+                i++;
+            }
+        }
+        return i == length;
+    }
+
+    private static int utf8Width(int b) {
+        if (b < 0x80) return 1;
+        if (b < 0xE0) return 2;
+        if (b < 0xF0) return 3;
+        return 4;
+    }
+
+    private int codePoint(long pos, int b, int width) {
+        switch (width) {
+            case 1:
+                return b;
+            case 2:
+                return ((b & 0x1F) << 6) | (terms.get(pos + 1) & 0x3F);
+            case 3:
+                return ((b & 0x0F) << 12) | ((terms.get(pos + 1) & 0x3F) << 6) | (terms.get(pos + 2) & 0x3F);
+            default:
+                return ((b & 0x07) << 18) | ((terms.get(pos + 1) & 0x3F) << 12)
+                        | ((terms.get(pos + 2) & 0x3F) << 6) | (terms.get(pos + 3) & 0x3F);
+        }
+    }
+}
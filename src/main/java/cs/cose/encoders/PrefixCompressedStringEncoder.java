@@ -0,0 +1,216 @@
+package cs.cose.encoders;
+
+import cs.utils.Utils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Dictionary that stores every IRI only once, as a namespace id plus the UTF-8 bytes of its local name.
+// The namespace split is the one used by Utils.getNamespace. The reverse direction is an open-addressing table
+// of ids keyed by the full String hash, so lookups compare against the stored parts without rebuilding the IRI.
+public class PrefixCompressedStringEncoder implements Encoder {
+    private static final int CHUNK_BITS = 16;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    private static final byte[] EMPTY = new byte[0];
+
+    private final int firstId;
+    private final ConcurrentStringEncoder namespaces;
+    private final ReentrantReadWriteLock lock;
+    private volatile int[][] namespaceIds;
+    private volatile int[][] hashes;
+    private volatile byte[][][] localNames;
+    private int[] index;
+    private volatile int count;
+    private final ThreadLocal<TermCache> frontCache = ThreadLocal.withInitial(TermCache::new);
+
+    public PrefixCompressedStringEncoder() {
+        this(0);
+    }
+
+    public PrefixCompressedStringEncoder(int firstId) {
+        this.firstId = firstId;
+        this.namespaces = new ConcurrentStringEncoder();
+        this.lock = new ReentrantReadWriteLock();
+        this.namespaceIds = new int[1][CHUNK_SIZE];
+        this.hashes = new int[1][CHUNK_SIZE];
+        this.localNames = new byte[1][CHUNK_SIZE][];
+        this.index = new int[1 << 10];
+        this.count = 0;
+    }
+
+    public int encode(String val) {
+        int hash = val.hashCode();
+        lock.readLock().lock();
+        try {
+            int slot = find(val, hash);
+            if (slot >= 0) {
+                return firstId + slot;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        lock.writeLock().lock();
+        try {
+            int slot = find(val, hash);
+            if (slot >= 0) {
+                return firstId + slot;
+            }
+            return firstId + insert(val, hash);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public int[] encode(CharSequence[] vals) {
+        return frontCache.get().encodeAll(vals, this);
+    }
+
+    public boolean isEncoded(String val) {
+        lock.readLock().lock();
+        try {
+            return find(val, val.hashCode()) >= 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public String decode(int val) {
+        int slot = val - firstId;
+        if (slot < 0 || slot >= count) {
+            return null;
+        }
+        byte[] local = localNames[slot >>> CHUNK_BITS][slot & CHUNK_MASK];
+        return namespaces.decode(namespaceIds[slot >>> CHUNK_BITS][slot & CHUNK_MASK]) + new String(local, StandardCharsets.UTF_8);
+    }
+
+    public int size() {
+        return firstId + count;
+    }
+
+    // Number of distinct namespaces seen so far.
+    public int namespaceCount() {
+        return namespaces.size();
+    }
+
+    // Returns the slot (id - firstId) of val, or -1.
+    private int find(String val, int hash) {
+        int[] table = index;
+        int mask = table.length - 1;
+        int pos = mix(hash) & mask;
+        while (table[pos] != 0) {
+            int slot = table[pos] - 1;
+            if (hashes[slot >>> CHUNK_BITS][slot & CHUNK_MASK] == hash && matches(slot, val)) {
+                return slot;
+            }
+            pos = (pos + 1) & mask;
+        }
+        return -1;
+    }
+
+    private boolean matches(int slot, String val) {
+        String namespace = namespaces.decode(namespaceIds[slot >>> CHUNK_BITS][slot & CHUNK_MASK]);
+        if (!val.startsWith(namespace)) {
+            return false;
+        }
+        byte[] local = localNames[slot >>> CHUNK_BITS][slot & CHUNK_MASK];
+        int i = namespace.length();
+        int length = val.length();
+        int b = 0;
+        while (b < local.length) {
+            int lead = local[b] & 0xFF;
+            int cp;
+            if (lead < 0x80) {
+                cp = lead;
+                b += 1;
+            } else if (lead < 0xE0) {
+                cp = ((lead & 0x1F) << 6) | (local[b + 1] & 0x3F);
+                b += 2;
+            } else if (lead < 0xF0) {
+                cp = ((lead & 0x0F) << 12) | ((local[b + 1] & 0x3F) << 6) | (local[b + 2] & 0x3F);
+                b += 3;
+            } else {
+                cp = ((lead & 0x07) << 18) | ((local[b + 1] & 0x3F) << 12) | ((local[b + 2] & 0x3F) << 6) | (local[b + 3] & 0x3F);
+                b += 4;
+            }
+            if (cp >= Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+                if (i + 1 >= length || val.charAt(i) != Character.highSurrogate(cp) || val.charAt(i + 1) != Character.lowSurrogate(cp)) {
+                    return false;
+                }
+                i += 2;
+            } else {
+                if (i >= length || val.charAt(i) != cp) {
+                    return false;
+                }
+                i++;
+            }
+        }
+        return i == length;
+    }
+
+    // Called with the write lock held. Slot data is written before the slot becomes reachable through the index.
+    private int insert(String val, int hash) {
+        String namespace = Utils.getNamespace(val);
+        if (namespace == null) {
+            namespace = "";
+        }
+        int slot = count;
+        ensureChunk(slot >>> CHUNK_BITS);
+        namespaceIds[slot >>> CHUNK_BITS][slot & CHUNK_MASK] = namespaces.encode(namespace);
+        hashes[slot >>> CHUNK_BITS][slot & CHUNK_MASK] = hash;
+        localNames[slot >>> CHUNK_BITS][slot & CHUNK_MASK] = namespace.length() == val.length()
+                ? EMPTY
+                : val.substring(namespace.length()).getBytes(StandardCharsets.UTF_8);
+        if ((slot + 1) * 2 > index.length) {
+            rehash(index.length * 2, slot);
+        }
+        int mask = index.length - 1;
+        int pos = mix(hash) & mask;
+        while (index[pos] != 0) {
+            pos = (pos + 1) & mask;
+        }
+        index[pos] = slot + 1;
+        count = slot + 1;
+        return slot;
+    }
+
+    private void ensureChunk(int chunkIndex) {
+        if (chunkIndex < namespaceIds.length) {
+            return;
+        }
+        int length = namespaceIds.length * 2;
+        int[][] grownNamespaceIds = new int[length][];
+        int[][] grownHashes = new int[length][];
+        byte[][][] grownLocalNames = new byte[length][][];
+        System.arraycopy(namespaceIds, 0, grownNamespaceIds, 0, namespaceIds.length);
+        System.arraycopy(hashes, 0, grownHashes, 0, hashes.length);
+        System.arraycopy(localNames, 0, grownLocalNames, 0, localNames.length);
+        for (int i = namespaceIds.length; i < length; i++) {
+            grownNamespaceIds[i] = new int[CHUNK_SIZE];
+            grownHashes[i] = new int[CHUNK_SIZE];
+            grownLocalNames[i] = new byte[CHUNK_SIZE][];
+        }
+        namespaceIds = grownNamespaceIds;
+        hashes = grownHashes;
+        localNames = grownLocalNames;
+    }
+
+    private void rehash(int capacity, int slots) {
+        int[] table = new int[capacity];
+        int mask = capacity - 1;
+        for (int slot = 0; slot < slots; slot++) {
+            int pos = mix(hashes[slot >>> CHUNK_BITS][slot & CHUNK_MASK]) & mask;
+            while (table[pos] != 0) {
+                pos = (pos + 1) & mask;
+            }
+            table[pos] = slot + 1;
+        }
+        index = table;
+    }
+
+    private static int mix(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
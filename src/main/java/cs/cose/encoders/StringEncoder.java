@@ -29,6 +29,10 @@ public class StringEncoder implements Encoder {
         return reverseTable.containsKey(val);
     }
 
+    public int size() {
+        return counter + 1;
+    }
+
 
     public HashMap<Integer, String> getTable() {
         return table;
@@ -0,0 +1,49 @@
+package cs.cose.encoders;
+
+
+// Small direct-mapped cache of recently encoded terms, meant to be held per thread (see Encoder.encode(CharSequence[])).
+// rdf:type, the top predicates and the common datatypes hit it almost always, which saves the hashing and probing
+// of the shared dictionary for the bulk of every batch.
+public class TermCache {
+    private static final int CAPACITY = 1 << 10;
+    private static final int MASK = CAPACITY - 1;
+
+    private final String[] keys = new String[CAPACITY];
+    private final int[] ids = new int[CAPACITY];
+
+    // Encodes vals through the cache, falling back to the encoder on a miss. Null entries map to -1.
+    public int[] encodeAll(CharSequence[] vals, Encoder encoder) {
+        int[] result = new int[vals.length];
+        for (int i = 0; i < vals.length; i++) {
+            result[i] = vals[i] == null ? -1 : encode(vals[i], encoder);
+        }
+        return result;
+    }
+
+    public int encode(CharSequence val, Encoder encoder) {
+        int slot = hash(val) & MASK;
+        String key = keys[slot];
+        if (key != null && key.contentEquals(val)) {
+            return ids[slot];
+        }
+        String term = val.toString();
+        int id = encoder.encode(term);
+        keys[slot] = term;
+        ids[slot] = id;
+        return id;
+    }
+
+    private static int hash(CharSequence val) {
+        int h = val instanceof String ? val.hashCode() : hashChars(val);
+        return h ^ (h >>> 16);
+    }
+
+    // Same value as String.hashCode(), so a String and an equal CharSequence land in the same slot.
+    private static int hashChars(CharSequence val) {
+        int h = 0;
+        for (int i = 0; i < val.length(); i++) {
+            h = 31 * h + val.charAt(i);
+        }
+        return h;
+    }
+}
@@ -0,0 +1,98 @@
+package cs.cose.encoders;
+
+
+// Two-tier dictionary. Schema terms (classes, predicates, datatypes) go through encode() into a small dense
+// dictionary that can be decoded. Instance IRIs go through encodeInstance() and are reduced to a 64-bit fingerprint
+// whose string is never stored, so the dictionary does not grow with the number of entities.
+// Instance ids are the fingerprint folded into a negative int below -1 (-1 stays the "no datatype" marker);
+// decode() returns null for them. The fold keeps 31 bits, so n entities give about n^2 / 2^32 colliding pairs (some
+// 230 at 1M entities, 23k at 10M, 2.3M at 100M) that are counted as one entity wherever stats are keyed by entity,
+// as with the default stats_mode. stats_mode=subject_grouped and type_resolved key their stats by class and tell
+// entities apart by the full 64-bit fingerprint, where a collision is about n^2 / 2^65 likely.
+public class TieredEncoder implements Encoder {
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final Encoder schema;
+
+    public TieredEncoder(Encoder schema) {
+        this.schema = schema;
+    }
+
+    public int encode(String val) {
+        return schema.encode(val);
+    }
+
+    @Override
+    public int[] encode(CharSequence[] vals) {
+        return schema.encode(vals);
+    }
+
+    public String decode(int val) {
+        return isInstanceId(val) ? null : schema.decode(val);
+    }
+
+    public boolean isEncoded(String val) {
+        return schema.isEncoded(val);
+    }
+
+    public int size() {
+        return schema.size();
+    }
+
+    public Encoder getSchemaEncoder() {
+        return schema;
+    }
+
+    public int encodeInstance(CharSequence iri) {
+        return instanceId(fingerprint(iri));
+    }
+
+    // Null entries map to -1, as in encode(CharSequence[]).
+    public int[] encodeInstances(CharSequence[] iris) {
+        int[] ids = new int[iris.length];
+        for (int i = 0; i < iris.length; i++) {
+            ids[i] = iris[i] == null ? -1 : encodeInstance(iris[i]);
+        }
+        return ids;
+    }
+
+    // 64-bit FNV-1a over the UTF-16 chars, followed by a murmur3 finalizer to spread the bits.
+    public static long fingerprint(CharSequence iri) {
+        long h = FNV_OFFSET;
+        for (int i = 0; i < iri.length(); i++) {
+            h ^= iri.charAt(i);
+            h *= FNV_PRIME;
+        }
+        return finish(h);
+    }
+
+    // Same value as fingerprint(CharSequence) for an IRI given as ASCII bytes, so byte-level parsers can
+    // fingerprint a span without decoding it. The caller must make sure every byte in the range is below 0x80.
+    public static long fingerprintAscii(byte[] bytes, int start, int end) {
+        long h = FNV_OFFSET;
+        for (int i = start; i < end; i++) {
+            h ^= bytes[i];
+            h *= FNV_PRIME;
+        }
+        return finish(h);
+    }
+
+    private static long finish(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    public static int instanceId(long fingerprint) {
+        int id = (int) (fingerprint ^ (fingerprint >>> 32)) | Integer.MIN_VALUE;
+        return id == -1 ? Integer.MIN_VALUE : id;
+    }
+
+    public static boolean isInstanceId(int id) {
+        return id < -1;
+    }
+}
@@ -0,0 +1,322 @@
+package cs.utils;
+
+import cs.cose.encoders.TieredEncoder;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.riot.system.StreamRDFBase;
+import org.apache.jena.vocabulary.RDF;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+// Facts about an N-Triples file gathered in one parallel streaming pass: triple count, distinct subjects (estimated
+// in constant memory), predicate and class histograms and the dominant namespace. The result is cached in
+// <graph>.profile (a Properties file) keyed by the size, mtime and a content hash of the source, so later stages and
+// runs read it instead of parsing again.
+public class DatasetProfiler {
+    // The content hash covers this many bytes at the start and at the end of the file.
+    private static final int HASH_SAMPLE_BYTES = 1 << 20;
+    // Distinct subject namespaces counted per worker; more are ignored rather than letting the map grow unbounded.
+    private static final int MAX_NAMESPACES = 10_000;
+    private static final String DEFAULT_NAMESPACE = "http://example.org/";
+    // 2: subjects are estimated and namespaces weighted by triples.
+    private static final int VERSION = 2;
+
+    private DatasetProfiler() {
+    }
+
+    public static final class Profile {
+        private final long tripleCount;
+        private final long subjectCount;
+        private final String namespace;
+        private final Map<String, Long> predicateCounts;
+        private final Map<String, Long> classCounts;
+
+        Profile(long tripleCount, long subjectCount, String namespace, Map<String, Long> predicateCounts, Map<String, Long> classCounts) {
+            this.tripleCount = tripleCount;
+            this.subjectCount = subjectCount;
+            this.namespace = namespace;
+            this.predicateCounts = Collections.unmodifiableMap(predicateCounts);
+            this.classCounts = Collections.unmodifiableMap(classCounts);
+        }
+
+        public long getTripleCount() {
+            return tripleCount;
+        }
+
+        // Estimated, within about 1%.
+        public long getSubjectCount() {
+            return subjectCount;
+        }
+
+        public String getNamespace() {
+            return namespace;
+        }
+
+        // Triples per predicate IRI.
+        public Map<String, Long> getPredicateCounts() {
+            return predicateCounts;
+        }
+
+        // rdf:type triples per class IRI.
+        public Map<String, Long> getClassCounts() {
+            return classCounts;
+        }
+    }
+
+    public static Path profilePath(String graphPath) {
+        return Paths.get(graphPath + ".profile");
+    }
+
+    // Reads the sidecar if it still describes the file, otherwise profiles the file and writes a new sidecar. A sidecar
+    // that cannot be written only costs the next run another pass, so the profile is returned anyway.
+    public static Profile profile(String graphPath) {
+        Path source = Paths.get(graphPath);
+        Path sidecar = profilePath(graphPath);
+        try {
+            long size = Files.size(source);
+            long mtime = Files.getLastModifiedTime(source).toMillis();
+            String hash = contentHash(source);
+            if (Files.exists(sidecar)) {
+                Profile cached = read(sidecar, size, mtime, hash);
+                if (cached != null) {
+                    return cached;
+                }
+            }
+            long start = System.nanoTime();
+            Profile profile = compute(graphPath);
+            try {
+                write(sidecar, profile, size, mtime, hash);
+            } catch (IOException e) {
+                System.err.println("Could not write profile " + sidecar + ": " + e.getMessage());
+            }
+            System.out.println("Profiled " + graphPath + ": " + profile.tripleCount + " triples, " + profile.subjectCount
+                    + " subjects in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+            return profile;
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to profile " + graphPath + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static Profile compute(String graphPath) {
+        int threads = Runtime.getRuntime().availableProcessors();
+        List<ProfileStream> partials = new ParallelNTriplesLoader(threads).parse(graphPath, ProfileStream::new);
+        long triples = 0;
+        DistinctCount subjects = new DistinctCount();
+        Map<String, Long> predicates = new TreeMap<>();
+        Map<String, Long> classes = new TreeMap<>();
+        Map<String, Long> namespaces = new HashMap<>();
+        for (ProfileStream partial : partials) {
+            triples += partial.triples;
+            subjects.addAll(partial.subjects);
+            partial.predicates.forEach((k, v) -> predicates.merge(k, v, Long::sum));
+            partial.classes.forEach((k, v) -> classes.merge(k, v, Long::sum));
+            partial.namespaces.forEach((k, v) -> namespaces.merge(k, v, Long::sum));
+        }
+        return new Profile(triples, subjects.estimate(), dominantNamespace(namespaces, predicates), predicates, classes);
+    }
+
+    // http(s) namespace with the most subject triples, ties broken lexically; falls back to the predicates.
+    private static String dominantNamespace(Map<String, Long> subjectNamespaces, Map<String, Long> predicates) {
+        String best = mostFrequent(subjectNamespaces);
+        if (best == null) {
+            Map<String, Long> predicateNamespaces = new HashMap<>();
+            predicates.forEach((p, count) -> {
+                String namespace = Utils.getNamespace(p);
+                if (isHttp(namespace)) {
+                    predicateNamespaces.merge(namespace, count, Long::sum);
+                }
+            });
+            best = mostFrequent(predicateNamespaces);
+        }
+        return best != null ? best : DEFAULT_NAMESPACE;
+    }
+
+    private static String mostFrequent(Map<String, Long> counts) {
+        String best = null;
+        long bestCount = 0;
+        for (Map.Entry<String, Long> entry : counts.entrySet()) {
+            if (entry.getValue() > bestCount || (entry.getValue() == bestCount && best != null && entry.getKey().compareTo(best) < 0)) {
+                best = entry.getKey();
+                bestCount = entry.getValue();
+            }
+        }
+        return best;
+    }
+
+    private static boolean isHttp(String namespace) {
+        return namespace != null && (namespace.startsWith("http://") || namespace.startsWith("https://"));
+    }
+
+    // CRC32 of the first and last HASH_SAMPLE_BYTES of the file. Together with size and mtime this catches files
+    // rewritten in place without reading all of a multi-gigabyte dump on every run.
+    private static String contentHash(Path source) throws IOException {
+        CRC32 crc = new CRC32();
+        try (FileChannel channel = FileChannel.open(source, StandardOpenOption.READ)) {
+            long size = channel.size();
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(size, HASH_SAMPLE_BYTES));
+            readFully(channel, buffer, 0);
+            crc.update(buffer.array(), 0, buffer.position());
+            if (size > HASH_SAMPLE_BYTES) {
+                buffer.clear();
+                readFully(channel, buffer, Math.max(HASH_SAMPLE_BYTES, size - HASH_SAMPLE_BYTES));
+                crc.update(buffer.array(), 0, buffer.position());
+            }
+        }
+        return Long.toHexString(crc.getValue());
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                break;
+            }
+        }
+    }
+
+    private static Profile read(Path sidecar, long size, long mtime, String hash) throws IOException {
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(sidecar)) {
+            properties.load(in);
+        }
+        if (!String.valueOf(VERSION).equals(properties.getProperty("version"))
+                || !String.valueOf(size).equals(properties.getProperty("source.size"))
+                || !String.valueOf(mtime).equals(properties.getProperty("source.mtime"))
+                || !hash.equals(properties.getProperty("source.hash"))) {
+            return null;
+        }
+        Map<String, Long> predicates = new TreeMap<>();
+        Map<String, Long> classes = new TreeMap<>();
+        for (String key : properties.stringPropertyNames()) {
+            if (key.startsWith("predicate.")) {
+                predicates.put(key.substring("predicate.".length()), Long.parseLong(properties.getProperty(key)));
+            } else if (key.startsWith("class.")) {
+                classes.put(key.substring("class.".length()), Long.parseLong(properties.getProperty(key)));
+            }
+        }
+        return new Profile(Long.parseLong(properties.getProperty("triples")), Long.parseLong(properties.getProperty("subjects")),
+                properties.getProperty("namespace"), predicates, classes);
+    }
+
+    private static void write(Path sidecar, Profile profile, long size, long mtime, String hash) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("version", String.valueOf(VERSION));
+        properties.setProperty("source.size", String.valueOf(size));
+        properties.setProperty("source.mtime", String.valueOf(mtime));
+        properties.setProperty("source.hash", hash);
+        properties.setProperty("triples", String.valueOf(profile.tripleCount));
+        properties.setProperty("subjects", String.valueOf(profile.subjectCount));
+        properties.setProperty("namespace", profile.namespace);
+        profile.predicateCounts.forEach((p, count) -> properties.setProperty("predicate." + p, String.valueOf(count)));
+        profile.classCounts.forEach((c, count) -> properties.setProperty("class." + c, String.valueOf(count)));
+        Path tmp = sidecar.resolveSibling(sidecar.getFileName() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(tmp)) {
+            properties.store(out, "Dataset profile");
+        }
+        Files.move(tmp, sidecar, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Per-worker counters. Each triple is parsed by exactly one worker, so namespaces are weighted by triples rather
+    // than by distinct subjects, which two workers could both see; a run of triples of one subject is counted at once.
+    private static final class ProfileStream extends StreamRDFBase {
+        private final Node rdfType = RDF.type.asNode();
+        private final DistinctCount subjects = new DistinctCount();
+        private final Map<String, Long> predicates = new HashMap<>();
+        private final Map<String, Long> classes = new HashMap<>();
+        private final Map<String, Long> namespaces = new HashMap<>();
+        private long triples;
+        private Node runSubject;
+        private long runTriples;
+
+        @Override
+        public void triple(Triple triple) {
+            triples++;
+            Node subject = triple.getSubject();
+            if (subject.equals(runSubject)) {
+                runTriples++;
+            } else {
+                countRun();
+                runSubject = subject;
+                runTriples = 1;
+                subjects.add(TieredEncoder.fingerprint(subject.isURI() ? subject.getURI() : "_:" + subject.getBlankNodeLabel()));
+            }
+            Node predicate = triple.getPredicate();
+            predicates.merge(predicate.getURI(), 1L, Long::sum);
+            if (rdfType.equals(predicate) && triple.getObject().isURI()) {
+                classes.merge(triple.getObject().getURI(), 1L, Long::sum);
+            }
+        }
+
+        @Override
+        public void finish() {
+            countRun();
+            runSubject = null;
+        }
+
+        private void countRun() {
+            if (runSubject == null || !runSubject.isURI()) {
+                return;
+            }
+            String namespace = Utils.getNamespace(runSubject.getURI());
+            if (isHttp(namespace) && (namespaces.size() < MAX_NAMESPACES || namespaces.containsKey(namespace))) {
+                namespaces.merge(namespace, runTriples, Long::sum);
+            }
+        }
+    }
+
+    // HyperLogLog sketch of 64-bit hashes: 2^14 one-byte registers (16 KB) give about 0.8% standard error however
+    // many subjects there are, and the sketches of the workers merge by taking the larger register.
+    private static final class DistinctCount {
+        private static final int PRECISION = 14;
+        private final byte[] registers = new byte[1 << PRECISION];
+
+        void add(long hash) {
+            int index = (int) (hash >>> (64 - PRECISION));
+            // Leading zeros of the remaining bits plus one; the marker bit caps the rank.
+            int rank = Long.numberOfLeadingZeros((hash << PRECISION) | (1L << (PRECISION - 1))) + 1;
+            if (rank > registers[index]) {
+                registers[index] = (byte) rank;
+            }
+        }
+
+        void addAll(DistinctCount other) {
+            for (int i = 0; i < registers.length; i++) {
+                registers[i] = (byte) Math.max(registers[i], other.registers[i]);
+            }
+        }
+
+        long estimate() {
+            int m = registers.length;
+            double sum = 0;
+            int zeros = 0;
+            for (byte register : registers) {
+                sum += Math.scalb(1.0, -register);
+                if (register == 0) {
+                    zeros++;
+                }
+            }
+            double estimate = 0.7213 / (1 + 1.079 / m) * m * m / sum;
+            if (estimate <= 2.5 * m && zeros > 0) {
+                // Linear counting is more accurate while many registers are still empty.
+                estimate = m * Math.log((double) m / zeros);
+            }
+            return Math.round(estimate);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package cs.utils;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Finds the dictionary ids still referenced by the stats and rewrites the stats after the dictionary has been
+// renumbered. Negative ids (the -1 marker and fingerprinted instances) are not dictionary ids and are kept as they are.
+public class DictionaryCompactor {
+
+    public static BitSet referencedIds(Map<Integer, Map<Integer, Set<Integer>>> cpot,
+                                       Map<Tuple3<Integer, Integer, Integer>, SupportConfidence> sts,
+                                       Map<Integer, Integer> cec) {
+        BitSet referenced = new BitSet();
+        cpot.forEach((classId, props) -> {
+            mark(referenced, classId);
+            props.forEach((propertyId, objectTypes) -> {
+                mark(referenced, propertyId);
+                objectTypes.forEach(objectType -> mark(referenced, objectType));
+            });
+        });
+        sts.keySet().forEach(triplet -> {
+            mark(referenced, triplet._1());
+            mark(referenced, triplet._2());
+            mark(referenced, triplet._3());
+        });
+        cec.keySet().forEach(classId -> mark(referenced, classId));
+        return referenced;
+    }
+
+    // Rewrites the three structures in place, so holders of the map references see the new ids.
+    public static void remapStats(int[] remap,
+                                  Map<Integer, Map<Integer, Set<Integer>>> cpot,
+                                  Map<Tuple3<Integer, Integer, Integer>, SupportConfidence> sts,
+                                  Map<Integer, Integer> cec) {
+        Map<Integer, Map<Integer, Set<Integer>>> remappedCpot = new HashMap<>();
+        cpot.forEach((classId, props) -> {
+            Map<Integer, Set<Integer>> remappedProps = new ConcurrentHashMap<>();
+            props.forEach((propertyId, objectTypes) -> {
+                Set<Integer> remappedObjectTypes = ConcurrentHashMap.newKeySet();
+                objectTypes.forEach(objectType -> remappedObjectTypes.add(remap(remap, objectType)));
+                remappedProps.put(remap(remap, propertyId), remappedObjectTypes);
+            });
+            remappedCpot.put(remap(remap, classId), remappedProps);
+        });
+        cpot.clear();
+        cpot.putAll(remappedCpot);
+
+        Map<Tuple3<Integer, Integer, Integer>, SupportConfidence> remappedSts = new HashMap<>();
+        sts.forEach((triplet, sc) -> remappedSts.put(
+                new Tuple3<>(remap(remap, triplet._1()), remap(remap, triplet._2()), remap(remap, triplet._3())), sc));
+        sts.clear();
+        sts.putAll(remappedSts);
+
+        Map<Integer, Integer> remappedCec = new HashMap<>();
+        cec.forEach((classId, count) -> remappedCec.put(remap(remap, classId), count));
+        cec.clear();
+        cec.putAll(remappedCec);
+    }
+
+    private static void mark(BitSet referenced, Integer id) {
+        if (id != null && id >= 0) {
+            referenced.set(id);
+        }
+    }
+
+    private static int remap(int[] remap, Integer id) {
+        if (id < 0 || id >= remap.length) {
+            return id;
+        }
+        return remap[id];
+    }
+}
@@ -0,0 +1,434 @@
+package cs.utils;
+
+import cs.cose.encoders.ConcurrentStringEncoder;
+import cs.cose.encoders.Encoder;
+import cs.cose.encoders.MappedStringEncoder;
+import cs.cose.encoders.TieredEncoder;
+import org.apache.jena.datatypes.TypeMapper;
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFParser;
+import org.apache.jena.riot.system.StreamRDFBase;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.IntUnaryOperator;
+import java.util.stream.IntStream;
+
+// Binary, dictionary-encoded copy of an N-Triples file, made once and memory-mapped by later runs.
+// <graph>.triples holds a 32-byte header (magic, version, triple count, size and mtime of the source file)
+// followed by one record of four ints per triple: subject, predicate, object and the datatype of a literal object
+// (-1 otherwise). All ids refer to the MappedStringEncoder dictionary <graph>.triples.dict, in which IRIs are stored
+// as themselves, blank nodes as "_:label" and literals in N-Triples form without escaping ("lex", "lex"@lang,
+// "lex"^^<datatype>). The file is rebuilt when the size or mtime of the source no longer match the header.
+// <graph>.triples.blocks holds per-block skip metadata (see TripleBlockIndex), built on the first filtered scan.
+public class EncodedTripleFile implements Closeable {
+    public static final int RECORD_INTS = 4;
+    private static final int RECORD_SIZE = RECORD_INTS * Integer.BYTES;
+    private static final int MAGIC = 0x434F5354; // "COST"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final String RDF_TYPE = "http://www.w3.org/1999/02/22-rdf-syntax-ns#type";
+    private static final String RDFS_SUBCLASS_OF = "http://www.w3.org/2000/01/rdf-schema#subClassOf";
+    // New terms held on the heap during a conversion before they are flushed to the dictionary files.
+    private static final int CHECKPOINT_TERMS = 1 << 20;
+
+    private final Path path;
+    private final MappedFileBuffer records;
+    private final MappedStringEncoder dictionary;
+    private final long count;
+    private TripleBlockIndex blocks;
+
+    // Receives one encoded triple; datatype is -1 unless the object is a literal.
+    public interface TripleVisitor {
+        void triple(int subject, int predicate, int object, int datatype);
+    }
+
+    private EncodedTripleFile(Path path, MappedFileBuffer records, MappedStringEncoder dictionary, long count) {
+        this.path = path;
+        this.records = records;
+        this.dictionary = dictionary;
+        this.count = count;
+    }
+
+    public static Path triplesPath(String graphPath) {
+        return Paths.get(graphPath + ".triples");
+    }
+
+    // Opens the encoded copy of graphPath, converting the N-Triples file first if there is no up-to-date copy.
+    public static EncodedTripleFile openOrConvert(String graphPath) throws IOException {
+        Path source = Paths.get(graphPath);
+        Path target = triplesPath(graphPath);
+        long sourceSize = Files.size(source);
+        long sourceModified = Files.getLastModifiedTime(source).toMillis();
+        if (Files.exists(target) && Files.size(target) >= HEADER_SIZE) {
+            try (FileChannel channel = FileChannel.open(target, StandardOpenOption.READ)) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                channel.read(header, 0);
+                header.flip();
+                if (header.getInt() == MAGIC && header.getInt() == VERSION) {
+                    long count = header.getLong();
+                    if (header.getLong() == sourceSize && header.getLong() == sourceModified
+                            && Files.size(target) >= HEADER_SIZE + count * RECORD_SIZE) {
+                        return open(target, count);
+                    }
+                }
+            }
+            System.out.println("Encoded triples " + target + " are out of date; converting " + graphPath + " again.");
+        }
+        return open(target, convert(source, target, sourceSize, sourceModified));
+    }
+
+    private static EncodedTripleFile open(Path target, long count) throws IOException {
+        MappedFileBuffer records = MappedFileBuffer.open(target, HEADER_SIZE + count * RECORD_SIZE);
+        MappedStringEncoder dictionary = MappedStringEncoder.open(target + ".dict");
+        System.out.println("Opened " + count + " encoded triples from " + target);
+        return new EncodedTripleFile(target, records, dictionary, count);
+    }
+
+    // Single-threaded on purpose: blank node labels are only consistent within one parser. New terms are flushed to the
+    // dictionary files every CHECKPOINT_TERMS terms, so the heap holds a bounded number of them.
+    private static long convert(Path source, Path target, long sourceSize, long sourceModified) throws IOException {
+        Path tmpRecords = Paths.get(target + ".tmp");
+        Path tmpDictionary = Paths.get(target + ".tmp.dict");
+        MappedStringEncoder.delete(tmpDictionary.toString());
+        // Replaced by its checkpoint from within the parser callback.
+        MappedStringEncoder[] dictionary = {MappedStringEncoder.open(tmpDictionary.toString())};
+        int[] checkpointAt = {CHECKPOINT_TERMS};
+        long[] count = new long[1];
+        try (FileChannel channel = FileChannel.open(tmpRecords, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+             InputStream in = GraphInput.open(source.toString())) {
+            channel.position(HEADER_SIZE);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+            RDFParser.source(in).lang(Lang.NTRIPLES).parse(new StreamRDFBase() {
+                @Override
+                public void triple(Triple triple) {
+                    Node object = triple.getObject();
+                    MappedStringEncoder terms = dictionary[0];
+                    try {
+                        out.writeInt(terms.encode(term(triple.getSubject())));
+                        out.writeInt(terms.encode(term(triple.getPredicate())));
+                        out.writeInt(terms.encode(term(object)));
+                        out.writeInt(object.isLiteral() ? terms.encode(object.getLiteralDatatypeURI()) : -1);
+                        if (terms.size() >= checkpointAt[0]) {
+                            dictionary[0] = terms.checkpoint(ConcurrentStringEncoder::new);
+                            checkpointAt[0] = terms.size() + CHECKPOINT_TERMS;
+                        }
+                    } catch (IOException e) {
+                        throw new RuntimeException("Failed to write " + tmpRecords + ": " + e.getMessage(), e);
+                    }
+                    count[0]++;
+                }
+            });
+            out.flush();
+            channel.force(false);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putLong(count[0]).putLong(sourceSize).putLong(sourceModified).flip();
+            channel.write(header, 0);
+            channel.force(false);
+            dictionary[0].flush();
+        } finally {
+            dictionary[0].close();
+        }
+        // The dictionary goes first: a record file is only trusted once its dictionary is in place.
+        Files.move(Paths.get(tmpDictionary + ".idx"), Paths.get(target + ".dict.idx"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.move(tmpDictionary, Paths.get(target + ".dict"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.deleteIfExists(Paths.get(target + ".blocks"));
+        Files.move(tmpRecords, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        System.out.println("Converted " + source + " into " + count[0] + " encoded triples at " + target);
+        return count[0];
+    }
+
+    static String term(Node node) {
+        if (node.isURI()) {
+            return node.getURI();
+        }
+        if (node.isBlank()) {
+            return "_:" + node.getBlankNodeLabel();
+        }
+        String language = node.getLiteralLanguage();
+        if (language != null && !language.isEmpty()) {
+            return "\"" + node.getLiteralLexicalForm() + "\"@" + language;
+        }
+        return "\"" + node.getLiteralLexicalForm() + "\"^^<" + node.getLiteralDatatypeURI() + ">";
+    }
+
+    public long size() {
+        return count;
+    }
+
+    public MappedStringEncoder getDictionary() {
+        return dictionary;
+    }
+
+    public void forEach(TripleVisitor visitor) {
+        forEach(0, count, visitor);
+    }
+
+    // Visits the triples with index in [from, to) straight from the mapping; ranges can be scanned concurrently.
+    public void forEach(long from, long to, TripleVisitor visitor) {
+        long pos = HEADER_SIZE + from * RECORD_SIZE;
+        for (long i = from; i < to; i++, pos += RECORD_SIZE) {
+            visitor.triple(records.getInt(pos), records.getInt(pos + 4), records.getInt(pos + 8), records.getInt(pos + 12));
+        }
+    }
+
+    // Id of a term in this file's dictionary, or -1 if the file does not contain it.
+    public int termId(String term) {
+        return dictionary.isEncoded(term) ? dictionary.encode(term) : -1;
+    }
+
+    // Block summaries from <graph>.triples.blocks, built on first use.
+    public synchronized TripleBlockIndex blockIndex() throws IOException {
+        if (blocks == null) {
+            blocks = TripleBlockIndex.loadOrBuild(Paths.get(path + ".blocks"), this, termId(RDF_TYPE));
+        }
+        return blocks;
+    }
+
+    // Visits the triples of the blocks that may match the filter; the triples themselves are not filtered.
+    public void forEach(TripleBlockIndex.Filter filter, TripleVisitor visitor) throws IOException {
+        TripleBlockIndex index = blockIndex();
+        for (int block = 0; block < index.blockCount(); block++) {
+            if (index.matches(block, filter)) {
+                long from = (long) block * TripleBlockIndex.BLOCK_SIZE;
+                forEach(from, Math.min(count, from + TripleBlockIndex.BLOCK_SIZE), visitor);
+            }
+        }
+    }
+
+    // Term of a dictionary id of this file.
+    public String term(int id) {
+        return dictionary.decode(id);
+    }
+
+    // Sorted, distinct ids of the subjects typed with any of the given classes; only blocks with rdf:type triples
+    // naming one of them are read.
+    public int[] subjectsOfClasses(int... classes) throws IOException {
+        int rdfType = termId(RDF_TYPE);
+        if (rdfType < 0 || classes.length == 0) {
+            return new int[0];
+        }
+        int[] sortedClasses = classes.clone();
+        Arrays.sort(sortedClasses);
+        IntStream.Builder subjects = IntStream.builder();
+        forEach(TripleBlockIndex.Filter.any().withPredicates(rdfType).withClasses(classes), (s, p, o, datatype) -> {
+            if (p == rdfType && Arrays.binarySearch(sortedClasses, o) >= 0) {
+                subjects.add(s);
+            }
+        });
+        return subjects.build().sorted().distinct().toArray();
+    }
+
+    // The classes and all their rdfs:subClassOf descendants stated in this file, which SHACL counts as instances of
+    // a target class; only blocks with rdfs:subClassOf triples are read.
+    public int[] withSubclasses(int... classes) throws IOException {
+        Set<Integer> closure = new HashSet<>();
+        for (int c : classes) {
+            closure.add(c);
+        }
+        int subClassOf = termId(RDFS_SUBCLASS_OF);
+        if (subClassOf >= 0) {
+            Map<Integer, List<Integer>> subclasses = new HashMap<>();
+            forEach(TripleBlockIndex.Filter.any().withPredicates(subClassOf), (s, p, o, datatype) -> {
+                if (p == subClassOf) {
+                    subclasses.computeIfAbsent(o, k -> new ArrayList<>()).add(s);
+                }
+            });
+            Deque<Integer> pending = new ArrayDeque<>(closure);
+            while (!pending.isEmpty()) {
+                for (int subclass : subclasses.getOrDefault(pending.poll(), Collections.emptyList())) {
+                    if (closure.add(subclass)) {
+                        pending.add(subclass);
+                    }
+                }
+            }
+        }
+        return closure.stream().mapToInt(Integer::intValue).sorted().toArray();
+    }
+
+    // Visits every triple whose subject is in sortedSubjects, skipping blocks that hold none of them.
+    public void forEachOfSubjects(int[] sortedSubjects, TripleVisitor visitor) throws IOException {
+        forEachOfSubjects(sortedSubjects, -1, visitor);
+    }
+
+    // Same, for the triples with the given predicate only (any predicate if it is -1).
+    public void forEachOfSubjects(int[] sortedSubjects, int predicate, TripleVisitor visitor) throws IOException {
+        if (sortedSubjects.length == 0) {
+            return;
+        }
+        TripleBlockIndex.Filter filter = TripleBlockIndex.Filter.any().withSubjects(sortedSubjects);
+        if (predicate >= 0) {
+            filter.withPredicates(predicate);
+        }
+        forEach(filter, (s, p, o, datatype) -> {
+            if ((predicate < 0 || p == predicate) && Arrays.binarySearch(sortedSubjects, s) >= 0) {
+                visitor.triple(s, p, o, datatype);
+            }
+        });
+    }
+
+    // Re-encodes the triples against another dictionary as consecutive [subjectId, predicateId, objectTypeId] ints,
+    // the layout EncodedTripleStream produces: subjects and non-rdf:type IRI objects as entities, literals by their
+    // datatype, blank nodes as -1. Each term of this file is translated once, on first use; the translations are
+    // kept for the terms used in each role only, so literal values never take space.
+    public void encodeInto(Encoder target, int batchSize, Consumer<int[]> consumer) {
+        TieredEncoder tiered = target instanceof TieredEncoder ? (TieredEncoder) target : null;
+        IdRemap schemaIds = new IdRemap(id -> target.encode(dictionary.decode(id)));
+        IdRemap instanceIds = new IdRemap(id -> {
+            String term = dictionary.decode(id);
+            return term.startsWith("_:") ? -1 : tiered != null ? tiered.encodeInstance(term) : target.encode(term);
+        });
+        int rdfType = dictionary.isEncoded(RDF_TYPE) ? dictionary.encode(RDF_TYPE) : -1;
+        int[] buffer = new int[3 * batchSize];
+        int[] filled = new int[1];
+        forEach((s, p, o, datatype) -> {
+            int n = filled[0];
+            buffer[n] = instanceIds.get(s);
+            buffer[n + 1] = schemaIds.get(p);
+            if (datatype >= 0) {
+                buffer[n + 2] = schemaIds.get(datatype);
+            } else if (p == rdfType) {
+                buffer[n + 2] = dictionary.decode(o).startsWith("_:") ? -1 : schemaIds.get(o);
+            } else {
+                buffer[n + 2] = instanceIds.get(o);
+            }
+            filled[0] = n + 3;
+            if (filled[0] == buffer.length) {
+                consumer.accept(buffer);
+                filled[0] = 0;
+            }
+        });
+        if (filled[0] > 0) {
+            consumer.accept(Arrays.copyOf(buffer, filled[0]));
+        }
+    }
+
+    // Model of the triples of the given subjects only, e.g. the focus nodes of violations.
+    public Model toModel(int[] sortedSubjects) throws IOException {
+        return toModel(sortedSubjects, -1);
+    }
+
+    // Model of the given subjects' triples with the given predicate, e.g. rdf:type (any predicate if it is -1).
+    public Model toModel(int[] sortedSubjects, int predicate) throws IOException {
+        Model model = ModelFactory.createDefaultModel();
+        Graph graph = model.getGraph();
+        Map<Integer, Node> nodes = new HashMap<>();
+        forEachOfSubjects(sortedSubjects, predicate, (s, p, o, datatype) -> graph.add(Triple.create(node(nodes, s), node(nodes, p), node(nodes, o))));
+        return model;
+    }
+
+    // Id of rdf:type in this file's dictionary, or -1.
+    public int rdfTypeId() {
+        return termId(RDF_TYPE);
+    }
+
+    // One Node per id; a map, since a subset uses few of the dictionary's ids.
+    private Node node(Map<Integer, Node> nodes, int id) {
+        return nodes.computeIfAbsent(id, k -> toNode(dictionary.decode(k)));
+    }
+
+    static Node toNode(String term) {
+        if (term.startsWith("_:")) {
+            return NodeFactory.createBlankNode(term.substring(2));
+        }
+        if (!term.startsWith("\"")) {
+            return NodeFactory.createURI(term);
+        }
+        int close = term.lastIndexOf('"');
+        String lexical = term.substring(1, close);
+        String suffix = term.substring(close + 1);
+        if (suffix.startsWith("@")) {
+            return NodeFactory.createLiteral(lexical, suffix.substring(1));
+        }
+        String datatype = suffix.substring(3, suffix.length() - 1);
+        return NodeFactory.createLiteral(lexical, TypeMapper.getInstance().getSafeTypeByName(datatype));
+    }
+
+    // Open-addressing map from ids of this file to their translation, filled on first lookup. Single-threaded.
+    private static final class IdRemap {
+        private final IntUnaryOperator translate;
+        // Id + 1, so that 0 marks a free slot.
+        private int[] keys = new int[1024];
+        private int[] values = new int[1024];
+        private int size;
+
+        IdRemap(IntUnaryOperator translate) {
+            this.translate = translate;
+        }
+
+        int get(int id) {
+            int mask = keys.length - 1;
+            int slot = hash(id) & mask;
+            while (keys[slot] != 0) {
+                if (keys[slot] == id + 1) {
+                    return values[slot];
+                }
+                slot = (slot + 1) & mask;
+            }
+            int value = translate.applyAsInt(id);
+            keys[slot] = id + 1;
+            values[slot] = value;
+            if (++size * 2 > keys.length) {
+                grow();
+            }
+            return value;
+        }
+
+        private static int hash(int id) {
+            int h = id * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+
+        private void grow() {
+            int[] oldKeys = keys;
+            int[] oldValues = values;
+            keys = new int[oldKeys.length * 2];
+            values = new int[oldValues.length * 2];
+            int mask = keys.length - 1;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != 0) {
+                    int slot = hash(oldKeys[i] - 1) & mask;
+                    while (keys[slot] != 0) {
+                        slot = (slot + 1) & mask;
+                    }
+                    keys[slot] = oldKeys[i];
+                    values[slot] = oldValues[i];
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        records.close();
+        dictionary.close();
+    }
+}
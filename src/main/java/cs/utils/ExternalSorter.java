@@ -0,0 +1,275 @@
+package cs.utils;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+// Disk-based merge sort of line-oriented files such as N-Triples. Lines are read into batches of about
+// memoryBudget / threads bytes, each batch is sorted on a worker thread and spilled as a run into the spill
+// directory, and runs are merged fanIn at a time (in parallel while more than fanIn remain) until one is left.
+// Lines are ordered by the extracted key and then by the whole line, so the output is deterministic and equal
+// triples end up adjacent. Blank lines and '#' comments are dropped.
+public class ExternalSorter {
+    // Rough per-line heap cost on top of the characters: String and array headers plus the key and index slots.
+    private static final int LINE_OVERHEAD = 64;
+
+    private final long memoryBudget;
+    private final Path spillDirectory;
+    private final int fanIn;
+    private final int threads;
+
+    // Extracts the sort key of one line.
+    public interface KeyExtractor {
+        String key(String line);
+    }
+
+    public static final KeyExtractor BY_SUBJECT = byField(0);
+    public static final KeyExtractor BY_PREDICATE = byField(1);
+    public static final KeyExtractor BY_OBJECT = byField(2);
+    public static final KeyExtractor BY_LINE = line -> line;
+
+    public ExternalSorter(long memoryBudget, Path spillDirectory, int fanIn, int threads) {
+        this.memoryBudget = memoryBudget;
+        this.spillDirectory = spillDirectory;
+        this.fanIn = Math.max(2, fanIn);
+        this.threads = Math.max(1, threads);
+    }
+
+    // N-Triples term at position 0 (subject), 1 (predicate) or 2 (object). The object runs up to the final " .",
+    // since literals can contain whitespace.
+    public static KeyExtractor byField(int field) {
+        return line -> ntriplesField(line, field);
+    }
+
+    static String ntriplesField(String line, int field) {
+        int start = 0;
+        for (int f = 0; f < field && f < 2; f++) {
+            start = skipSpaces(line, termEnd(line, start));
+        }
+        int end;
+        if (field < 2) {
+            end = termEnd(line, start);
+        } else {
+            end = line.length();
+            while (end > start && Character.isWhitespace(line.charAt(end - 1))) {
+                end--;
+            }
+            if (end > start && line.charAt(end - 1) == '.') {
+                end--;
+            }
+            while (end > start && Character.isWhitespace(line.charAt(end - 1))) {
+                end--;
+            }
+        }
+        return line.substring(start, end);
+    }
+
+    private static int termEnd(String line, int i) {
+        while (i < line.length() && line.charAt(i) != ' ' && line.charAt(i) != '\t') {
+            i++;
+        }
+        return i;
+    }
+
+    private static int skipSpaces(String line, int i) {
+        while (i < line.length() && (line.charAt(i) == ' ' || line.charAt(i) == '\t')) {
+            i++;
+        }
+        return i;
+    }
+
+    public void sort(Path input, Path output, KeyExtractor key) throws IOException {
+        sort(Collections.singletonList(input), output, key);
+    }
+
+    // Sorts the lines of all inputs together into one output, e.g. the part files of a dataset.
+    public void sort(List<Path> inputs, Path output, KeyExtractor key) throws IOException {
+        Files.createDirectories(spillDirectory);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        // Every run and merge file, recorded as soon as it is created, so that a failure anywhere leaves none behind.
+        Set<Path> spilled = ConcurrentHashMap.newKeySet();
+        List<Path> runs = new ArrayList<>();
+        try {
+            runs.addAll(createRuns(inputs, key, executor, spilled));
+            System.out.println("Sorted " + (inputs.size() == 1 ? inputs.get(0) : inputs.size() + " files") + " into "
+                    + runs.size() + " runs in " + spillDirectory);
+            while (runs.size() > fanIn) {
+                List<Future<Path>> merged = new ArrayList<>();
+                for (int i = 0; i < runs.size(); i += fanIn) {
+                    List<Path> group = new ArrayList<>(runs.subList(i, Math.min(runs.size(), i + fanIn)));
+                    merged.add(executor.submit(() -> {
+                        Path run = Files.createTempFile(spillDirectory, "merge-", ".run");
+                        spilled.add(run);
+                        merge(group, run, key);
+                        return run;
+                    }));
+                }
+                runs = collect(merged);
+            }
+            merge(runs, output, key);
+        } finally {
+            executor.shutdownNow();
+            // Tasks still writing a run would otherwise create it after the cleanup.
+            try {
+                executor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            for (Path run : spilled) {
+                Files.deleteIfExists(run);
+            }
+        }
+    }
+
+    private List<Path> createRuns(List<Path> inputs, KeyExtractor key, ExecutorService executor, Set<Path> spilled) throws IOException {
+        long batchBudget = Math.max(1 << 20, memoryBudget / threads);
+        // At most `threads` batches are in memory at once: one being read, the rest being sorted.
+        Semaphore inFlight = new Semaphore(threads);
+        List<Future<Path>> runs = new ArrayList<>();
+        List<String> batch = new ArrayList<>();
+        long batchBytes = 0;
+        for (Path input : inputs) {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(GraphInput.open(input.toString()), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.isEmpty() || line.charAt(0) == '#') {
+                        continue;
+                    }
+                    batch.add(line);
+                    batchBytes += 2L * line.length() + LINE_OVERHEAD;
+                    if (batchBytes >= batchBudget) {
+                        runs.add(spill(batch, key, executor, inFlight, spilled));
+                        batch = new ArrayList<>();
+                        batchBytes = 0;
+                    }
+                }
+            }
+        }
+        if (!batch.isEmpty()) {
+            runs.add(spill(batch, key, executor, inFlight, spilled));
+        }
+        return collect(runs);
+    }
+
+    private Future<Path> spill(List<String> batch, KeyExtractor key, ExecutorService executor, Semaphore inFlight,
+                               Set<Path> spilled) throws IOException {
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while sorting", e);
+        }
+        return executor.submit(() -> {
+            try {
+                String[] keys = new String[batch.size()];
+                Integer[] order = new Integer[batch.size()];
+                for (int i = 0; i < keys.length; i++) {
+                    keys[i] = key.key(batch.get(i));
+                    order[i] = i;
+                }
+                Arrays.sort(order, Comparator.<Integer, String>comparing(i -> keys[i]).thenComparing(batch::get));
+                Path run = Files.createTempFile(spillDirectory, "run-", ".run");
+                spilled.add(run);
+                try (BufferedWriter writer = Files.newBufferedWriter(run, StandardCharsets.UTF_8)) {
+                    for (Integer i : order) {
+                        writer.write(batch.get(i));
+                        writer.newLine();
+                    }
+                }
+                return run;
+            } finally {
+                inFlight.release();
+            }
+        });
+    }
+
+    // k-way merge of sorted runs; the inputs are deleted once merged.
+    private void merge(List<Path> runs, Path output, KeyExtractor key) throws IOException {
+        PriorityQueue<RunCursor> queue = new PriorityQueue<>(Comparator.<RunCursor, String>comparing(c -> c.key).thenComparing(c -> c.line));
+        List<RunCursor> cursors = new ArrayList<>();
+        try (BufferedWriter writer = Files.newBufferedWriter(output, StandardCharsets.UTF_8)) {
+            for (Path run : runs) {
+                RunCursor cursor = new RunCursor(Files.newBufferedReader(run, StandardCharsets.UTF_8), key);
+                cursors.add(cursor);
+                if (cursor.advance()) {
+                    queue.add(cursor);
+                }
+            }
+            while (!queue.isEmpty()) {
+                RunCursor cursor = queue.poll();
+                writer.write(cursor.line);
+                writer.newLine();
+                if (cursor.advance()) {
+                    queue.add(cursor);
+                }
+            }
+        } finally {
+            for (RunCursor cursor : cursors) {
+                cursor.reader.close();
+            }
+        }
+        for (Path run : runs) {
+            if (!run.equals(output)) {
+                Files.deleteIfExists(run);
+            }
+        }
+    }
+
+    private static List<Path> collect(List<Future<Path>> futures) throws IOException {
+        List<Path> paths = new ArrayList<>();
+        try {
+            for (Future<Path> future : futures) {
+                paths.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while sorting", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            throw new IOException("Sort failed: " + e.getCause().getMessage(), e.getCause());
+        }
+        return paths;
+    }
+
+    private static final class RunCursor {
+        private final BufferedReader reader;
+        private final KeyExtractor extractor;
+        private String line;
+        private String key;
+
+        RunCursor(BufferedReader reader, KeyExtractor extractor) {
+            this.reader = reader;
+            this.extractor = extractor;
+        }
+
+        boolean advance() throws IOException {
+            line = reader.readLine();
+            key = line == null ? null : extractor.key(line);
+            return line != null;
+        }
+    }
+}
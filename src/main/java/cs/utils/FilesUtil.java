@@ -116,7 +116,14 @@ public class FilesUtil {
 
     public static String getFileName(String path) {
         File file = new File(path);
-        return FilenameUtils.removeExtension(file.getName());
+        // A directory or glob of part files is named after the directory.
+        if (GraphFiles.isGlob(path)) {
+            file = file.getAbsoluteFile().getParentFile();
+        }
+        if (file.isDirectory()) {
+            return file.getName();
+        }
+        return FilenameUtils.removeExtension(GraphInput.stripCompressionSuffix(file.getName()));
     }
 
     // Save a Jena RDF Model to a file in a specified format.
@@ -0,0 +1,93 @@
+package cs.utils;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+// Resolves a graph path to the N-Triples files it stands for: a single file, a directory (every .nt, .nt.gz and
+// .nt.bz2 file directly inside it) or a glob in the last path element, e.g. /data/dbpedia/*_en.nt.bz2. Dumps that
+// come as part files are ingested file by file on several threads, which needs no byte-range splitting.
+public class GraphFiles {
+    private GraphFiles() {
+    }
+
+    public static boolean isGlob(String path) {
+        String name = Paths.get(path).getFileName().toString();
+        return name.indexOf('*') >= 0 || name.indexOf('?') >= 0 || name.indexOf('[') >= 0 || name.indexOf('{') >= 0;
+    }
+
+    // True if the path names a directory or a glob rather than a single file.
+    public static boolean isMultiFile(String path) {
+        return isGlob(path) || Files.isDirectory(Paths.get(path));
+    }
+
+    // The files of the path in name order; a plain file resolves to itself.
+    public static List<String> resolve(String path) {
+        if (!isMultiFile(path)) {
+            return Collections.singletonList(path);
+        }
+        Path directory = isGlob(path) ? Paths.get(path).toAbsolutePath().getParent() : Paths.get(path);
+        PathMatcher matcher = isGlob(path)
+                ? FileSystems.getDefault().getPathMatcher("glob:" + Paths.get(path).getFileName())
+                : file -> true;
+        List<String> files = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+            for (Path entry : entries) {
+                // Sidecars such as <file>.nt.triples or <file>.nt.profile never pass the N-Triples name check.
+                if (Files.isRegularFile(entry) && matcher.matches(entry.getFileName()) && isNTriples(entry.getFileName().toString())) {
+                    files.add(entry.toString());
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to list " + directory + ": " + e.getMessage(), e);
+        }
+        if (files.isEmpty()) {
+            throw new IllegalArgumentException("No N-Triples files found for " + path);
+        }
+        Collections.sort(files);
+        return files;
+    }
+
+    private static boolean isNTriples(String fileName) {
+        return GraphInput.stripCompressionSuffix(fileName).endsWith(".nt");
+    }
+
+    // Applies the task to every file on up to `threads` threads and returns the results in file order.
+    public static <T> List<T> forEachFile(List<String> files, int threads, Function<String, T> task) {
+        if (files.size() == 1) {
+            return Collections.singletonList(task.apply(files.get(0)));
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, files.size())));
+        try {
+            List<Future<T>> futures = new ArrayList<>();
+            for (String file : files) {
+                futures.add(executor.submit(() -> task.apply(file)));
+            }
+            List<T> results = new ArrayList<>();
+            for (Future<T> future : futures) {
+                results.add(future.get());
+            }
+            return results;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while reading graph files", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof RuntimeException ? (RuntimeException) cause : new RuntimeException(cause.getMessage(), cause);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,348 @@
+package cs.utils;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+
+// Opens graph files that may be gzip (.gz) or bzip2 (.bz2) compressed. Decompression always runs on other threads
+// than the caller, so it overlaps with parsing. Files made of independent members are decompressed in parallel and
+// reassembled in order: BGZF gzip (bgzip), whose block sizes are in the headers, and multi-stream bzip2 (pbzip2, lbzip2),
+// whose stream starts are found by their magic bytes. Any other gzip or bzip2 file is inflated by one background thread.
+public final class GraphInput {
+    private static final int CHUNK_SIZE = 1 << 20;
+    // Compressed bytes per parallel task; several bgzip blocks or bzip2 streams are grouped up to this size.
+    private static final long GROUP_SIZE = 1L << 20;
+    // Decompressed-to-compressed ratio assumed until the first group is done.
+    private static final int INITIAL_RATIO = 4;
+    private static final int QUEUE_CAPACITY = 8;
+    private static final byte[] BZIP2_BLOCK_MAGIC = {0x31, 0x41, 0x59, 0x26, 0x53, 0x59};
+    private static final byte[] BZIP2_END_MAGIC = {0x17, 0x72, 0x45, 0x38, 0x50, (byte) 0x90};
+
+    private GraphInput() {
+    }
+
+    public static boolean isCompressed(String path) {
+        return isGzip(path) || isBzip2(path);
+    }
+
+    private static boolean isGzip(String path) {
+        String lower = path.toLowerCase();
+        return lower.endsWith(".gz") || lower.endsWith(".gzip");
+    }
+
+    private static boolean isBzip2(String path) {
+        String lower = path.toLowerCase();
+        return lower.endsWith(".bz2") || lower.endsWith(".bzip2");
+    }
+
+    // File name without the compression suffix, e.g. "dump.nt" for "dump.nt.gz".
+    public static String stripCompressionSuffix(String name) {
+        if (!isCompressed(name)) {
+            return name;
+        }
+        return name.substring(0, name.lastIndexOf('.'));
+    }
+
+    // Decompressed bytes that may be buffered ahead of the reader of a compressed file, from decompress_buffer_mb
+    // (default 256). ParallelNTriplesLoader holds at most as many bytes of parsed-but-unfinished chunks.
+    public static long decompressBufferBytes() {
+        String property = ConfigManager.getProperty("decompress_buffer_mb");
+        return (property == null || property.isEmpty() ? 256L : Long.parseLong(property)) << 20;
+    }
+
+    // Decompressed content of the file; uncompressed files are returned as a buffered stream.
+    public static InputStream open(String path) throws IOException {
+        return open(path, Runtime.getRuntime().availableProcessors());
+    }
+
+    public static InputStream open(String path, int threads) throws IOException {
+        Path file = Paths.get(path);
+        if (!isCompressed(path)) {
+            return new BufferedInputStream(Files.newInputStream(file), CHUNK_SIZE);
+        }
+        List<long[]> members = isGzip(path) ? bgzfBlocks(file) : bzip2Streams(file);
+        if (members.size() > 1 && threads > 1) {
+            return new ParallelInputStream(file, group(members), threads, isGzip(path));
+        }
+        InputStream raw = new BufferedInputStream(Files.newInputStream(file), CHUNK_SIZE);
+        return new PipedInputStream(isGzip(path) ? new GZIPInputStream(raw, CHUNK_SIZE) : new BZip2CompressorInputStream(raw, true));
+    }
+
+    // Byte ranges of the BGZF blocks of the file, or a single range if it is not BGZF.
+    private static List<long[]> bgzfBlocks(Path file) throws IOException {
+        List<long[]> blocks = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            ByteBuffer header = ByteBuffer.allocate(18);
+            long position = 0;
+            while (position < size) {
+                header.clear();
+                while (header.hasRemaining() && channel.read(header, position + header.position()) > 0) {
+                }
+                // ID1 ID2 CM FLG=FEXTRA ... XLEN=6, subfield 'B' 'C' with SLEN=2 holding BSIZE (block size - 1).
+                if (header.position() < 18 || (header.get(0) & 0xFF) != 0x1f || (header.get(1) & 0xFF) != 0x8b
+                        || (header.get(3) & 0x04) == 0 || header.get(12) != 'B' || header.get(13) != 'C') {
+                    return singleRange(size);
+                }
+                int blockSize = ((header.get(16) & 0xFF) | (header.get(17) & 0xFF) << 8) + 1;
+                blocks.add(new long[]{position, Math.min(size, position + blockSize)});
+                position += blockSize;
+            }
+        }
+        return blocks;
+    }
+
+    // Byte ranges of the concatenated bzip2 streams of the file. A stream starts with "BZh", the block size digit and
+    // the magic of its first block (or of the end of stream, for an empty one).
+    private static List<long[]> bzip2Streams(Path file) throws IOException {
+        List<Long> starts = new ArrayList<>();
+        long size;
+        try (MappedFileBuffer buffer = MappedFileBuffer.open(file)) {
+            size = buffer.size();
+            for (long i = 0; i + 10 <= size; i++) {
+                if (buffer.get(i) == 'B' && buffer.get(i + 1) == 'Z' && buffer.get(i + 2) == 'h'
+                        && buffer.get(i + 3) >= '1' && buffer.get(i + 3) <= '9'
+                        && (matches(buffer, i + 4, BZIP2_BLOCK_MAGIC) || matches(buffer, i + 4, BZIP2_END_MAGIC))) {
+                    starts.add(i);
+                    i += 9;
+                }
+            }
+        }
+        if (starts.isEmpty() || starts.get(0) != 0) {
+            return singleRange(size);
+        }
+        List<long[]> streams = new ArrayList<>();
+        for (int i = 0; i < starts.size(); i++) {
+            streams.add(new long[]{starts.get(i), i + 1 < starts.size() ? starts.get(i + 1) : size});
+        }
+        return streams;
+    }
+
+    private static boolean matches(MappedFileBuffer buffer, long position, byte[] magic) {
+        for (int i = 0; i < magic.length; i++) {
+            if (buffer.get(position + i) != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static List<long[]> singleRange(long size) {
+        List<long[]> ranges = new ArrayList<>();
+        ranges.add(new long[]{0, size});
+        return ranges;
+    }
+
+    // Merges adjacent members into ranges of about GROUP_SIZE compressed bytes.
+    private static List<long[]> group(List<long[]> members) {
+        List<long[]> groups = new ArrayList<>();
+        long[] current = null;
+        for (long[] member : members) {
+            if (current != null && member[1] - current[0] <= GROUP_SIZE) {
+                current[1] = member[1];
+            } else {
+                current = new long[]{member[0], member[1]};
+                groups.add(current);
+            }
+        }
+        return groups;
+    }
+
+    // Stream over decompressed chunks handed over by other threads; an empty chunk marks the end.
+    private abstract static class ChunkInputStream extends InputStream {
+        private byte[] chunk = new byte[0];
+        private int offset;
+        private boolean done;
+
+        // Next chunk in order, or an empty array at the end of the data.
+        protected abstract byte[] nextChunk() throws IOException;
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == 1 ? one[0] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            while (offset == chunk.length) {
+                if (done) {
+                    return -1;
+                }
+                chunk = nextChunk();
+                offset = 0;
+                done = chunk.length == 0;
+            }
+            int n = Math.min(len, chunk.length - offset);
+            System.arraycopy(chunk, offset, b, off, n);
+            offset += n;
+            return n;
+        }
+    }
+
+    // Decompresses one sequential stream on a background thread into a bounded queue of chunks.
+    private static final class PipedInputStream extends ChunkInputStream {
+        private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        private final Thread producer;
+        private volatile IOException failure;
+
+        PipedInputStream(InputStream decompressed) {
+            producer = new Thread(() -> {
+                try (InputStream in = decompressed) {
+                    while (true) {
+                        byte[] buffer = in.readNBytes(CHUNK_SIZE);
+                        if (buffer.length == 0) {
+                            break;
+                        }
+                        queue.put(buffer);
+                    }
+                } catch (IOException e) {
+                    failure = e;
+                } catch (InterruptedException e) {
+                    return;
+                }
+                try {
+                    queue.put(new byte[0]);
+                } catch (InterruptedException ignored) {
+                }
+            }, "graph-decompressor");
+            producer.setDaemon(true);
+            producer.start();
+        }
+
+        @Override
+        protected byte[] nextChunk() throws IOException {
+            try {
+                byte[] chunk = queue.take();
+                if (chunk.length == 0 && failure != null) {
+                    throw failure;
+                }
+                return chunk;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while decompressing", e);
+            }
+        }
+
+        @Override
+        public void close() {
+            producer.interrupt();
+        }
+    }
+
+    // Decompresses groups of independent members on a thread pool and returns their content in file order. Groups are
+    // submitted ahead of the reader, at most 2 * threads of them, while their decompressed size, estimated from the
+    // ratio seen so far, fits in decompressBufferBytes() besides the group being read; one is always pending.
+    private static final class ParallelInputStream extends ChunkInputStream {
+        private final FileChannel channel;
+        private final List<long[]> groups;
+        private final boolean gzip;
+        private final ExecutorService executor;
+        private final Deque<PendingGroup> pending = new ArrayDeque<>();
+        private final int window;
+        private final long budget = decompressBufferBytes();
+        private int submitted;
+        private long pendingBytes;
+        private long compressedDone;
+        private long decompressedDone;
+
+        ParallelInputStream(Path file, List<long[]> groups, int threads, boolean gzip) throws IOException {
+            this.channel = FileChannel.open(file, StandardOpenOption.READ);
+            this.groups = groups;
+            this.gzip = gzip;
+            this.window = 2 * threads;
+            this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+                Thread thread = new Thread(runnable, "graph-decompressor");
+                thread.setDaemon(true);
+                return thread;
+            });
+            fill();
+        }
+
+        private void fill() {
+            while (pending.size() < window && submitted < groups.size()) {
+                long[] range = groups.get(submitted);
+                long compressed = range[1] - range[0];
+                long estimate = decompressedDone == 0 ? compressed * INITIAL_RATIO
+                        : (long) Math.ceil((double) compressed * decompressedDone / compressedDone);
+                if (!pending.isEmpty() && pendingBytes + estimate > budget) {
+                    break;
+                }
+                submitted++;
+                pendingBytes += estimate;
+                pending.add(new PendingGroup(executor.submit(() -> decompress(range, estimate)), compressed, estimate));
+            }
+        }
+
+        private byte[] decompress(long[] range, long estimate) throws IOException {
+            InputStream raw = new BufferedInputStream(new RangeInputStream(channel, range[0], range[1]), 1 << 16);
+            try (InputStream in = gzip ? new GZIPInputStream(raw, 1 << 16) : new BZip2CompressorInputStream(raw, true)) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(Integer.MAX_VALUE - 8, estimate));
+                in.transferTo(out);
+                return out.toByteArray();
+            }
+        }
+
+        @Override
+        protected byte[] nextChunk() throws IOException {
+            while (!pending.isEmpty()) {
+                PendingGroup next = pending.poll();
+                pendingBytes -= next.estimate;
+                fill();
+                try {
+                    byte[] chunk = next.content.get();
+                    compressedDone += next.compressed;
+                    decompressedDone += chunk.length;
+                    if (chunk.length > 0) {
+                        return chunk;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while decompressing", e);
+                } catch (ExecutionException e) {
+                    throw e.getCause() instanceof IOException ? (IOException) e.getCause()
+                            : new IOException("Decompression failed: " + e.getCause().getMessage(), e.getCause());
+                }
+            }
+            return new byte[0];
+        }
+
+        @Override
+        public void close() throws IOException {
+            executor.shutdownNow();
+            channel.close();
+        }
+    }
+
+    private static final class PendingGroup {
+        private final Future<byte[]> content;
+        private final long compressed;
+        private final long estimate;
+
+        PendingGroup(Future<byte[]> content, long compressed, long estimate) {
+            this.content = content;
+            this.compressed = compressed;
+            this.estimate = estimate;
+        }
+    }
+}
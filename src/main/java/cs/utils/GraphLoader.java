@@ -19,7 +19,7 @@ public class GraphLoader {
         validateFilePath(filePath);
 
         Model model = ModelFactory.createDefaultModel();
-        try (InputStream input = new FileInputStream(filePath)) {
+        try (InputStream input = GraphInput.open(filePath)) {
             RDFParser.source(input).lang(lang).parse(model.getGraph());
         } catch (Exception e) {
             System.err.println("Error loading Jena model from " + filePath + ": " + e.getMessage());
@@ -0,0 +1,71 @@
+package cs.utils;
+
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.riot.Lang;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.BiFunction;
+
+// Run-scoped cache of the graphs read by the pipeline stages, so that every file is parsed at most once per run and
+// all stages share the same indexed Model. Stages that will need a graph announce it up front with expect(); the
+// graph is loaded by the first acquire() and dropped when the last holder releases it and no announced use is left.
+// Stages must treat the shared models as read-only.
+public class GraphSession {
+    private final BiFunction<String, Lang, Model> loader;
+    private final Map<String, Entry> graphs = new HashMap<>();
+
+    private static class Entry {
+        Model model;
+        int expected;
+        int holders;
+    }
+
+    public GraphSession(BiFunction<String, Lang, Model> loader) {
+        this.loader = loader;
+    }
+
+    // Announces that `uses` later stages will acquire the graph, which keeps it loaded between them.
+    public synchronized void expect(String path, int uses) {
+        graphs.computeIfAbsent(path, k -> new Entry()).expected += uses;
+    }
+
+    // Returns the shared model of the file, loading it on first use. Each call must be paired with release().
+    public synchronized Model acquire(String path, Lang lang) {
+        Entry entry = graphs.computeIfAbsent(path, k -> new Entry());
+        if (entry.model == null) {
+            long start = System.nanoTime();
+            entry.model = loader.apply(path, lang);
+            System.out.println("Loaded " + path + " (" + entry.model.size() + " triples) in "
+                    + (System.nanoTime() - start) / 1_000_000 + " ms");
+        }
+        if (entry.expected > 0) {
+            entry.expected--;
+        }
+        entry.holders++;
+        return entry.model;
+    }
+
+    public synchronized void release(String path) {
+        Entry entry = graphs.get(path);
+        if (entry == null || entry.holders == 0) {
+            throw new IllegalStateException("Graph released more often than acquired: " + path);
+        }
+        entry.holders--;
+        if (entry.holders == 0 && entry.expected == 0) {
+            graphs.remove(path);
+            entry.model.close();
+            System.out.println("Released " + path);
+        }
+    }
+
+    // Drops every graph that is still loaded, e.g. when a run ends early.
+    public synchronized void close() {
+        for (Entry entry : graphs.values()) {
+            if (entry.model != null) {
+                entry.model.close();
+            }
+        }
+        graphs.clear();
+    }
+}
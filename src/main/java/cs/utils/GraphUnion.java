@@ -0,0 +1,89 @@
+package cs.utils;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.graph.impl.GraphBase;
+import org.apache.jena.util.iterator.ExtendedIterator;
+import org.apache.jena.util.iterator.NiceIterator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+// Read-only union of graphs that were loaded separately, e.g. one store per part file of a dataset. The parts are
+// searched in order and a triple already in an earlier part is dropped with a contains() lookup, so unlike Jena's
+// MultiUnion no set of seen triples is built up in memory. Closing the union closes the parts.
+public class GraphUnion extends GraphBase {
+    private final List<Graph> parts;
+
+    public GraphUnion(List<Graph> parts) {
+        if (parts.isEmpty()) {
+            throw new IllegalArgumentException("A graph union needs at least one part");
+        }
+        this.parts = new ArrayList<>(parts);
+    }
+
+    @Override
+    protected ExtendedIterator<Triple> graphBaseFind(Triple pattern) {
+        return new NiceIterator<Triple>() {
+            private int part = 0;
+            private ExtendedIterator<Triple> current = parts.get(0).find(pattern);
+
+            @Override
+            public boolean hasNext() {
+                while (!current.hasNext()) {
+                    current.close();
+                    if (part + 1 >= parts.size()) {
+                        return false;
+                    }
+                    part++;
+                    List<Graph> earlier = parts.subList(0, part);
+                    current = parts.get(part).find(pattern).filterDrop(triple -> containedIn(earlier, triple));
+                }
+                return true;
+            }
+
+            @Override
+            public Triple next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return current.next();
+            }
+
+            @Override
+            public void close() {
+                current.close();
+            }
+        };
+    }
+
+    private static boolean containedIn(List<Graph> graphs, Triple triple) {
+        for (Graph graph : graphs) {
+            if (graph.contains(triple)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Sum of the part sizes: an upper bound that counts a triple once per part holding it. Part files rarely share
+    // triples, and deduplicating would cost a contains() lookup per triple and part, which callers such as the
+    // sampler's size-based thresholds cannot afford.
+    @Override
+    protected int graphBaseSize() {
+        long count = 0;
+        for (Graph part : parts) {
+            count += part.size();
+        }
+        return (int) Math.min(count, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        for (Graph part : parts) {
+            part.close();
+        }
+    }
+}
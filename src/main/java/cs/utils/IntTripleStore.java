@@ -0,0 +1,296 @@
+package cs.utils;
+
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.graph.impl.GraphBase;
+import org.apache.jena.util.iterator.ExtendedIterator;
+import org.apache.jena.util.iterator.NiceIterator;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.function.IntUnaryOperator;
+
+// Immutable, dictionary-encoded triple store in primitive arrays. The distinct triples are kept as three int columns
+// in SPO order, plus two arrays of row numbers that list the same rows in POS and OSP order, i.e. 20 bytes per
+// triple. A lookup binary-searches the permutation whose prefix covers the bound positions and visits the resulting
+// range. Nothing is mutated after build(), so any number of threads can query the store without locking.
+public final class IntTripleStore {
+    // Wildcard for a position in lookups; ids are never negative.
+    public static final int ANY = Integer.MIN_VALUE;
+
+    private final int[] subjects;
+    private final int[] predicates;
+    private final int[] objects;
+    private final int[] pos;
+    private final int[] osp;
+
+    public interface Visitor {
+        void triple(int subject, int predicate, int object);
+    }
+
+    private IntTripleStore(int[] subjects, int[] predicates, int[] objects, int[] pos, int[] osp) {
+        this.subjects = subjects;
+        this.predicates = predicates;
+        this.objects = objects;
+        this.pos = pos;
+        this.osp = osp;
+    }
+
+    // Builds the store from the records of an encoded triple file; the ids are those of its dictionary.
+    public static IntTripleStore load(EncodedTripleFile triples) {
+        if (triples.size() > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Too many triples for an in-memory store: " + triples.size());
+        }
+        int n = (int) triples.size();
+        int[] s = new int[n];
+        int[] p = new int[n];
+        int[] o = new int[n];
+        int[] next = {0};
+        triples.forEach((subject, predicate, object, datatype) -> {
+            int i = next[0]++;
+            s[i] = subject;
+            p[i] = predicate;
+            o[i] = object;
+        });
+        return build(s, p, o, triples.getDictionary().size());
+    }
+
+    // Builds the store from parallel columns of ids in [0, termCount). The arrays are taken over, not copied.
+    public static IntTripleStore build(int[] s, int[] p, int[] o, int termCount) {
+        long start = System.nanoTime();
+        int n = s.length;
+        int[] identity = new int[n];
+        for (int i = 0; i < n; i++) {
+            identity[i] = i;
+        }
+        // LSD radix sort: stable counting sorts on the least significant position first.
+        int[] order = sortBy(s, sortBy(p, sortBy(o, identity, termCount, null), termCount, identity), termCount, null);
+
+        int[] subjects = new int[n];
+        int[] predicates = new int[n];
+        int[] objects = new int[n];
+        int rows = 0;
+        for (int i = 0; i < n; i++) {
+            int r = order[i];
+            if (rows > 0 && subjects[rows - 1] == s[r] && predicates[rows - 1] == p[r] && objects[rows - 1] == o[r]) {
+                continue;
+            }
+            subjects[rows] = s[r];
+            predicates[rows] = p[r];
+            objects[rows] = o[r];
+            rows++;
+        }
+        if (rows < n) {
+            subjects = Arrays.copyOf(subjects, rows);
+            predicates = Arrays.copyOf(predicates, rows);
+            objects = Arrays.copyOf(objects, rows);
+        }
+
+        int[] rowIds = new int[rows];
+        for (int i = 0; i < rows; i++) {
+            rowIds[i] = i;
+        }
+        // The rows are in SPO order, so a stable sort by o alone yields OSP, and sorts by o then p yield POS.
+        int[] osp = sortBy(objects, rowIds, termCount, null);
+        int[] pos = sortBy(predicates, sortBy(objects, rowIds, termCount, null), termCount, rowIds);
+        System.out.println("Built integer triple store with " + rows + " triples (" + (n - rows) + " duplicates dropped) in "
+                + (System.nanoTime() - start) / 1_000_000 + " ms");
+        return new IntTripleStore(subjects, predicates, objects, pos, osp);
+    }
+
+    // Stable counting sort of the rows in `order` by key[row]; returns a new array, or `into` when given.
+    private static int[] sortBy(int[] key, int[] order, int termCount, int[] into) {
+        int[] counts = new int[termCount + 1];
+        for (int row : order) {
+            counts[key[row] + 1]++;
+        }
+        for (int i = 1; i <= termCount; i++) {
+            counts[i] += counts[i - 1];
+        }
+        int[] sorted = into != null && into != order ? into : new int[order.length];
+        for (int row : order) {
+            sorted[counts[key[row]]++] = row;
+        }
+        return sorted;
+    }
+
+    public int size() {
+        return subjects.length;
+    }
+
+    // Visits the triples matching the pattern; use ANY for unbound positions.
+    public void forEach(int s, int p, int o, Visitor visitor) {
+        Cursor cursor = find(s, p, o);
+        for (int row = cursor.nextRow(); row >= 0; row = cursor.nextRow()) {
+            visitor.triple(subjects[row], predicates[row], objects[row]);
+        }
+    }
+
+    public int count(int s, int p, int o) {
+        Cursor cursor = find(s, p, o);
+        return cursor.to - cursor.from;
+    }
+
+    private Cursor find(int s, int p, int o) {
+        if (s != ANY) {
+            if (o != ANY && p == ANY) {
+                // (s ? o): the OSP prefix covers both positions.
+                int from = lowerBound(osp, objects, 0, osp.length, o);
+                int to = lowerBound(osp, objects, from, osp.length, o + 1);
+                int sFrom = lowerBound(osp, subjects, from, to, s);
+                return new Cursor(osp, sFrom, lowerBound(osp, subjects, sFrom, to, s + 1));
+            }
+            int from = lowerBound(null, subjects, 0, subjects.length, s);
+            int to = lowerBound(null, subjects, from, subjects.length, s + 1);
+            if (p != ANY) {
+                int pFrom = lowerBound(null, predicates, from, to, p);
+                to = lowerBound(null, predicates, pFrom, to, p + 1);
+                from = pFrom;
+                if (o != ANY) {
+                    int oFrom = lowerBound(null, objects, from, to, o);
+                    to = lowerBound(null, objects, oFrom, to, o + 1);
+                    from = oFrom;
+                }
+            }
+            return new Cursor(null, from, to);
+        }
+        if (p != ANY) {
+            int from = lowerBound(pos, predicates, 0, pos.length, p);
+            int to = lowerBound(pos, predicates, from, pos.length, p + 1);
+            if (o != ANY) {
+                int oFrom = lowerBound(pos, objects, from, to, o);
+                to = lowerBound(pos, objects, oFrom, to, o + 1);
+                from = oFrom;
+            }
+            return new Cursor(pos, from, to);
+        }
+        if (o != ANY) {
+            int from = lowerBound(osp, objects, 0, osp.length, o);
+            return new Cursor(osp, from, lowerBound(osp, objects, from, osp.length, o + 1));
+        }
+        return new Cursor(null, 0, subjects.length);
+    }
+
+    // First index in [from, to) of the permutation whose key is >= value; the keys are sorted over that range.
+    private static int lowerBound(int[] permutation, int[] key, int from, int to, int value) {
+        IntUnaryOperator keyAt = permutation == null ? i -> key[i] : i -> key[permutation[i]];
+        int lo = from;
+        int hi = to;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (keyAt.applyAsInt(mid) < value) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    // Rows of one contiguous range of a permutation (null means SPO order); every pattern maps to one such range.
+    private static final class Cursor {
+        private final int[] permutation;
+        private final int from;
+        private final int to;
+        private int next;
+
+        Cursor(int[] permutation, int from, int to) {
+            this.permutation = permutation;
+            this.from = from;
+            this.to = to;
+            this.next = from;
+        }
+
+        // Next row of the range, or -1 when it is exhausted.
+        int nextRow() {
+            if (next >= to) {
+                return -1;
+            }
+            int row = permutation == null ? next : permutation[next];
+            next++;
+            return row;
+        }
+    }
+
+    // Read-only Jena view over the store, translating between Nodes and the ids of the encoded file's dictionary.
+    // Closing the graph closes the file.
+    public Graph asGraph(EncodedTripleFile dictionary) {
+        return new IntTripleGraph(this, dictionary);
+    }
+
+    private static final class IntTripleGraph extends GraphBase {
+        private final IntTripleStore store;
+        private final EncodedTripleFile dictionary;
+        // Decoded nodes by id; racy initialization is fine since Nodes are immutable.
+        private final Node[] nodes;
+
+        IntTripleGraph(IntTripleStore store, EncodedTripleFile dictionary) {
+            this.store = store;
+            this.dictionary = dictionary;
+            this.nodes = new Node[dictionary.getDictionary().size()];
+        }
+
+        @Override
+        protected ExtendedIterator<Triple> graphBaseFind(Triple pattern) {
+            int s = id(pattern.getSubject());
+            int p = id(pattern.getPredicate());
+            int o = id(pattern.getObject());
+            if (s == -1 || p == -1 || o == -1) {
+                return NiceIterator.emptyIterator();
+            }
+            Cursor cursor = store.find(s, p, o);
+            return new NiceIterator<Triple>() {
+                private int row = cursor.nextRow();
+
+                @Override
+                public boolean hasNext() {
+                    return row >= 0;
+                }
+
+                @Override
+                public Triple next() {
+                    if (row < 0) {
+                        throw new NoSuchElementException();
+                    }
+                    Triple triple = Triple.create(node(store.subjects[row]), node(store.predicates[row]), node(store.objects[row]));
+                    row = cursor.nextRow();
+                    return triple;
+                }
+            };
+        }
+
+        @Override
+        protected int graphBaseSize() {
+            return store.size();
+        }
+
+        @Override
+        public void close() {
+            super.close();
+            try {
+                dictionary.close();
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to close encoded triple file: " + e.getMessage(), e);
+            }
+        }
+
+        // ANY for wildcards, -1 for terms the dictionary does not contain.
+        private int id(Node node) {
+            if (node == null || !node.isConcrete()) {
+                return ANY;
+            }
+            return dictionary.termId(EncodedTripleFile.term(node));
+        }
+
+        private Node node(int id) {
+            Node node = nodes[id];
+            if (node == null) {
+                node = EncodedTripleFile.toNode(dictionary.getDictionary().decode(id));
+                nodes[id] = node;
+            }
+            return node;
+        }
+    }
+}
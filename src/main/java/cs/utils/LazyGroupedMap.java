@@ -0,0 +1,299 @@
+package cs.utils;
+
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+
+// Concurrent map whose entries can be filled in lazily, one group at a time, e.g. the statistics of one class from a
+// memory-mapped snapshot. Every key belongs to an int group; after defer(), the first access to a key of a pending
+// group loads that whole group, and operations that see all entries (size, iteration, forEach) load every pending
+// group first. Without deferred groups it behaves like the ConcurrentHashMap it delegates to.
+// Once takeChanges() was called, the keys written through the map are recorded until the next call, so that a snapshot
+// save only looks at those. Loading a group is not a change.
+public class LazyGroupedMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V> {
+    public interface GroupLoader<K, V> {
+        void load(int group, BiConsumer<K, V> sink);
+    }
+
+    private final ConcurrentHashMap<K, V> entries = new ConcurrentHashMap<>();
+    private final ToIntFunction<Object> groupOf;
+    // Groups still to be loaded; null once all are.
+    private volatile Deferred<K, V> deferred;
+    // Keys written since the last takeChanges(); null until it is first called.
+    private volatile Set<K> changed;
+    // Set by replaceAll and clear, which may change any entry.
+    private volatile boolean allChanged;
+    // Also receives the entries of deferred groups as they load; null if none.
+    private volatile BiConsumer<K, V> loadListener;
+
+    public LazyGroupedMap(ToIntFunction<Object> groupOf) {
+        this.groupOf = groupOf;
+    }
+
+    // Map keyed by class id, e.g. cpot or cec.
+    public static <V> LazyGroupedMap<Integer, V> byKey() {
+        return new LazyGroupedMap<>(key -> (Integer) key);
+    }
+
+    // Map keyed by (class, predicate, object type), grouped by the class, e.g. sts.
+    public static <V> LazyGroupedMap<Tuple3<Integer, Integer, Integer>, V> byFirstComponent() {
+        return new LazyGroupedMap<>(key -> (Integer) ((Tuple3<?, ?, ?>) key)._1());
+    }
+
+    // Defers the given groups to the loader, which is dropped once all of them are loaded.
+    public synchronized void defer(int[] sortedGroups, GroupLoader<K, V> loader) {
+        loadAll();
+        if (sortedGroups.length > 0) {
+            deferred = new Deferred<>(sortedGroups, loader);
+        }
+    }
+
+    // Passes every entry loaded from a deferred group to the listener too, e.g. to fingerprint just the groups that
+    // were used. It runs with the map's lock held, before the entry is visible to callers, and must not touch
+    // other LazyGroupedMaps.
+    public void onGroupLoad(BiConsumer<K, V> listener) {
+        this.loadListener = listener;
+    }
+
+    // Number of groups not loaded yet.
+    public int pendingGroups() {
+        Deferred<K, V> current = deferred;
+        return current == null ? 0 : current.pending;
+    }
+
+    // Returns the keys written since the previous call and starts recording anew; null on the first call, or after
+    // replaceAll or clear. A key counts as written when it went through put, remove, replace, computeIfAbsent,
+    // computeIfPresent, compute or merge: values changed in place must be reached through one of those, as the
+    // statistics updaters do, rather than through get or iteration. Callers make sure no writes race with this.
+    public synchronized Set<K> takeChanges() {
+        Set<K> taken = allChanged ? null : changed;
+        changed = ConcurrentHashMap.newKeySet();
+        allChanged = false;
+        return taken;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void changed(Object key) {
+        Set<K> current = changed;
+        if (current != null) {
+            current.add((K) key);
+        }
+    }
+
+    private void load(Object key) {
+        Deferred<K, V> current = deferred;
+        if (current == null) {
+            return;
+        }
+        int index = Arrays.binarySearch(current.groups, groupOf.applyAsInt(key));
+        if (index < 0 || current.loaded.get(index) != 0) {
+            return;
+        }
+        synchronized (this) {
+            if (deferred == current && current.loaded.get(index) == 0) {
+                loadGroup(current, index);
+            }
+        }
+    }
+
+    private synchronized void loadAll() {
+        Deferred<K, V> current = deferred;
+        for (int index = 0; current != null && index < current.groups.length; index++) {
+            if (current.loaded.get(index) == 0) {
+                loadGroup(current, index);
+            }
+        }
+    }
+
+    // Called with the lock held.
+    private void loadGroup(Deferred<K, V> current, int index) {
+        BiConsumer<K, V> listener = loadListener;
+        current.loader.load(current.groups[index], listener == null ? entries::put : (key, value) -> {
+            entries.put(key, value);
+            listener.accept(key, value);
+        });
+        current.loaded.set(index, 1);
+        if (--current.pending == 0) {
+            deferred = null;
+        }
+    }
+
+    private void loadAllIfPending() {
+        if (deferred != null) {
+            loadAll();
+        }
+    }
+
+    @Override
+    public V get(Object key) {
+        load(key);
+        return entries.get(key);
+    }
+
+    @Override
+    public V getOrDefault(Object key, V defaultValue) {
+        load(key);
+        return entries.getOrDefault(key, defaultValue);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        load(key);
+        return entries.containsKey(key);
+    }
+
+    @Override
+    public boolean containsValue(Object value) {
+        loadAllIfPending();
+        return entries.containsValue(value);
+    }
+
+    @Override
+    public V put(K key, V value) {
+        load(key);
+        changed(key);
+        return entries.put(key, value);
+    }
+
+    @Override
+    public V putIfAbsent(K key, V value) {
+        load(key);
+        changed(key);
+        return entries.putIfAbsent(key, value);
+    }
+
+    @Override
+    public V remove(Object key) {
+        load(key);
+        changed(key);
+        return entries.remove(key);
+    }
+
+    @Override
+    public boolean remove(Object key, Object value) {
+        load(key);
+        changed(key);
+        return entries.remove(key, value);
+    }
+
+    @Override
+    public boolean replace(K key, V oldValue, V newValue) {
+        load(key);
+        changed(key);
+        return entries.replace(key, oldValue, newValue);
+    }
+
+    @Override
+    public V replace(K key, V value) {
+        load(key);
+        changed(key);
+        return entries.replace(key, value);
+    }
+
+    @Override
+    public V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction) {
+        load(key);
+        changed(key);
+        return entries.computeIfAbsent(key, mappingFunction);
+    }
+
+    @Override
+    public V computeIfPresent(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+        load(key);
+        changed(key);
+        return entries.computeIfPresent(key, remappingFunction);
+    }
+
+    @Override
+    public V compute(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+        load(key);
+        changed(key);
+        return entries.compute(key, remappingFunction);
+    }
+
+    @Override
+    public V merge(K key, V value, BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+        load(key);
+        changed(key);
+        return entries.merge(key, value, remappingFunction);
+    }
+
+    @Override
+    public int size() {
+        loadAllIfPending();
+        return entries.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        loadAllIfPending();
+        return entries.isEmpty();
+    }
+
+    @Override
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        loadAllIfPending();
+        entries.forEach(action);
+    }
+
+    @Override
+    public void replaceAll(BiFunction<? super K, ? super V, ? extends V> function) {
+        loadAllIfPending();
+        allChanged = true;
+        entries.replaceAll(function);
+    }
+
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+        loadAllIfPending();
+        return entries.entrySet();
+    }
+
+    @Override
+    public Set<K> keySet() {
+        loadAllIfPending();
+        return entries.keySet();
+    }
+
+    @Override
+    public Collection<V> values() {
+        loadAllIfPending();
+        return entries.values();
+    }
+
+    // Drops the pending groups without loading them.
+    @Override
+    public synchronized void clear() {
+        deferred = null;
+        allChanged = true;
+        entries.clear();
+    }
+
+    @Override
+    public void putAll(Map<? extends K, ? extends V> map) {
+        map.forEach(this::put);
+    }
+
+    private static final class Deferred<K, V> {
+        private final int[] groups;
+        private final AtomicIntegerArray loaded;
+        private final GroupLoader<K, V> loader;
+        private int pending;
+
+        Deferred(int[] groups, GroupLoader<K, V> loader) {
+            this.groups = groups;
+            this.loaded = new AtomicIntegerArray(groups.length);
+            this.loader = loader;
+            this.pending = groups.length;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package cs.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// Read-only memory mapping of a file of arbitrary size, split into 1GB segments with long-based absolute reads.
+// Values that straddle a segment boundary are assembled byte by byte; all reads are big-endian.
+public class MappedFileBuffer implements Closeable {
+    static final int SEGMENT_BITS = 30;
+    static final long SEGMENT_SIZE = 1L << SEGMENT_BITS;
+    static final long SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+    private final FileChannel channel;
+    private final long size;
+    private final MappedByteBuffer[] segments;
+
+    private MappedFileBuffer(FileChannel channel, long size) throws IOException {
+        this.channel = channel;
+        this.size = size;
+        int segmentCount = (int) ((size + SEGMENT_SIZE - 1) >>> SEGMENT_BITS);
+        this.segments = new MappedByteBuffer[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            long start = (long) i << SEGMENT_BITS;
+            segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, size - start));
+        }
+    }
+
+    public static MappedFileBuffer open(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        return new MappedFileBuffer(channel, channel.size());
+    }
+
+    // Maps only the first `size` bytes, e.g. the committed part of an append-only file.
+    public static MappedFileBuffer open(Path path, long size) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        return new MappedFileBuffer(channel, Math.min(size, channel.size()));
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public int segmentCount() {
+        return segments.length;
+    }
+
+    // Independent view of one segment, safe to hand to a single worker thread.
+    public ByteBuffer segment(int index) {
+        return segments[index].duplicate();
+    }
+
+    public byte get(long pos) {
+        return segments[(int) (pos >>> SEGMENT_BITS)].get((int) (pos & SEGMENT_MASK));
+    }
+
+    public int getInt(long pos) {
+        int offset = (int) (pos & SEGMENT_MASK);
+        if (offset + Integer.BYTES <= SEGMENT_SIZE) {
+            return segments[(int) (pos >>> SEGMENT_BITS)].getInt(offset);
+        }
+        int value = 0;
+        for (int i = 0; i < Integer.BYTES; i++) {
+            value = (value << 8) | (get(pos + i) & 0xFF);
+        }
+        return value;
+    }
+
+    public long getLong(long pos) {
+        int offset = (int) (pos & SEGMENT_MASK);
+        if (offset + Long.BYTES <= SEGMENT_SIZE) {
+            return segments[(int) (pos >>> SEGMENT_BITS)].getLong(offset);
+        }
+        long value = 0;
+        for (int i = 0; i < Long.BYTES; i++) {
+            value = (value << 8) | (get(pos + i) & 0xFF);
+        }
+        return value;
+    }
+
+    public float getFloat(long pos) {
+        return Float.intBitsToFloat(getInt(pos));
+    }
+
+    public double getDouble(long pos) {
+        return Double.longBitsToDouble(getLong(pos));
+    }
+
+    public void get(long pos, byte[] dst, int off, int len) {
+        while (len > 0) {
+            int offset = (int) (pos & SEGMENT_MASK);
+            ByteBuffer view = segments[(int) (pos >>> SEGMENT_BITS)].duplicate();
+            int chunk = Math.min(len, view.limit() - offset);
+            view.position(offset);
+            view.get(dst, off, chunk);
+            pos += chunk;
+            off += chunk;
+            len -= chunk;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
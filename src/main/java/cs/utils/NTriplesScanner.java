@@ -0,0 +1,354 @@
+package cs.utils;
+
+import cs.cose.encoders.Encoder;
+import cs.cose.encoders.MappedStringEncoder;
+import cs.cose.encoders.TieredEncoder;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Byte-level N-Triples reader for the statistics pass. The file is memory-mapped and cut into newline-aligned
+// ranges that are scanned on several threads; every line is split into subject, predicate, object and
+// datatype/language spans in place. Spans are looked up in per-thread caches keyed on their bytes, so a String is
+// only built for a term the thread has not seen recently, and with a tiered encoder ASCII entity IRIs are
+// fingerprinted straight from the bytes. A span missing from the cache is looked up by its bytes in the persisted
+// term dictionary, so a String is only built for terms new to the dictionary. Literals keep their datatype: plain literals count as xsd:string and
+// language-tagged ones as rdf:langString. Malformed lines are skipped and counted.
+public class NTriplesScanner {
+    private static final byte[] RDF_TYPE = "http://www.w3.org/1999/02/22-rdf-syntax-ns#type".getBytes(StandardCharsets.US_ASCII);
+    private static final String XSD_STRING = "http://www.w3.org/2001/XMLSchema#string";
+    private static final String RDF_LANG_STRING = "http://www.w3.org/1999/02/22-rdf-syntax-ns#langString";
+    private static final int BLOCK_SIZE = 1 << 20;
+    private static final int CACHE_SIZE = 1 << 14;
+    private static final int CACHE_MASK = CACHE_SIZE - 1;
+    private static final int RANGES_PER_THREAD = 4;
+
+    private final Encoder encoder;
+    private final TieredEncoder tieredEncoder;
+    // Persisted dictionary behind the encoder's interned terms, or null if there is none.
+    private final MappedStringEncoder dictionary;
+    private final int threads;
+
+    public NTriplesScanner(Encoder encoder, int threads) {
+        this.encoder = encoder;
+        this.tieredEncoder = encoder instanceof TieredEncoder ? (TieredEncoder) encoder : null;
+        Encoder interned = tieredEncoder != null ? tieredEncoder.getSchemaEncoder() : encoder;
+        this.dictionary = interned instanceof MappedStringEncoder ? (MappedStringEncoder) interned : null;
+        this.threads = Math.max(1, threads);
+    }
+
+    public void scan(String graphPath, Map<Integer, Map<Integer, Set<Integer>>> targetCpot,
+                     Map<Integer, Integer> targetCec, Map<Tuple3<Integer, Integer, Integer>, SupportConfidence> targetSts) {
+        Path path = Paths.get(graphPath);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+             MappedFileBuffer file = MappedFileBuffer.open(path)) {
+            List<long[]> ranges = ParallelNTriplesLoader.splitAtNewlines(channel, (long) threads * RANGES_PER_THREAD);
+            ThreadLocal<Worker> workers = new ThreadLocal<>();
+            List<Worker> allWorkers = new ArrayList<>();
+            List<Future<?>> futures = new ArrayList<>();
+            for (long[] range : ranges) {
+                futures.add(executor.submit(() -> {
+                    Worker worker = workers.get();
+                    if (worker == null) {
+                        worker = new Worker();
+                        workers.set(worker);
+                        synchronized (allWorkers) {
+                            allWorkers.add(worker);
+                        }
+                    }
+                    worker.scanRange(file, range[0], range[1]);
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            long triples = 0;
+            long skipped = 0;
+            for (Worker worker : allWorkers) {
+                worker.partial.mergeInto(targetCpot, targetCec, targetSts);
+                triples += worker.triples;
+                skipped += worker.skipped;
+            }
+            System.out.println("Scanned " + triples + " triples from " + graphPath + " on " + threads + " threads"
+                    + (skipped > 0 ? " (" + skipped + " malformed lines skipped)." : "."));
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read " + graphPath + ": " + e.getMessage(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while scanning " + graphPath, e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Failed to scan " + graphPath + ": " + e.getCause().getMessage(), e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    // Per-thread state: the aggregate, the span caches and the block the current lines are copied into.
+    private final class Worker {
+        private final StatsPartial partial = new StatsPartial();
+        private final SpanCache schemaCache = new SpanCache();
+        private final SpanCache instanceCache = new SpanCache();
+        private final int xsdStringId = encoder.encode(XSD_STRING);
+        private final int langStringId = encoder.encode(RDF_LANG_STRING);
+        private byte[] block = new byte[BLOCK_SIZE];
+        private long triples;
+        private long skipped;
+
+        // Copies the range block by block; a line cut off at the end of a block is moved to the front of the next.
+        void scanRange(MappedFileBuffer file, long start, long end) {
+            long pos = start;
+            int filled = 0;
+            while (true) {
+                int n = (int) Math.min(block.length - filled, end - pos);
+                file.get(pos, block, filled, n);
+                pos += n;
+                filled += n;
+                int lineStart = 0;
+                for (int i = 0; i < filled; i++) {
+                    if (block[i] == '\n') {
+                        scanLine(lineStart, i);
+                        lineStart = i + 1;
+                    }
+                }
+                if (pos >= end) {
+                    if (lineStart < filled) {
+                        scanLine(lineStart, filled);
+                    }
+                    return;
+                }
+                int rest = filled - lineStart;
+                if (rest == block.length) {
+                    block = Arrays.copyOf(block, block.length * 2);
+                } else {
+                    System.arraycopy(block, lineStart, block, 0, rest);
+                }
+                filled = rest;
+            }
+        }
+
+        private void scanLine(int from, int to) {
+            byte[] b = block;
+            int i = skipWhitespace(b, from, to);
+            if (i >= to || b[i] == '#') {
+                return;
+            }
+            // Subject: IRI or blank node.
+            int subjectId;
+            if (b[i] == '<') {
+                int close = indexOf(b, '>', i + 1, to);
+                if (close < 0) {
+                    skipped++;
+                    return;
+                }
+                subjectId = instanceId(i + 1, close);
+                i = close + 1;
+            } else if (b[i] == '_') {
+                subjectId = -1;
+                i = blankNodeEnd(b, i, to);
+            } else {
+                skipped++;
+                return;
+            }
+            // Predicate: IRI only.
+            i = skipWhitespace(b, i, to);
+            if (i >= to || b[i] != '<') {
+                skipped++;
+                return;
+            }
+            int predicateStart = i + 1;
+            int predicateEnd = indexOf(b, '>', predicateStart, to);
+            if (predicateEnd < 0) {
+                skipped++;
+                return;
+            }
+            i = skipWhitespace(b, predicateEnd + 1, to);
+            if (i >= to) {
+                skipped++;
+                return;
+            }
+            // Object: IRI, blank node or literal with optional language tag or datatype.
+            int objectTypeId;
+            if (b[i] == '<') {
+                int close = indexOf(b, '>', i + 1, to);
+                if (close < 0) {
+                    skipped++;
+                    return;
+                }
+                objectTypeId = isType(b, predicateStart, predicateEnd) ? schemaId(i + 1, close) : instanceId(i + 1, close);
+                i = close + 1;
+            } else if (b[i] == '_') {
+                objectTypeId = -1;
+                i = blankNodeEnd(b, i, to);
+            } else if (b[i] == '"') {
+                int j = i + 1;
+                while (j < to && b[j] != '"') {
+                    j += b[j] == '\\' ? 2 : 1;
+                }
+                if (j >= to) {
+                    skipped++;
+                    return;
+                }
+                j++;
+                if (j < to && b[j] == '@') {
+                    objectTypeId = langStringId;
+                    i = languageTagEnd(b, j, to);
+                } else if (j + 2 < to && b[j] == '^' && b[j + 1] == '^' && b[j + 2] == '<') {
+                    int close = indexOf(b, '>', j + 3, to);
+                    if (close < 0) {
+                        skipped++;
+                        return;
+                    }
+                    objectTypeId = schemaId(j + 3, close);
+                    i = close + 1;
+                } else {
+                    objectTypeId = xsdStringId;
+                    i = j;
+                }
+            } else {
+                skipped++;
+                return;
+            }
+            i = skipWhitespace(b, i, to);
+            if (i >= to || b[i] != '.') {
+                skipped++;
+                return;
+            }
+            partial.add(subjectId, schemaId(predicateStart, predicateEnd), objectTypeId);
+            triples++;
+        }
+
+        private int schemaId(int start, int end) {
+            return cachedId(schemaCache, start, end, false);
+        }
+
+        private int instanceId(int start, int end) {
+            if (tieredEncoder != null && isPlainAscii(block, start, end)) {
+                return TieredEncoder.instanceId(TieredEncoder.fingerprintAscii(block, start, end));
+            }
+            return cachedId(instanceCache, start, end, true);
+        }
+
+        private int cachedId(SpanCache cache, int start, int end, boolean instance) {
+            byte[] b = block;
+            int h = hash(b, start, end);
+            int slot = (h ^ (h >>> 16)) & CACHE_MASK;
+            byte[] key = cache.keys[slot];
+            if (key != null && cache.hashes[slot] == h && Arrays.equals(key, 0, key.length, b, start, end)) {
+                return cache.ids[slot];
+            }
+            int id = -1;
+            boolean interned = !instance || tieredEncoder == null;
+            // Without escapes the span holds the exact UTF-8 bytes of the term as the dictionary stores it.
+            if (interned && dictionary != null && indexOf(b, '\\', start, end) < 0) {
+                id = dictionary.lookupPersisted(b, start, end);
+            }
+            if (id < 0) {
+                String term = decodeIri(b, start, end);
+                id = interned ? encoder.encode(term) : tieredEncoder.encodeInstance(term);
+            }
+            cache.keys[slot] = Arrays.copyOfRange(b, start, end);
+            cache.hashes[slot] = h;
+            cache.ids[slot] = id;
+            return id;
+        }
+    }
+
+    // Direct-mapped cache from the raw bytes of a span to its id.
+    private static final class SpanCache {
+        private final byte[][] keys = new byte[CACHE_SIZE][];
+        private final int[] hashes = new int[CACHE_SIZE];
+        private final int[] ids = new int[CACHE_SIZE];
+    }
+
+    private static boolean isType(byte[] b, int start, int end) {
+        return Arrays.equals(RDF_TYPE, 0, RDF_TYPE.length, b, start, end);
+    }
+
+    // ASCII without escapes, i.e. the bytes are exactly the UTF-16 chars of the IRI.
+    private static boolean isPlainAscii(byte[] b, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (b[i] < 0 || b[i] == '\\') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hash(byte[] b, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + b[i];
+        }
+        return h;
+    }
+
+    private static int skipWhitespace(byte[] b, int i, int to) {
+        while (i < to && (b[i] == ' ' || b[i] == '\t' || b[i] == '\r')) {
+            i++;
+        }
+        return i;
+    }
+
+    // Blank node labels may contain '.' but not end with one, so a trailing '.' is the statement terminator.
+    private static int blankNodeEnd(byte[] b, int i, int to) {
+        int start = i;
+        while (i < to && b[i] != ' ' && b[i] != '\t' && b[i] != '\r') {
+            i++;
+        }
+        while (i > start + 2 && b[i - 1] == '.') {
+            i--;
+        }
+        return i;
+    }
+
+    private static int languageTagEnd(byte[] b, int i, int to) {
+        i++;
+        while (i < to && (b[i] == '-' || (b[i] >= '0' && b[i] <= '9') || ((b[i] | 0x20) >= 'a' && (b[i] | 0x20) <= 'z'))) {
+            i++;
+        }
+        return i;
+    }
+
+    private static int indexOf(byte[] b, char c, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (b[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // UTF-8 decoding of an IRI span, resolving the \\uXXXX and \\UXXXXXXXX escapes N-Triples allows in IRIs.
+    private static String decodeIri(byte[] b, int start, int end) {
+        String raw = new String(b, start, end - start, StandardCharsets.UTF_8);
+        if (raw.indexOf('\\') < 0) {
+            return raw;
+        }
+        StringBuilder sb = new StringBuilder(raw.length());
+        for (int i = 0; i < raw.length(); i++) {
+            char c = raw.charAt(i);
+            int digits = c != '\\' || i + 1 >= raw.length() ? 0 : raw.charAt(i + 1) == 'u' ? 4 : raw.charAt(i + 1) == 'U' ? 8 : 0;
+            if (digits > 0 && i + 2 + digits <= raw.length()) {
+                sb.appendCodePoint(Integer.parseInt(raw.substring(i + 2, i + 2 + digits), 16));
+                i += 1 + digits;
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,353 @@
+package cs.utils;
+
+import cs.cose.encoders.JenaNodeEncoder;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.riot.system.StreamRDFBase;
+import org.apache.jena.vocabulary.RDF;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+// Class statistics with resolved object types, computed out of core with hash-partitioned joins.
+//  1. The graph, or every part file of it, is parsed in parallel and spilled into partition files of encoded ints:
+//     type triples (entity, class) by entity, IRI objects (object, subject, predicate) by object and literal objects
+//     (subject, predicate, datatype) by subject.
+//  2. Each object partition is joined with the type partition of the same number, which holds the types of exactly
+//     those entities; every IRI object becomes one (subject, predicate, objectClass) record per class of the
+//     object, or a single record with undefinedObjectType if it has no type. The records are re-partitioned by
+//     subject.
+//  3. Each subject partition is grouped by subject and attributed to the subject's classes, counting distinct
+//     entities as in SubjectGroupedAggregator. Untyped subjects are not counted.
+// Entities are spilled and joined by JenaNodeEncoder.instanceKey(), so fingerprinted entities keep all 64 bits.
+// Partitions are processed in parallel; memory is bounded by the largest partition, so the number of partitions should
+// grow with the graph.
+public class ObjectTypeJoin {
+    private static final int WRITE_CHUNK = 1 << 16;
+
+    private final JenaNodeEncoder encoder;
+    private final int undefinedObjectType;
+    private final Path spillDirectory;
+    private final int partitions;
+    private final int threads;
+
+    public ObjectTypeJoin(JenaNodeEncoder encoder, int undefinedObjectType, Path spillDirectory, int partitions, int threads) {
+        this.encoder = encoder;
+        this.undefinedObjectType = undefinedObjectType;
+        this.spillDirectory = spillDirectory;
+        this.partitions = Math.max(1, partitions);
+        this.threads = Math.max(1, threads);
+    }
+
+    public void run(String graphPath, Map<Integer, Map<Integer, Set<Integer>>> targetCpot,
+                    Map<Integer, Integer> targetCec, Map<Tuple3<Integer, Integer, Integer>, SupportConfidence> targetSts) {
+        Path workDirectory = null;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            Files.createDirectories(spillDirectory);
+            workDirectory = Files.createTempDirectory(spillDirectory, "object-type-join-");
+            Path dir = workDirectory;
+            // All part files of the graph spill into the same partitions, so objects are typed across files.
+            List<String> files = GraphFiles.resolve(graphPath);
+            int concurrentFiles = Math.min(threads, files.size());
+            try (PartitionWriters types = new PartitionWriters(dir, "types");
+                 PartitionWriters probes = new PartitionWriters(dir, "probes");
+                 PartitionWriters literals = new PartitionWriters(dir, "literals")) {
+                GraphFiles.forEachFile(files, concurrentFiles, file -> {
+                    List<SpillStream> sinks = new ParallelNTriplesLoader(threads / concurrentFiles)
+                            .parse(file, () -> new SpillStream(types, probes, literals));
+                    for (SpillStream sink : sinks) {
+                        sink.flushAll();
+                    }
+                    return null;
+                });
+            }
+            try (PartitionWriters resolved = new PartitionWriters(dir, "resolved")) {
+                List<Future<Object>> futures = new ArrayList<>();
+                for (int p = 0; p < partitions; p++) {
+                    int partition = p;
+                    futures.add(executor.submit(() -> {
+                        resolveObjects(dir, partition, resolved);
+                        return null;
+                    }));
+                }
+                await(futures);
+            }
+            List<Future<StatsPartial>> aggregates = new ArrayList<>();
+            for (int p = 0; p < partitions; p++) {
+                int partition = p;
+                aggregates.add(executor.submit(() -> aggregateSubjects(dir, partition)));
+            }
+            for (StatsPartial partial : await(aggregates)) {
+                partial.mergeInto(targetCpot, targetCec, targetSts);
+            }
+            System.out.println("Resolved object types for " + graphPath + " in " + partitions + " partitions.");
+        } catch (IOException e) {
+            throw new RuntimeException("Object type join failed for " + graphPath + ": " + e.getMessage(), e);
+        } finally {
+            executor.shutdownNow();
+            if (workDirectory != null) {
+                deleteRecursively(workDirectory);
+            }
+        }
+    }
+
+    // Pass 2 for one partition: object -> classes from the type partition, probes rewritten to object classes.
+    private void resolveObjects(Path dir, int partition, PartitionWriters resolved) throws IOException {
+        Map<Long, int[]> typesOf = readTypes(dir, partition);
+        StringBuilder[] out = newBuffers();
+        long[] fields = new long[3];
+        try (BufferedReader reader = Files.newBufferedReader(partitionFile(dir, "probes", partition), StandardCharsets.US_ASCII)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                parseLongs(line, fields);
+                long subject = fields[1];
+                int predicate = (int) fields[2];
+                int[] classes = typesOf.get(fields[0]);
+                int target = partitionOf(subject);
+                if (classes == null) {
+                    appendRecord(out[target], subject, predicate, undefinedObjectType);
+                } else {
+                    for (int objectClass : classes) {
+                        appendRecord(out[target], subject, predicate, objectClass);
+                    }
+                }
+                if (out[target].length() >= WRITE_CHUNK) {
+                    resolved.write(target, out[target]);
+                }
+            }
+        }
+        for (int q = 0; q < partitions; q++) {
+            resolved.write(q, out[q]);
+        }
+    }
+
+    // Pass 3 for one partition: the resolved and literal records of its subjects, attributed to their classes.
+    private StatsPartial aggregateSubjects(Path dir, int partition) throws IOException {
+        Map<Long, int[]> typesOf = readTypes(dir, partition);
+        Map<Long, Set<Long>> pairsOf = new HashMap<>();
+        long[] fields = new long[3];
+        for (String name : new String[]{"resolved", "literals"}) {
+            try (BufferedReader reader = Files.newBufferedReader(partitionFile(dir, name, partition), StandardCharsets.US_ASCII)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    parseLongs(line, fields);
+                    if (typesOf.containsKey(fields[0])) {
+                        pairsOf.computeIfAbsent(fields[0], k -> new HashSet<>())
+                                .add(((long) fields[1] << 32) | (fields[2] & 0xFFFFFFFFL));
+                    }
+                }
+            }
+        }
+        StatsPartial partial = new StatsPartial();
+        typesOf.forEach((subject, classes) -> {
+            Set<Long> pairs = pairsOf.getOrDefault(subject, Set.of());
+            for (int classId : classes) {
+                partial.addEntity(classId);
+                for (long pair : pairs) {
+                    partial.addPair(classId, (int) (pair >>> 32), (int) pair);
+                }
+            }
+        });
+        return partial;
+    }
+
+    private Map<Long, int[]> readTypes(Path dir, int partition) throws IOException {
+        Map<Long, int[]> typesOf = new HashMap<>();
+        long[] fields = new long[2];
+        try (BufferedReader reader = Files.newBufferedReader(partitionFile(dir, "types", partition), StandardCharsets.US_ASCII)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                parseLongs(line, fields);
+                int classId = (int) fields[1];
+                typesOf.merge(fields[0], new int[]{classId}, (existing, added) -> {
+                    for (int c : existing) {
+                        if (c == classId) {
+                            return existing;
+                        }
+                    }
+                    int[] grown = Arrays.copyOf(existing, existing.length + 1);
+                    grown[existing.length] = classId;
+                    return grown;
+                });
+            }
+        }
+        return typesOf;
+    }
+
+    // Pass 1 sink, one per parser thread. Records are buffered per partition and written in chunks.
+    private final class SpillStream extends StreamRDFBase {
+        private final Node rdfType = RDF.type.asNode();
+        private final PartitionWriters types;
+        private final PartitionWriters probes;
+        private final PartitionWriters literals;
+        private final StringBuilder[] typeBuffers = newBuffers();
+        private final StringBuilder[] probeBuffers = newBuffers();
+        private final StringBuilder[] literalBuffers = newBuffers();
+
+        SpillStream(PartitionWriters types, PartitionWriters probes, PartitionWriters literals) {
+            this.types = types;
+            this.probes = probes;
+            this.literals = literals;
+        }
+
+        @Override
+        public void triple(Triple triple) {
+            Node predicate = triple.getPredicate();
+            Node object = triple.getObject();
+            if (!triple.getSubject().isURI() || !predicate.isURI()) {
+                return;
+            }
+            long subject = encoder.instanceKey(triple.getSubject());
+            if (rdfType.equals(predicate)) {
+                if (object.isURI()) {
+                    int p = partitionOf(subject);
+                    typeBuffers[p].append(subject).append('\t').append(encoder.encode(object)).append('\n');
+                    spillIfFull(types, typeBuffers, p);
+                }
+            } else if (object.isLiteral()) {
+                int p = partitionOf(subject);
+                appendRecord(literalBuffers[p], subject, encoder.encode(predicate), encoder.encode(object));
+                spillIfFull(literals, literalBuffers, p);
+            } else if (object.isURI()) {
+                long objectId = encoder.instanceKey(object);
+                int p = partitionOf(objectId);
+                appendRecord(probeBuffers[p], objectId, subject, encoder.encode(predicate));
+                spillIfFull(probes, probeBuffers, p);
+            } else {
+                // Blank node objects cannot be typed across parser ranges.
+                int p = partitionOf(subject);
+                appendRecord(literalBuffers[p], subject, encoder.encode(predicate), undefinedObjectType);
+                spillIfFull(literals, literalBuffers, p);
+            }
+        }
+
+        void flushAll() {
+            for (int p = 0; p < partitions; p++) {
+                types.write(p, typeBuffers[p]);
+                probes.write(p, probeBuffers[p]);
+                literals.write(p, literalBuffers[p]);
+            }
+        }
+
+        private void spillIfFull(PartitionWriters writers, StringBuilder[] buffers, int p) {
+            if (buffers[p].length() >= WRITE_CHUNK) {
+                writers.write(p, buffers[p]);
+            }
+        }
+    }
+
+    // One file per partition, shared by all threads; each write of a buffered chunk holds that file's lock.
+    private final class PartitionWriters implements AutoCloseable {
+        private final BufferedWriter[] writers = new BufferedWriter[partitions];
+
+        PartitionWriters(Path dir, String name) throws IOException {
+            for (int p = 0; p < partitions; p++) {
+                writers[p] = Files.newBufferedWriter(partitionFile(dir, name, p), StandardCharsets.US_ASCII);
+            }
+        }
+
+        // Writes and clears the buffer.
+        void write(int partition, StringBuilder buffer) {
+            if (buffer.length() == 0) {
+                return;
+            }
+            BufferedWriter writer = writers[partition];
+            synchronized (writer) {
+                try {
+                    writer.append(buffer);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            buffer.setLength(0);
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (BufferedWriter writer : writers) {
+                writer.close();
+            }
+        }
+    }
+
+    private StringBuilder[] newBuffers() {
+        StringBuilder[] buffers = new StringBuilder[partitions];
+        for (int p = 0; p < partitions; p++) {
+            buffers[p] = new StringBuilder();
+        }
+        return buffers;
+    }
+
+    private int partitionOf(long key) {
+        int h = (int) (key ^ (key >>> 32)) * 0x9E3779B9;
+        return Math.floorMod(h ^ (h >>> 16), partitions);
+    }
+
+    private static Path partitionFile(Path dir, String name, int partition) {
+        return dir.resolve(name + "-" + partition + ".tsv");
+    }
+
+    private static void appendRecord(StringBuilder out, long a, long b, int c) {
+        out.append(a).append('\t').append(b).append('\t').append(c).append('\n');
+    }
+
+    private static void parseLongs(String line, long[] fields) {
+        int start = 0;
+        for (int f = 0; f < fields.length; f++) {
+            int end = line.indexOf('\t', start);
+            if (end < 0) {
+                end = line.length();
+            }
+            fields[f] = Long.parseLong(line, start, end, 10);
+            start = end + 1;
+        }
+    }
+
+    private static <T> List<T> await(List<Future<T>> futures) throws IOException {
+        List<T> results = new ArrayList<>();
+        try {
+            for (Future<T> future : futures) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted during object type join", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            throw new IOException(e.getCause().getMessage(), e.getCause());
+        }
+        return results;
+    }
+
+    private static void deleteRecursively(Path dir) {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        } catch (IOException e) {
+            System.err.println("Could not clean up " + dir + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,264 @@
+package cs.utils;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Snapshot of cpot, sts and cec as packed primitive arrays (snapshot_format=packed), read through a memory mapping
+// instead of being deserialized. cpot is stored in CSR form: sorted class ids, the first pair of every class, the
+// predicates of the pairs and the first object type of every pair. sts is sorted by (class, predicate, object type)
+// and stored as columns, with the first row of every class. cec is read at once; cpot and sts are handed to
+// LazyGroupedMap targets, which build the maps of a class on first access, so loading costs O(classes).
+public final class PackedStats {
+    private static final int MAGIC = 0x434F5350; // "COSP"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 40;
+
+    private PackedStats() {
+    }
+
+    // True if the file starts like a packed snapshot rather than a Kryo one.
+    public static boolean isPacked(Path path) throws IOException {
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(path))) {
+            return in.readInt() == MAGIC;
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    // Writes the snapshot to the stream, which is flushed but not closed.
+    public static void write(OutputStream stream, Map<Integer, Map<Integer, Set<Integer>>> cpot,
+                             Map<Tuple3<Integer, Integer, Integer>, SupportConfidence> sts, Map<Integer, Integer> cec) throws IOException {
+        int[] classes = sortedKeys(cpot.keySet());
+        int[][] predicates = new int[classes.length][];
+        int[][][] objectTypes = new int[classes.length][][];
+        int pairCount = 0;
+        long typeCount = 0;
+        for (int i = 0; i < classes.length; i++) {
+            Map<Integer, Set<Integer>> pairs = cpot.get(classes[i]);
+            predicates[i] = sortedKeys(pairs.keySet());
+            objectTypes[i] = new int[predicates[i].length][];
+            for (int j = 0; j < predicates[i].length; j++) {
+                objectTypes[i][j] = sortedKeys(pairs.get(predicates[i][j]));
+                typeCount += objectTypes[i][j].length;
+            }
+            pairCount += predicates[i].length;
+        }
+        @SuppressWarnings("unchecked")
+        Map.Entry<Tuple3<Integer, Integer, Integer>, SupportConfidence>[] triplets = sts.entrySet().toArray(new Map.Entry[0]);
+        Arrays.sort(triplets, Comparator.comparing((Map.Entry<Tuple3<Integer, Integer, Integer>, SupportConfidence> e) -> e.getKey()._1())
+                .thenComparing(e -> e.getKey()._2())
+                .thenComparing(e -> e.getKey()._3()));
+        int groupCount = 0;
+        for (int i = 0; i < triplets.length; i++) {
+            if (i == 0 || !triplets[i].getKey()._1().equals(triplets[i - 1].getKey()._1())) {
+                groupCount++;
+            }
+        }
+        int[] counted = sortedKeys(cec.keySet());
+
+        DataOutputStream out = new DataOutputStream(stream);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(classes.length);
+        out.writeInt(pairCount);
+        out.writeLong(typeCount);
+        out.writeInt(groupCount);
+        out.writeInt(counted.length);
+        out.writeLong(triplets.length);
+
+        for (int classId : classes) {
+            out.writeInt(classId);
+        }
+        int firstPair = 0;
+        for (int[] classPredicates : predicates) {
+            out.writeInt(firstPair);
+            firstPair += classPredicates.length;
+        }
+        out.writeInt(firstPair);
+        for (int[] classPredicates : predicates) {
+            for (int predicateId : classPredicates) {
+                out.writeInt(predicateId);
+            }
+        }
+        long firstType = 0;
+        for (int[][] classTypes : objectTypes) {
+            for (int[] types : classTypes) {
+                out.writeLong(firstType);
+                firstType += types.length;
+            }
+        }
+        out.writeLong(firstType);
+        for (int[][] classTypes : objectTypes) {
+            for (int[] types : classTypes) {
+                for (int type : types) {
+                    out.writeInt(type);
+                }
+            }
+        }
+
+        for (int i = 0; i < triplets.length; i++) {
+            if (i == 0 || !triplets[i].getKey()._1().equals(triplets[i - 1].getKey()._1())) {
+                out.writeInt(triplets[i].getKey()._1());
+            }
+        }
+        for (int i = 0; i < triplets.length; i++) {
+            if (i == 0 || !triplets[i].getKey()._1().equals(triplets[i - 1].getKey()._1())) {
+                out.writeLong(i);
+            }
+        }
+        out.writeLong(triplets.length);
+        for (Map.Entry<Tuple3<Integer, Integer, Integer>, SupportConfidence> triplet : triplets) {
+            out.writeInt(triplet.getKey()._2());
+        }
+        for (Map.Entry<Tuple3<Integer, Integer, Integer>, SupportConfidence> triplet : triplets) {
+            out.writeInt(triplet.getKey()._3());
+        }
+        for (Map.Entry<Tuple3<Integer, Integer, Integer>, SupportConfidence> triplet : triplets) {
+            out.writeInt(triplet.getValue().getSupport());
+        }
+        // Confidence stays a double so that a snapshot round trip is exact.
+        for (Map.Entry<Tuple3<Integer, Integer, Integer>, SupportConfidence> triplet : triplets) {
+            out.writeDouble(triplet.getValue().getConfidence());
+        }
+
+        for (int classId : counted) {
+            out.writeInt(classId);
+        }
+        for (int classId : counted) {
+            out.writeInt(cec.get(classId));
+        }
+        out.flush();
+    }
+
+    // Reads the snapshot into the (empty) targets. cpot and sts are filled class by class on first access if they are
+    // LazyGroupedMaps and at once otherwise; returns true if anything was deferred.
+    public static boolean read(Path path, Map<Integer, Map<Integer, Set<Integer>>> cpot,
+                               Map<Tuple3<Integer, Integer, Integer>, SupportConfidence> sts, Map<Integer, Integer> cec) throws IOException {
+        MappedFileBuffer buffer = MappedFileBuffer.open(path);
+        Layout layout;
+        try {
+            layout = new Layout(buffer);
+        } finally {
+            // The mapping stays readable after its channel is closed.
+            buffer.close();
+        }
+        for (int i = 0; i < layout.countCount; i++) {
+            cec.put(buffer.getInt(layout.counted + 4L * i), buffer.getInt(layout.counts + 4L * i));
+        }
+        int[] classes = readInts(buffer, layout.classes, layout.classCount);
+        int[] groups = readInts(buffer, layout.groups, layout.groupCount);
+        System.out.println("Mapped data structures: " + layout.classCount + " " + layout.rowCount + " " + layout.countCount);
+        LazyGroupedMap.GroupLoader<Integer, Map<Integer, Set<Integer>>> cpotLoader = (classId, sink) -> {
+            int index = Arrays.binarySearch(classes, classId);
+            Map<Integer, Set<Integer>> pairs = new ConcurrentHashMap<>();
+            int end = buffer.getInt(layout.firstPairs + 4L * (index + 1));
+            for (int pair = buffer.getInt(layout.firstPairs + 4L * index); pair < end; pair++) {
+                Set<Integer> objectTypes = ConcurrentHashMap.newKeySet();
+                long typesEnd = buffer.getLong(layout.firstTypes + 8L * (pair + 1));
+                for (long type = buffer.getLong(layout.firstTypes + 8L * pair); type < typesEnd; type++) {
+                    objectTypes.add(buffer.getInt(layout.types + 4L * type));
+                }
+                pairs.put(buffer.getInt(layout.predicates + 4L * pair), objectTypes);
+            }
+            sink.accept(classId, pairs);
+        };
+        LazyGroupedMap.GroupLoader<Tuple3<Integer, Integer, Integer>, SupportConfidence> stsLoader = (classId, sink) -> {
+            int index = Arrays.binarySearch(groups, classId);
+            long end = buffer.getLong(layout.firstRows + 8L * (index + 1));
+            for (long row = buffer.getLong(layout.firstRows + 8L * index); row < end; row++) {
+                sink.accept(new Tuple3<>(classId, buffer.getInt(layout.rowPredicates + 4L * row), buffer.getInt(layout.rowObjectTypes + 4L * row)),
+                        new SupportConfidence(buffer.getInt(layout.rowSupports + 4L * row), buffer.getDouble(layout.rowConfidences + 8L * row)));
+            }
+        };
+        return fill(cpot, classes, cpotLoader) | fill(sts, groups, stsLoader);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <K, V> boolean fill(Map<K, V> target, int[] groups, LazyGroupedMap.GroupLoader<K, V> loader) {
+        if (target instanceof LazyGroupedMap) {
+            ((LazyGroupedMap<K, V>) target).defer(groups, loader);
+            return groups.length > 0;
+        }
+        for (int group : groups) {
+            loader.load(group, target::put);
+        }
+        return false;
+    }
+
+    private static int[] readInts(MappedFileBuffer buffer, long offset, int count) {
+        int[] values = new int[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = buffer.getInt(offset + 4L * i);
+        }
+        return values;
+    }
+
+    private static int[] sortedKeys(Set<Integer> keys) {
+        int[] sorted = new int[keys.size()];
+        int i = 0;
+        for (Integer key : keys) {
+            sorted[i++] = key;
+        }
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    // Section offsets of a snapshot, derived from the counts in its header.
+    private static final class Layout {
+        private final int classCount;
+        private final int groupCount;
+        private final int countCount;
+        private final long rowCount;
+        private final long classes;
+        private final long firstPairs;
+        private final long predicates;
+        private final long firstTypes;
+        private final long types;
+        private final long groups;
+        private final long firstRows;
+        private final long rowPredicates;
+        private final long rowObjectTypes;
+        private final long rowSupports;
+        private final long rowConfidences;
+        private final long counted;
+        private final long counts;
+
+        Layout(MappedFileBuffer buffer) throws IOException {
+            if (buffer.size() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                throw new IOException("Not a packed statistics snapshot");
+            }
+            classCount = buffer.getInt(8);
+            int pairCount = buffer.getInt(12);
+            long typeCount = buffer.getLong(16);
+            groupCount = buffer.getInt(24);
+            countCount = buffer.getInt(28);
+            rowCount = buffer.getLong(32);
+            classes = HEADER_SIZE;
+            firstPairs = classes + 4L * classCount;
+            predicates = firstPairs + 4L * (classCount + 1);
+            firstTypes = predicates + 4L * pairCount;
+            types = firstTypes + 8L * (pairCount + 1);
+            groups = types + 4L * typeCount;
+            firstRows = groups + 4L * groupCount;
+            rowPredicates = firstRows + 8L * (groupCount + 1);
+            rowObjectTypes = rowPredicates + 4L * rowCount;
+            rowSupports = rowObjectTypes + 4L * rowCount;
+            rowConfidences = rowSupports + 4L * rowCount;
+            counted = rowConfidences + 8L * rowCount;
+            counts = counted + 4L * countCount;
+            if (buffer.size() < counts + 4L * countCount) {
+                throw new IOException("Truncated packed statistics snapshot");
+            }
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package cs.utils;
+
+import cs.cose.encoders.EncodedTripleStream;
+import cs.cose.encoders.JenaNodeEncoder;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFParser;
+import org.apache.jena.riot.system.StreamRDF;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.function.Supplier;
+
+// Parses an N-Triples file on several threads. The file is cut into byte ranges that end on a newline, every range
+// gets its own RDFParser, and each worker aggregates into plain thread-local maps that are merged into the targets
+// once all ranges are done, so the shared concurrent maps are touched once per key instead of once per triple.
+// Blank node labels are scoped per parser, which is harmless here because blank nodes are never encoded (-1).
+public class ParallelNTriplesLoader {
+    private static final int READ_BUFFER_SIZE = 1 << 16;
+    // Ranges per thread, so a slow range does not leave the other threads idle at the end.
+    private static final int RANGES_PER_THREAD = 4;
+    private static final int COMPRESSED_CHUNK_SIZE = 8 << 20;
+
+    private final JenaNodeEncoder encoder;
+    private final int threads;
+    private final int batchSize;
+
+    public ParallelNTriplesLoader(JenaNodeEncoder encoder, int threads, int batchSize) {
+        this.encoder = encoder;
+        this.threads = Math.max(1, threads);
+        this.batchSize = batchSize;
+    }
+
+    // For parse() with custom sinks only; load() needs an encoder.
+    public ParallelNTriplesLoader(int threads) {
+        this(null, threads, 0);
+    }
+
+    public void load(String graphPath, Map<Integer, Map<Integer, Set<Integer>>> targetCpot,
+                     Map<Integer, Integer> targetCec, Map<Tuple3<Integer, Integer, Integer>, SupportConfidence> targetSts) {
+        List<PartialStream> sinks = parse(graphPath, PartialStream::new);
+        for (PartialStream sink : sinks) {
+            sink.partial.mergeInto(targetCpot, targetCec, targetSts);
+        }
+    }
+
+    // Parses the ranges of graphPath on the worker threads. Every thread creates one sink with sinkFactory and
+    // feeds it all the ranges it parses, each one framed by start() and finish(); the sinks are returned so that
+    // whatever they collected can be merged.
+    public <T extends StreamRDF> List<T> parse(String graphPath, Supplier<T> sinkFactory) {
+        if (GraphInput.isCompressed(graphPath)) {
+            return parseCompressed(graphPath, sinkFactory);
+        }
+        Path path = Paths.get(graphPath);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            List<long[]> ranges = splitAtNewlines(channel, (long) threads * RANGES_PER_THREAD);
+            ThreadLocal<T> sinks = new ThreadLocal<>();
+            List<T> allSinks = new ArrayList<>();
+            List<Future<?>> futures = new ArrayList<>();
+            for (long[] range : ranges) {
+                futures.add(executor.submit(() -> {
+                    T sink = sinkFor(sinks, allSinks, sinkFactory);
+                    InputStream in = new BufferedInputStream(new RangeInputStream(channel, range[0], range[1]), READ_BUFFER_SIZE);
+                    RDFParser.source(in).lang(Lang.NTRIPLES).parse(sink);
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            System.out.println("Parsed " + graphPath + " in " + ranges.size() + " ranges on " + threads + " threads.");
+            return allSinks;
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read " + graphPath + ": " + e.getMessage(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while parsing " + graphPath, e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Failed to parse " + graphPath + ": " + e.getCause().getMessage(), e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private class PartialStream extends EncodedTripleStream {
+        private final StatsPartial partial;
+
+        PartialStream() {
+            this(new StatsPartial());
+        }
+
+        private PartialStream(StatsPartial partial) {
+            super(encoder, batchSize, partial::add);
+            this.partial = partial;
+        }
+    }
+
+    // Compressed input cannot be split by byte offset, so it is decompressed on GraphInput's threads and cut into
+    // newline-aligned chunks on the calling thread, which are parsed on the workers. The chunks waiting for or in
+    // parsing hold at most GraphInput.decompressBufferBytes(), counted in KiB permits; a larger chunk takes them all.
+    private <T extends StreamRDF> List<T> parseCompressed(String graphPath, Supplier<T> sinkFactory) {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        int budgetKb = (int) Math.min(Integer.MAX_VALUE, Math.max(1, GraphInput.decompressBufferBytes() >> 10));
+        Semaphore inFlight = new Semaphore(budgetKb);
+        ThreadLocal<T> sinks = new ThreadLocal<>();
+        List<T> allSinks = new ArrayList<>();
+        List<Future<?>> futures = new ArrayList<>();
+        try (InputStream in = GraphInput.open(graphPath, threads)) {
+            byte[] buffer = new byte[COMPRESSED_CHUNK_SIZE];
+            int filled = 0;
+            while (true) {
+                if (filled == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+                int read = in.read(buffer, filled, buffer.length - filled);
+                if (read > 0) {
+                    filled += read;
+                    if (filled < buffer.length) {
+                        continue;
+                    }
+                }
+                int end = read < 0 ? filled : lastNewline(buffer, filled) + 1;
+                if (end > 0) {
+                    int permits = (int) Math.min(budgetKb, (end >> 10) + 1);
+                    inFlight.acquire(permits);
+                    byte[] chunk = Arrays.copyOf(buffer, end);
+                    futures.add(executor.submit(() -> {
+                        try {
+                            RDFParser.source(new ByteArrayInputStream(chunk)).lang(Lang.NTRIPLES).parse(sinkFor(sinks, allSinks, sinkFactory));
+                        } finally {
+                            inFlight.release(permits);
+                        }
+                    }));
+                    System.arraycopy(buffer, end, buffer, 0, filled - end);
+                    filled -= end;
+                }
+                if (read < 0) {
+                    break;
+                }
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            System.out.println("Parsed compressed " + graphPath + " in " + futures.size() + " chunks on " + threads + " threads.");
+            return allSinks;
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read " + graphPath + ": " + e.getMessage(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while parsing " + graphPath, e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Failed to parse " + graphPath + ": " + e.getCause().getMessage(), e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static <T> T sinkFor(ThreadLocal<T> sinks, List<T> allSinks, Supplier<T> sinkFactory) {
+        T sink = sinks.get();
+        if (sink == null) {
+            sink = sinkFactory.get();
+            sinks.set(sink);
+            synchronized (allSinks) {
+                allSinks.add(sink);
+            }
+        }
+        return sink;
+    }
+
+    // Index of the last '\n' in the first `length` bytes, or -1.
+    private static int lastNewline(byte[] buffer, int length) {
+        for (int i = length - 1; i >= 0; i--) {
+            if (buffer[i] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Cuts [0, size) into about `parts` ranges; every range but the last ends right after a '\n'.
+    static List<long[]> splitAtNewlines(FileChannel channel, long parts) throws IOException {
+        long size = channel.size();
+        long step = Math.max(1, size / Math.max(1, parts));
+        List<long[]> ranges = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        long start = 0;
+        while (start < size) {
+            long end = start + step >= size ? size : nextLineStart(channel, start + step, buffer);
+            ranges.add(new long[]{start, end});
+            start = end;
+        }
+        return ranges;
+    }
+
+    private static long nextLineStart(FileChannel channel, long pos, ByteBuffer buffer) throws IOException {
+        long size = channel.size();
+        while (pos < size) {
+            buffer.clear();
+            int read = channel.read(buffer, pos);
+            if (read <= 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                if (buffer.get(i) == '\n') {
+                    return pos + i + 1;
+                }
+            }
+            pos += read;
+        }
+        return size;
+    }
+}
@@ -19,6 +19,10 @@ public class SHACL {
     public static final Resource PropertyShape = resource("PropertyShape");
 
     public static final Property targetClass = property("targetClass");
+    public static final Property targetNode = property("targetNode");
+    public static final Property targetSubjectsOf = property("targetSubjectsOf");
+    public static final Property targetObjectsOf = property("targetObjectsOf");
+    public static final Property target = property("target");
     public static final Property property = property("property");
     public static final Property path = property("path");
     public static final Property datatype = property("datatype");
@@ -1,6 +1,8 @@
 package cs.utils;
 
+import org.apache.jena.graph.Graph;
 import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
 import org.apache.jena.rdf.model.*;
 import org.apache.jena.shacl.*;
 import org.apache.jena.shacl.validation.ReportEntry;
@@ -8,6 +10,7 @@ import org.apache.jena.vocabulary.*;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
@@ -19,6 +22,13 @@ public class SHACLValidator {
     private static final String INTEGER_TYPE_URI = "http://www.w3.org/2001/XMLSchema#integer";
     private static final String INT_TYPE_URI = "http://www.w3.org/2001/XMLSchema#int";
 
+    // Index of the updated graph's file; when set, violating nodes' triples are read from the file.
+    private SubjectOffsetIndex subjectIndex;
+
+    public void setSubjectIndex(SubjectOffsetIndex subjectIndex) {
+        this.subjectIndex = subjectIndex;
+    }
+
     // Validate the given data model against the SHACL shapes model.
     public List<ReportEntry> validateModel(Model dataModel, Model shapesModel) {
         List<ReportEntry> violations = new ArrayList<>();
@@ -34,6 +44,110 @@ public class SHACLValidator {
         return violations;
     }
 
+    // Validate the entities of an indexed file one at a time, without loading the graph. Each entity is checked
+    // together with the rdf:type triples of its IRI objects, so sh:class sees the classes of the nodes it points to;
+    // constraints that reach further (inverse paths, nested shapes) only see the entity's own triples. Those objects
+    // are focus nodes of their own entity graphs, so only the entries of the entity itself are kept.
+    public List<ReportEntry> validateIndexedEntities(SubjectOffsetIndex index, Shapes shapes) {
+        List<ReportEntry> violations = Collections.synchronizedList(new ArrayList<>());
+        int threads = Runtime.getRuntime().availableProcessors();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Void>> futures = new ArrayList<>();
+            long rangeSize = Math.max(1, (index.size() + threads * 4L - 1) / (threads * 4L));
+            for (long from = 0; from < index.size(); from += rangeSize) {
+                long start = from;
+                futures.add(executor.submit(() -> {
+                    index.forEachSubject(start, start + rangeSize, (subject, triples) -> {
+                        Graph entityGraph = ModelFactory.createDefaultModel().getGraph();
+                        for (Triple triple : triples) {
+                            entityGraph.add(triple);
+                            if (triple.getObject().isURI() && !triple.getPredicate().equals(RDF.type.asNode())) {
+                                for (Triple objectTriple : index.triplesOf(triple.getObject())) {
+                                    if (objectTriple.getPredicate().equals(RDF.type.asNode())) {
+                                        entityGraph.add(objectTriple);
+                                    }
+                                }
+                            }
+                        }
+                        for (ReportEntry entry : ShaclValidator.get().validate(shapes, entityGraph).getEntries()) {
+                            if (subject.equals(entry.focusNode())) {
+                                violations.add(entry);
+                            }
+                        }
+                    });
+                    return null;
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while validating indexed entities", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Failed to validate indexed entities: " + e.getCause().getMessage(), e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        return violations;
+    }
+
+    // Whether every shape is targeted through sh:targetClass only, so that its focus nodes are found from the
+    // rdf:type triples alone; implicit class targets and node, subjects-of, objects-of and SPARQL targets are not.
+    public static boolean classTargetsOnly(Model shapesModel) {
+        for (Property target : new Property[]{SHACL.targetNode, SHACL.targetSubjectsOf, SHACL.targetObjectsOf, SHACL.target}) {
+            if (shapesModel.contains(null, target, (RDFNode) null)) {
+                return false;
+            }
+        }
+        for (Resource shape : shapesModel.listSubjectsWithProperty(RDF.type, SHACL.NodeShape).toList()) {
+            if (shape.hasProperty(RDF.type, RDFS.Class) || shape.hasProperty(RDF.type, OWL.Class)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Validates the instances of the shapes' target classes (and their subclasses) straight from the encoded file:
+    // the focus nodes come from the blocks whose class blooms name a target class, and their triples from the blocks
+    // whose subject blooms hold them. As in validateIndexedEntities, the rdf:type triples of their IRI objects are
+    // added for sh:class, and only entries about the focus nodes themselves are kept.
+    public List<ReportEntry> validateClassTargets(EncodedTripleFile triples, Model shapesModel, Shapes shapes) throws IOException {
+        List<Integer> targetClasses = new ArrayList<>();
+        shapesModel.listObjectsOfProperty(SHACL.targetClass).forEachRemaining(target -> {
+            int id = target.isURIResource() ? triples.termId(target.asResource().getURI()) : -1;
+            if (id >= 0) {
+                targetClasses.add(id);
+            }
+        });
+        int[] classes = triples.withSubclasses(targetClasses.stream().mapToInt(Integer::intValue).toArray());
+        int[] focus = triples.subjectsOfClasses(classes);
+        Model focusModel = triples.toModel(focus);
+        Set<Integer> objects = new TreeSet<>();
+        focusModel.getGraph().find(Node.ANY, Node.ANY, Node.ANY).forEachRemaining(triple -> {
+            if (triple.getObject().isURI() && !triple.getPredicate().equals(RDF.type.asNode())) {
+                int id = triples.termId(triple.getObject().getURI());
+                if (id >= 0) {
+                    objects.add(id);
+                }
+            }
+        });
+        focusModel.add(triples.toModel(objects.stream().mapToInt(Integer::intValue).toArray(), triples.rdfTypeId()));
+        Set<Node> focusNodes = new HashSet<>();
+        for (int id : focus) {
+            focusNodes.add(EncodedTripleFile.toNode(triples.term(id)));
+        }
+        List<ReportEntry> violations = new ArrayList<>();
+        for (ReportEntry entry : ShaclValidator.get().validate(shapes, focusModel.getGraph()).getEntries()) {
+            if (focusNodes.contains(entry.focusNode())) {
+                violations.add(entry);
+            }
+        }
+        System.out.println("Validated " + focus.length + " instances of " + classes.length + " target classes from " + triples.size() + " encoded triples");
+        return violations;
+    }
+
     // Validate the data model in parallel and process violations immediately.
     public void validateModelInParallelAndProcessDirectly(Model dataModel, Shapes shapes, AtomicInteger violationCount,
                                                           Model updatedGraph, Model deltaGraph, Set<Resource> visitedNodes) {
@@ -79,7 +193,7 @@ public class SHACLValidator {
                         violations.add(entry);
                         violationCount.incrementAndGet();
                         // Copy only triples from Vn+1 in which the violating focus node appears as a subject.
-                        processViolationInMemory(entry, updatedGraph, deltaGraph, visitedNodes, false);
+                        processViolationInMemory(entry, updatedGraph, deltaGraph, visitedNodes, false, subjectIndex);
                     }
                 }
             } catch (Exception e) {
@@ -91,15 +205,21 @@ public class SHACLValidator {
     // Copy from Vn+1 only those triples where the violating focus node appears as a subject.
     private static void processViolationInMemory(ReportEntry entry, Model updatedGraph,
                                                  Model deltaGraph, Set<Resource> visitedNodes,
-                                                 boolean copyObjects) {
+                                                 boolean copyObjects, SubjectOffsetIndex subjectIndex) {
         Node focusNode = entry.focusNode();
         if (focusNode.isURI()) {
             Resource resourceFocusNode = updatedGraph.createResource(focusNode.getURI());
             if (visitedNodes.add(resourceFocusNode)) {
                 // Copy triples where the focus node is the subject.
-                StmtIterator iter = updatedGraph.listStatements(resourceFocusNode, null, (RDFNode) null);
-                while (iter.hasNext()) {
-                    deltaGraph.add(iter.next());
+                if (subjectIndex != null) {
+                    for (Triple triple : subjectIndex.triplesOf(focusNode)) {
+                        deltaGraph.getGraph().add(triple);
+                    }
+                } else {
+                    StmtIterator iter = updatedGraph.listStatements(resourceFocusNode, null, (RDFNode) null);
+                    while (iter.hasNext()) {
+                        deltaGraph.add(iter.next());
+                    }
                 }
                 // Optionally copy triples where it appears as object.
                 if (copyObjects) {
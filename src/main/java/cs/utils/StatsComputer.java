@@ -10,6 +10,7 @@ import java.util.*;
 
 
 public class StatsComputer {
+    private static final int BATCH_SIZE = 4096;
     private final Map<Tuple3<Integer, Integer, Integer>, SupportConfidence> shapeTripletSupport;
     private final Map<Integer, Set<Integer>> propWithClassesHavingMaxCountOne; // Size O(P*T)
 
@@ -19,40 +20,60 @@ public class StatsComputer {
     }
 
 
+    // With a class-keyed stats_mode the triplets follow that mode: rdf:type statements are not counted as properties,
+    // and IRI and blank node objects are typed as in the stored sts, by their classes in the delta graph with
+    // stats_mode=type_resolved and as the undefined object type otherwise.
     public void computeSupportConfidenceFromDeltaGraph(Model deltaGraph, Map<Integer, Integer> classToEntityCount) {
+        boolean classKeyed = Main.classKeyedStats();
+        boolean resolveObjects = Main.objectTypesResolved();
+        int undefinedObjectType = Main.encodeSchemaTerms(new CharSequence[]{Constants.OBJECT_UNDEFINED_TYPE})[0];
         StmtIterator stmtIterator = deltaGraph.listStatements();
+        List<Statement> batch = new ArrayList<>(BATCH_SIZE);
+        List<String> batchTypes = new ArrayList<>(BATCH_SIZE);
+        // typeEnds[i] is the end of the types of batch.get(i) in batchTypes.
+        int[] typeEnds = new int[BATCH_SIZE];
+        // objectTypeEnds[i] is the end of the object classes of batch.get(i) in batchObjectTypes, or -1 if its
+        // object type is the encoded object itself.
+        List<String> batchObjectTypes = new ArrayList<>();
+        int[] objectTypeEnds = new int[BATCH_SIZE];
 
         while (stmtIterator.hasNext()) {
             Statement stmt = stmtIterator.nextStatement();
+            if (classKeyed && RDF.type.equals(stmt.getPredicate())) {
+                continue;
+            }
 
-            Resource subject = stmt.getSubject();
-            Property predicate = stmt.getPredicate();
-            RDFNode object = stmt.getObject();
-
-            // Retrieve subject types (rdf:type)
-            StmtIterator typeIterator = deltaGraph.listStatements(subject, RDF.type, (RDFNode) null);
+            // Retrieve subject types (rdf:type); the statement is encoded once and counted for each of them
+            int typesBefore = batchTypes.size();
+            StmtIterator typeIterator = deltaGraph.listStatements(stmt.getSubject(), RDF.type, (RDFNode) null);
             while (typeIterator.hasNext()) {
-                Statement typeStmt = typeIterator.nextStatement();
-                Resource classType = typeStmt.getObject().asResource();
-
-                // Encode the class, predicate, and object type
-                int classId = Main.encodeResource(classType);
-                int predicateId = Main.encodeResource(predicate);
-                int objectTypeId = object.isResource() ? Main.encodeResource(object.asResource()) : Main.encodeLiteralType(object);
-
-                // Create the type-property-object tuple
-                Tuple3<Integer, Integer, Integer> tuple3 = new Tuple3<>(classId, predicateId, objectTypeId);
-
-                // Update support in sts
-                shapeTripletSupport.computeIfAbsent(tuple3, k -> new SupportConfidence()).incrementSupport();
-
-                // Track properties with max count = 1 (if enabled)
-                if (Main.extractMaxCardConstraints) {
-                    propWithClassesHavingMaxCountOne.putIfAbsent(predicateId, new HashSet<>());
-                    propWithClassesHavingMaxCountOne.get(predicateId).add(classId);
+                batchTypes.add(typeIterator.nextStatement().getObject().asResource().getURI());
+            }
+            if (batchTypes.size() == typesBefore) {
+                continue;
+            }
+            batch.add(stmt);
+            typeEnds[batch.size() - 1] = batchTypes.size();
+            objectTypeEnds[batch.size() - 1] = -1;
+            if (classKeyed && !stmt.getObject().isLiteral()) {
+                if (resolveObjects && stmt.getObject().isURIResource()) {
+                    StmtIterator objectTypes = deltaGraph.listStatements(stmt.getObject().asResource(), RDF.type, (RDFNode) null);
+                    while (objectTypes.hasNext()) {
+                        batchObjectTypes.add(objectTypes.nextStatement().getObject().asResource().getURI());
+                    }
                 }
+                objectTypeEnds[batch.size() - 1] = batchObjectTypes.size();
+            }
+            if (batch.size() == BATCH_SIZE) {
+                accumulateBatch(batch, batchTypes, typeEnds, batchObjectTypes, objectTypeEnds, undefinedObjectType);
+                batch.clear();
+                batchTypes.clear();
+                batchObjectTypes.clear();
             }
         }
+        if (!batch.isEmpty()) {
+            accumulateBatch(batch, batchTypes, typeEnds, batchObjectTypes, objectTypeEnds, undefinedObjectType);
+        }
 
         // Compute confidence for each triplet in sts
         for (Map.Entry<Tuple3<Integer, Integer, Integer>, SupportConfidence> entry : shapeTripletSupport.entrySet()) {
@@ -73,6 +94,48 @@ public class StatsComputer {
         System.out.println("Support and confidence computation completed.");
     }
 
+    private void accumulateBatch(List<Statement> batch, List<String> batchTypes, int[] typeEnds,
+                                 List<String> batchObjectTypes, int[] objectTypeEnds, int undefinedObjectType) {
+        // Encode the statements and the classes of the whole batch at once
+        int[] encoded = Main.encodeStatements(batch);
+        int[] classIds = Main.encodeSchemaTerms(batchTypes.toArray(new CharSequence[0]));
+        int[] objectClassIds = Main.encodeSchemaTerms(batchObjectTypes.toArray(new CharSequence[0]));
+
+        int type = 0;
+        int objectType = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            int predicateId = encoded[3 * i + 1];
+            int[] objectTypeIds;
+            if (objectTypeEnds[i] < 0) {
+                objectTypeIds = new int[]{encoded[3 * i + 2]};
+            } else if (objectTypeEnds[i] == objectType) {
+                objectTypeIds = new int[]{undefinedObjectType};
+            } else {
+                objectTypeIds = Arrays.copyOfRange(objectClassIds, objectType, objectTypeEnds[i]);
+                objectType = objectTypeEnds[i];
+            }
+            for (; type < typeEnds[i]; type++) {
+                for (int objectTypeId : objectTypeIds) {
+                    accumulate(classIds[type], predicateId, objectTypeId);
+                }
+            }
+        }
+    }
+
+    private void accumulate(int classId, int predicateId, int objectTypeId) {
+        // Create the type-property-object tuple
+        Tuple3<Integer, Integer, Integer> tuple3 = new Tuple3<>(classId, predicateId, objectTypeId);
+
+        // Update support in sts
+        shapeTripletSupport.computeIfAbsent(tuple3, k -> new SupportConfidence()).incrementSupport();
+
+        // Track properties with max count = 1 (if enabled)
+        if (Main.extractMaxCardConstraints) {
+            propWithClassesHavingMaxCountOne.putIfAbsent(predicateId, new HashSet<>());
+            propWithClassesHavingMaxCountOne.get(predicateId).add(classId);
+        }
+    }
+
     // Getters
     public Map<Tuple3<Integer, Integer, Integer>, SupportConfidence> getShapeTripletSupport() {
         return shapeTripletSupport;
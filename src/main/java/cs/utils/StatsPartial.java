@@ -0,0 +1,63 @@
+package cs.utils;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Aggregate with the same shape as Main's cpot/cec/sts, kept in plain collections so that a single worker thread
+// can fill it without synchronization. Partials are merged into the shared concurrent maps once the worker is done.
+public class StatsPartial {
+    private final Map<Integer, Map<Integer, Set<Integer>>> cpot = new HashMap<>();
+    private final Map<Integer, Integer> cec = new HashMap<>();
+    private final Map<Tuple3<Integer, Integer, Integer>, SupportConfidence> sts = new HashMap<>();
+
+    // One triple: counts towards both the (class, predicate, object type) support and the class count.
+    public void add(int classId, int predicateId, int objectTypeId) {
+        addPair(classId, predicateId, objectTypeId);
+        addEntity(classId);
+    }
+
+    // Entity-level counting, where a class is counted once per entity and a pair once per entity that has it.
+    public void addEntity(int classId) {
+        cec.merge(classId, 1, Integer::sum);
+    }
+
+    public void addPair(int classId, int predicateId, int objectTypeId) {
+        cpot.computeIfAbsent(classId, k -> new HashMap<>())
+                .computeIfAbsent(predicateId, k -> new HashSet<>())
+                .add(objectTypeId);
+        sts.computeIfAbsent(new Tuple3<>(classId, predicateId, objectTypeId), k -> new SupportConfidence()).incrementSupport();
+    }
+
+    // Consecutive [classId, predicateId, objectTypeId] ints, as produced by EncodedTripleStream.
+    public void add(int[] encoded) {
+        for (int i = 0; i < encoded.length; i += 3) {
+            add(encoded[i], encoded[i + 1], encoded[i + 2]);
+        }
+    }
+
+    // Not thread-safe with respect to other merges into the same targets.
+    public void mergeInto(Map<Integer, Map<Integer, Set<Integer>>> targetCpot, Map<Integer, Integer> targetCec,
+                          Map<Tuple3<Integer, Integer, Integer>, SupportConfidence> targetSts) {
+        merge(cpot, cec, sts, targetCpot, targetCec, targetSts);
+    }
+
+    // Adds one set of statistics to another: object type sets are united, supports and class counts are summed.
+    public static void merge(Map<Integer, Map<Integer, Set<Integer>>> cpot, Map<Integer, Integer> cec,
+                             Map<Tuple3<Integer, Integer, Integer>, SupportConfidence> sts,
+                             Map<Integer, Map<Integer, Set<Integer>>> targetCpot, Map<Integer, Integer> targetCec,
+                             Map<Tuple3<Integer, Integer, Integer>, SupportConfidence> targetSts) {
+        cpot.forEach((classId, props) -> {
+            Map<Integer, Set<Integer>> targetProps = targetCpot.computeIfAbsent(classId, k -> new ConcurrentHashMap<>());
+            props.forEach((predicateId, objectTypes) ->
+                    targetProps.computeIfAbsent(predicateId, k -> ConcurrentHashMap.newKeySet()).addAll(objectTypes));
+        });
+        sts.forEach((triplet, sc) -> {
+            SupportConfidence target = targetSts.computeIfAbsent(triplet, k -> new SupportConfidence());
+            target.setSupport(target.getSupport() + sc.getSupport());
+        });
+        cec.forEach((classId, count) -> targetCec.merge(classId, count, Integer::sum));
+    }
+}
@@ -0,0 +1,1060 @@
+package cs.utils;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.esotericsoftware.kryo.util.DefaultInstantiatorStrategy;
+import org.objenesis.strategy.StdInstantiatorStrategy;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+// Persists cpot, sts and cec across runs. The Kryo file is the base image; with an append log, every later save only
+// appends the entries that changed since the last save to <kryo>.log as one record of idempotent upserts and removals,
+// so saving costs O(changes) instead of rewriting all statistics. Changes are found by comparing against fingerprints
+// of the last persisted state (exact for cec, 64-bit hashes of the object type sets and support/confidence values);
+// when the maps are LazyGroupedMaps, only the keys they saw written since the last save are compared.
+// Once the log outgrows compactionRatio times the base, it is renamed to <kryo>.log.compacting and folded into a new
+// base. Loading replays base, .log.compacting and .log in that order; since the records are idempotent, replaying a
+// log that a crashed compaction already folded is harmless.
+// With packed=true the base is written as PackedStats instead of Kryo; either kind of base is read.
+//
+// Saves only capture the state on the calling thread (a copy for a new base, the encoded changes for a log record);
+// the files are written in order on a background thread, so the pipeline does not wait for the disk. A base is written
+// to <kryo>.tmp with a CRC32 trailer, forced to disk and renamed over the old one, so a crash leaves either the old or
+// the new base intact, and a corrupt base is refused on load. A packed base is mapped on demand, so its CRC is only
+// checked in full with verifyPacked; otherwise the trailer must still match the file length. Log records carry their own CRC and the lineage of the
+// base they extend: a full rewrite starts a new lineage, so records of an older base that a crash left behind are
+// skipped instead of being replayed onto the new one. The trailer also names the generation of the term dictionary the
+// ids refer to, so a compacted dictionary only takes effect together with the base renumbered for it.
+public class StatsSnapshot {
+    private static final int RECORD_MAGIC = 0x434F534C; // "COSL"
+    private static final int RECORD_HEADER_SIZE = 12;
+    private static final int TRAILER_MAGIC = 0x434F5347; // "COSG"
+    private static final int TRAILER_SIZE = 32;
+    // Trailer of bases written before dictionary generations, read as generation 0.
+    private static final int OLD_TRAILER_MAGIC = 0x434F5343; // "COSC"
+    private static final int OLD_TRAILER_SIZE = 24;
+
+    private static final byte CLASS_PUT = 1;
+    private static final byte CLASS_REMOVE = 2;
+    private static final byte PAIR_PUT = 3;
+    private static final byte PAIR_REMOVE = 4;
+    private static final byte TRIPLET_PUT = 5;
+    private static final byte TRIPLET_REMOVE = 6;
+    private static final byte COUNT_PUT = 7;
+    private static final byte COUNT_REMOVE = 8;
+
+    private final Path base;
+    private final Path log;
+    private final Path compactingLog;
+    private final boolean appendLog;
+    private final double compactionRatio;
+    private final boolean packed;
+    private final boolean verifyPacked;
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "stats-snapshot-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Fingerprints of the state as last loaded or saved; null until then.
+    private FingerprintTable classes;
+    private FingerprintTable pairs;
+    private FingerprintTable triplets;
+    private FingerprintTable counts;
+    // Fingerprints of groups a lazy load materialized since the last save, applied to the tables by the next one.
+    // Groups load on whichever thread first touches them, so they are queued rather than put into the tables.
+    private final Queue<Runnable> loadedFingerprints = new ConcurrentLinkedQueue<>();
+    // Lineage of the base that new log records extend; 0 for bases written without a trailer.
+    private long lineage;
+    // Term dictionary generation that the ids of the base and its logs refer to.
+    private long dictionaryGeneration;
+    private Future<?> lastWrite;
+    // First failed background write; later writes are skipped until a full rewrite.
+    private volatile IOException failure;
+
+    public StatsSnapshot(String basePath, boolean appendLog, double compactionRatio, boolean packed, boolean verifyPacked) {
+        this.base = Paths.get(basePath);
+        this.log = Paths.get(basePath + ".log");
+        this.compactingLog = Paths.get(basePath + ".log.compacting");
+        this.appendLog = appendLog;
+        this.compactionRatio = compactionRatio;
+        this.packed = packed;
+        this.verifyPacked = verifyPacked;
+    }
+
+    // Kryo instances are not thread-safe, so every load, save and compaction uses its own.
+    public static Kryo newKryo() {
+        Kryo kryo = new Kryo();
+        kryo.register(HashMap.class);
+        kryo.register(ConcurrentHashMap.class);
+        kryo.register(ConcurrentHashMap.KeySetView.class);
+        kryo.register(ArrayList.class);
+        kryo.register(HashSet.class);
+        kryo.register(Tuple3.class);
+        kryo.register(SupportConfidence.class);
+        kryo.setInstantiatorStrategy(new DefaultInstantiatorStrategy(new StdInstantiatorStrategy()));
+        kryo.setRegistrationRequired(true);
+        return kryo;
+    }
+
+    public boolean exists() {
+        return Files.exists(base);
+    }
+
+    // Term dictionary generation named by the base on disk, or by the last rewrite; 0 if there is no base yet.
+    public long dictionaryGeneration() throws IOException {
+        if (lastWrite == null && exists()) {
+            Trailer trailer = readTrailer(base);
+            dictionaryGeneration = trailer == null ? 0 : trailer.generation;
+        }
+        return dictionaryGeneration;
+    }
+
+    // Reads the base and replays the logs into the (empty) targets. A packed base is mapped into LazyGroupedMap
+    // targets without materializing them; each group is then fingerprinted when it is first loaded, so a save never
+    // needs the groups that were not used.
+    public void load(Map<Integer, Map<Integer, Set<Integer>>> cpot, Map<Tuple3<Integer, Integer, Integer>, SupportConfidence> sts,
+                     Map<Integer, Integer> cec) throws IOException {
+        awaitWrites();
+        // A Kryo base is read whole anyway, so checking its CRC costs one more sequential pass.
+        Trailer trailer = verifyPacked || !PackedStats.isPacked(base) ? verify(base) : readTrailer(base);
+        lineage = trailer == null ? 0 : trailer.lineage;
+        dictionaryGeneration = trailer == null ? 0 : trailer.generation;
+        if (appendLog) {
+            fingerprintOnLoad(cpot, sts);
+        }
+        boolean deferred = readBase(base, cpot, sts, cec);
+        if (appendLog && deferred) {
+            // The groups the logs touch are loaded with their base values; the replayed keys are re-fingerprinted below.
+            restartTracking(cpot, sts, cec);
+        }
+        long records = replay(compactingLog, lineage, cpot, sts, cec, false) + replay(log, lineage, cpot, sts, cec, true);
+        if (records > 0) {
+            System.out.println("Replayed " + records + " logged changes onto " + base);
+        }
+        if (!appendLog) {
+            return;
+        }
+        if (deferred) {
+            rememberLoaded(cpot, sts, cec);
+        } else {
+            remember(cpot, sts, cec);
+            restartTracking(cpot, sts, cec);
+        }
+    }
+
+    // Persists the current state in the background: as a log record of what changed since the last load or save, or
+    // as a new base if there is no log or nothing to diff against.
+    public void save(Map<Integer, Map<Integer, Set<Integer>>> cpot, Map<Tuple3<Integer, Integer, Integer>, SupportConfidence> sts,
+                     Map<Integer, Integer> cec) throws IOException {
+        IOException failed = takeFailure();
+        if (failed != null) {
+            System.err.println("A previous write of " + base + " failed (" + failed.getMessage() + "); writing a full snapshot.");
+        }
+        if (!appendLog || classes == null) {
+            rewrite(cpot, sts, cec);
+            return;
+        }
+        ByteArrayOutputStream operations = new ByteArrayOutputStream();
+        long changes = diff(cpot, sts, cec, new DataOutputStream(operations));
+        if (changes == 0) {
+            System.out.println("No statistics changed since the last save of " + base);
+            return;
+        }
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(2 * Long.BYTES + operations.size());
+        DataOutputStream header = new DataOutputStream(payload);
+        header.writeLong(lineage);
+        header.writeLong(changes);
+        operations.writeTo(payload);
+        byte[] record = payload.toByteArray();
+        submit(() -> {
+            append(record);
+            System.out.println("Appended " + changes + " changed entries (" + record.length + " bytes) to " + log);
+            compactIfNeeded();
+        });
+    }
+
+    // Writes the whole state as a new base in the background and drops the logs. The state is copied first, so the
+    // caller may go on changing it.
+    public void rewrite(Map<Integer, Map<Integer, Set<Integer>>> cpot, Map<Tuple3<Integer, Integer, Integer>, SupportConfidence> sts,
+                        Map<Integer, Integer> cec) throws IOException {
+        rewrite(cpot, sts, cec, dictionaryGeneration);
+    }
+
+    // As above, for ids that refer to the given dictionary generation, e.g. after the term ids were renumbered into a
+    // compacted dictionary. The previous generation is still the one on disk until awaitWrites() returns.
+    public void rewrite(Map<Integer, Map<Integer, Set<Integer>>> cpot, Map<Tuple3<Integer, Integer, Integer>, SupportConfidence> sts,
+                        Map<Integer, Integer> cec, long generation) throws IOException {
+        Stats copy = Stats.copyOf(cpot, sts, cec);
+        long newLineage = ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE);
+        lineage = newLineage;
+        dictionaryGeneration = generation;
+        if (appendLog) {
+            remember(copy.cpot, copy.sts, copy.cec);
+            restartTracking(cpot, sts, cec);
+        }
+        submit(() -> {
+            long start = System.nanoTime();
+            writeBase(base, packed, newLineage, generation, copy);
+            Files.deleteIfExists(log);
+            Files.deleteIfExists(compactingLog);
+            System.out.println("Wrote snapshot " + base + " in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+        });
+    }
+
+    // Blocks until all submitted writes are on disk and reports the first one that failed.
+    public void awaitWrites() throws IOException {
+        Future<?> last = lastWrite;
+        if (last != null) {
+            try {
+                last.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for " + base + " to be written", e);
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause().getMessage(), e.getCause());
+            }
+        }
+        IOException failed = takeFailure();
+        if (failed != null) {
+            throw failed;
+        }
+    }
+
+    // Clears a reported failure; the next save then rewrites the base, since the log may be missing changes.
+    private IOException takeFailure() {
+        IOException failed = failure;
+        if (failed != null) {
+            failure = null;
+            classes = null;
+        }
+        return failed;
+    }
+
+    private interface Write {
+        void run() throws IOException;
+    }
+
+    // Queues the write behind the earlier ones. After a failure, later writes would build on a state that is not on
+    // disk, so they are skipped.
+    private void submit(Write write) {
+        lastWrite = writer.submit(() -> {
+            if (failure != null) {
+                return;
+            }
+            try {
+                write.run();
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Writing " + base + " failed: " + e.getMessage());
+                failure = e instanceof IOException ? (IOException) e : new IOException(e.getMessage(), e);
+            }
+        });
+    }
+
+    // Checks the CRC trailer of a base and returns it; null for a base written without a trailer.
+    private static Trailer verify(Path path) throws IOException {
+        Trailer trailer = readTrailer(path);
+        if (trailer == null) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            CRC32 crc = new CRC32();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+            long position = 0;
+            while (position < trailer.length) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), trailer.length - position));
+                int read = channel.read(buffer, position);
+                if (read < 0) {
+                    break;
+                }
+                buffer.flip();
+                crc.update(buffer);
+                position += read;
+            }
+            if ((int) crc.getValue() != trailer.crc) {
+                throw new IOException("Checksum mismatch in " + path + "; the snapshot is corrupt");
+            }
+        }
+        return trailer;
+    }
+
+    // The trailer at the end of a base, or null if it has none.
+    private static Trailer readTrailer(Path path) throws IOException {
+        long size = Files.size(path);
+        if (size < OLD_TRAILER_SIZE) {
+            return null;
+        }
+        int tailSize = (int) Math.min(size, TRAILER_SIZE);
+        ByteBuffer tail = ByteBuffer.allocate(tailSize);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            while (tail.hasRemaining() && channel.read(tail, size - tailSize + tail.position()) >= 0) {
+            }
+        }
+        if (tailSize == TRAILER_SIZE && tail.getInt(0) == TRAILER_MAGIC && tail.getLong(8) == size - TRAILER_SIZE) {
+            return new Trailer(tail.getInt(4), tail.getLong(8), tail.getLong(16), tail.getLong(24));
+        }
+        int old = tailSize - OLD_TRAILER_SIZE;
+        if (tail.getInt(old) == OLD_TRAILER_MAGIC && tail.getLong(old + 8) == size - OLD_TRAILER_SIZE) {
+            return new Trailer(tail.getInt(old + 4), tail.getLong(old + 8), tail.getLong(old + 16), 0);
+        }
+        return null;
+    }
+
+    private static final class Trailer {
+        private final int crc;
+        private final long length;
+        private final long lineage;
+        private final long generation;
+
+        Trailer(int crc, long length, long lineage, long generation) {
+            this.crc = crc;
+            this.length = length;
+            this.lineage = lineage;
+            this.generation = generation;
+        }
+    }
+
+    // Returns true if parts of a packed base were left to be materialized on first access.
+    private static boolean readBase(Path path, Map<Integer, Map<Integer, Set<Integer>>> cpot,
+                                    Map<Tuple3<Integer, Integer, Integer>, SupportConfidence> sts, Map<Integer, Integer> cec) throws IOException {
+        if (PackedStats.isPacked(path)) {
+            return PackedStats.read(path, cpot, sts, cec);
+        }
+        Kryo kryo = newKryo();
+        try (Input input = new Input(new BufferedInputStream(Files.newInputStream(path)))) {
+            @SuppressWarnings("unchecked")
+            Map<Integer, Map<Integer, Set<Integer>>> serializedCpot = kryo.readObject(input, HashMap.class);
+            @SuppressWarnings("unchecked")
+            Map<Tuple3<Integer, Integer, Integer>, SupportConfidence> loadedSts = kryo.readObject(input, HashMap.class);
+            @SuppressWarnings("unchecked")
+            Map<Integer, Integer> loadedCec = kryo.readObject(input, HashMap.class);
+            System.out.println("Deserialized data structures: " + serializedCpot.size() + " " + loadedSts.size() + " " + loadedCec.size());
+            serializedCpot.forEach((key, value) -> {
+                Map<Integer, Set<Integer>> concurrentValue = new ConcurrentHashMap<>();
+                value.forEach((k, v) -> {
+                    Set<Integer> keySetView = ConcurrentHashMap.newKeySet();
+                    keySetView.addAll(v);
+                    concurrentValue.put(k, keySetView);
+                });
+                cpot.put(key, concurrentValue);
+            });
+            sts.putAll(loadedSts);
+            cec.putAll(loadedCec);
+        }
+        return false;
+    }
+
+    // Written to <base>.tmp with a trailer of magic, CRC32 and length of the snapshot, its lineage and its dictionary
+    // generation, forced to disk and moved over the base, so a crash leaves either the old or the new base.
+    private static void writeBase(Path path, boolean packed, long baseLineage, long generation, Stats stats) throws IOException {
+        Path tmp = Paths.get(path + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            OutputStream file = new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16);
+            CRC32 crc = new CRC32();
+            CheckedOutputStream checked = new CheckedOutputStream(file, crc);
+            if (packed) {
+                PackedStats.write(checked, stats.cpot, stats.sts, stats.cec);
+            } else {
+                Kryo kryo = newKryo();
+                Output output = new Output(checked);
+                kryo.writeObject(output, stats.cpot);
+                kryo.writeObject(output, stats.sts);
+                kryo.writeObject(output, stats.cec);
+                output.flush();
+            }
+            checked.flush();
+            DataOutputStream trailer = new DataOutputStream(file);
+            trailer.writeInt(TRAILER_MAGIC);
+            trailer.writeInt((int) crc.getValue());
+            trailer.writeLong(channel.position());
+            trailer.writeLong(baseLineage);
+            trailer.writeLong(generation);
+            trailer.flush();
+            channel.force(true);
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        forceDirectory(path);
+    }
+
+    // Makes a rename or a new file durable; not every platform can open a directory for this.
+    private static void forceDirectory(Path file) {
+        Path directory = file.toAbsolutePath().getParent();
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // The rename itself is atomic; only its durability is left to the file system.
+        }
+    }
+
+    // Applies the complete records of a log that extend the given lineage and returns how many there were. A torn or
+    // corrupt record ends the log; at the end of the active log, left by a crash during an append, it is cut off so
+    // that later appends follow the last complete record.
+    private static long replay(Path path, long baseLineage, Map<Integer, Map<Integer, Set<Integer>>> cpot,
+                               Map<Tuple3<Integer, Integer, Integer>, SupportConfidence> sts, Map<Integer, Integer> cec,
+                               boolean truncateTorn) throws IOException {
+        if (!Files.exists(path)) {
+            return 0;
+        }
+        long records = 0;
+        long stale = 0;
+        long validLength = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16))) {
+            while (true) {
+                byte[] payload = readRecord(in);
+                if (payload == null) {
+                    break;
+                }
+                validLength += RECORD_HEADER_SIZE + payload.length;
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+                if (record.readLong() != baseLineage) {
+                    stale++;
+                    continue;
+                }
+                apply(record, cpot, sts, cec);
+                records++;
+            }
+        }
+        if (stale > 0) {
+            System.err.println("Skipped " + stale + " records of " + path + " that predate the current base");
+        }
+        long length = Files.size(path);
+        if (validLength < length) {
+            System.err.println("Ignoring " + (length - validLength) + " bytes of incomplete or corrupt log records at the end of " + path);
+            if (truncateTorn) {
+                try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                    channel.truncate(validLength);
+                }
+            }
+        }
+        return records;
+    }
+
+    // Payload of the next complete record, or null at the end of the log or at a torn or corrupt record.
+    private static byte[] readRecord(DataInputStream in) throws IOException {
+        try {
+            if (in.readInt() != RECORD_MAGIC) {
+                return null;
+            }
+            int length = in.readInt();
+            int expected = in.readInt();
+            if (length < 0) {
+                return null;
+            }
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            return (int) crc.getValue() == expected ? payload : null;
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    private static void apply(DataInputStream in, Map<Integer, Map<Integer, Set<Integer>>> cpot,
+                              Map<Tuple3<Integer, Integer, Integer>, SupportConfidence> sts, Map<Integer, Integer> cec) throws IOException {
+        long operations = in.readLong();
+        for (long i = 0; i < operations; i++) {
+            byte operation = in.readByte();
+            switch (operation) {
+                case CLASS_PUT:
+                    cpot.computeIfAbsent(in.readInt(), k -> new ConcurrentHashMap<>());
+                    break;
+                case CLASS_REMOVE:
+                    cpot.remove(in.readInt());
+                    break;
+                case PAIR_PUT: {
+                    int classId = in.readInt();
+                    int predicateId = in.readInt();
+                    int size = in.readInt();
+                    Set<Integer> objectTypes = ConcurrentHashMap.newKeySet();
+                    for (int j = 0; j < size; j++) {
+                        objectTypes.add(in.readInt());
+                    }
+                    cpot.computeIfAbsent(classId, k -> new ConcurrentHashMap<>()).put(predicateId, objectTypes);
+                    break;
+                }
+                case PAIR_REMOVE: {
+                    Map<Integer, Set<Integer>> props = cpot.get(in.readInt());
+                    int predicateId = in.readInt();
+                    if (props != null) {
+                        props.remove(predicateId);
+                    }
+                    break;
+                }
+                case TRIPLET_PUT:
+                    sts.put(new Tuple3<>(in.readInt(), in.readInt(), in.readInt()), new SupportConfidence(in.readInt(), in.readDouble()));
+                    break;
+                case TRIPLET_REMOVE:
+                    sts.remove(new Tuple3<>(in.readInt(), in.readInt(), in.readInt()));
+                    break;
+                case COUNT_PUT:
+                    cec.put(in.readInt(), in.readInt());
+                    break;
+                case COUNT_REMOVE:
+                    cec.remove(in.readInt());
+                    break;
+                default:
+                    throw new IOException("Unknown log operation " + operation);
+            }
+        }
+    }
+
+    // Writes the operations that turn the remembered state into the current one, remembers the current one and
+    // returns the number of operations. Only the written keys are compared when all three maps recorded them.
+    private long diff(Map<Integer, Map<Integer, Set<Integer>>> cpot, Map<Tuple3<Integer, Integer, Integer>, SupportConfidence> sts,
+                      Map<Integer, Integer> cec, DataOutputStream ops) throws IOException {
+        Set<Integer> changedClasses = changesOf(cpot);
+        Set<Tuple3<Integer, Integer, Integer>> changedTriplets = changesOf(sts);
+        Set<Integer> changedCounts = changesOf(cec);
+        if (changedClasses == null || changedTriplets == null || changedCounts == null) {
+            return diffAll(cpot, sts, cec, ops);
+        }
+        return diffChanged(cpot, sts, cec, changedClasses, changedTriplets, changedCounts, ops);
+    }
+
+    // Keys written since the last save, or null if the map does not record them or may have changed throughout.
+    private static <K> Set<K> changesOf(Map<K, ?> map) {
+        return map instanceof LazyGroupedMap ? ((LazyGroupedMap<K, ?>) map).takeChanges() : null;
+    }
+
+    // Starts recording the keys written from here on, which the next save compares.
+    private static void restartTracking(Map<Integer, Map<Integer, Set<Integer>>> cpot, Map<Tuple3<Integer, Integer, Integer>, SupportConfidence> sts,
+                                        Map<Integer, Integer> cec) {
+        changesOf(cpot);
+        changesOf(sts);
+        changesOf(cec);
+    }
+
+    // Compares every entry and replaces the remembered fingerprints with those of the current state.
+    private long diffAll(Map<Integer, Map<Integer, Set<Integer>>> cpot, Map<Tuple3<Integer, Integer, Integer>, SupportConfidence> sts,
+                         Map<Integer, Integer> cec, DataOutputStream ops) throws IOException {
+        long[] count = {0};
+        FingerprintTable newClasses = new FingerprintTable();
+        FingerprintTable newPairs = new FingerprintTable();
+        FingerprintTable newTriplets = new FingerprintTable();
+        FingerprintTable newCounts = new FingerprintTable();
+
+        for (Map.Entry<Integer, Map<Integer, Set<Integer>>> classEntry : cpot.entrySet()) {
+            int classId = classEntry.getKey();
+            // The value is the number of pairs, so that diffChanged notices a dropped predicate.
+            newClasses.put(classId, 0, 0, classEntry.getValue().size());
+            if (classes.slot(classId, 0, 0) < 0) {
+                ops.writeByte(CLASS_PUT);
+                ops.writeInt(classId);
+                count[0]++;
+            }
+            for (Map.Entry<Integer, Set<Integer>> pair : classEntry.getValue().entrySet()) {
+                int predicateId = pair.getKey();
+                Set<Integer> objectTypes = pair.getValue();
+                long fingerprint = fingerprint(objectTypes);
+                newPairs.put(classId, predicateId, 0, fingerprint);
+                int slot = pairs.slot(classId, predicateId, 0);
+                if (slot < 0 || pairs.value(slot) != fingerprint) {
+                    writePair(ops, classId, predicateId, objectTypes);
+                    count[0]++;
+                }
+            }
+        }
+        for (Map.Entry<Tuple3<Integer, Integer, Integer>, SupportConfidence> entry : sts.entrySet()) {
+            Tuple3<Integer, Integer, Integer> triplet = entry.getKey();
+            long fingerprint = fingerprint(entry.getValue());
+            newTriplets.put(triplet._1(), triplet._2(), triplet._3(), fingerprint);
+            int slot = triplets.slot(triplet._1(), triplet._2(), triplet._3());
+            if (slot < 0 || triplets.value(slot) != fingerprint) {
+                writeTriplet(ops, triplet, entry.getValue());
+                count[0]++;
+            }
+        }
+        for (Map.Entry<Integer, Integer> entry : cec.entrySet()) {
+            int classId = entry.getKey();
+            int entities = entry.getValue();
+            newCounts.put(classId, 0, 0, entities);
+            int slot = counts.slot(classId, 0, 0);
+            if (slot < 0 || counts.value(slot) != entities) {
+                ops.writeByte(COUNT_PUT);
+                ops.writeInt(classId);
+                ops.writeInt(entities);
+                count[0]++;
+            }
+        }
+
+        // Removals; the pairs of a removed class go with it.
+        classes.forEach((classId, unused1, unused2, value) -> {
+            if (newClasses.slot(classId, 0, 0) < 0) {
+                writeRemoval(ops, CLASS_REMOVE, classId);
+                count[0]++;
+            }
+        });
+        pairs.forEach((classId, predicateId, unused, value) -> {
+            if (newClasses.slot(classId, 0, 0) >= 0 && newPairs.slot(classId, predicateId, 0) < 0) {
+                writeRemoval(ops, PAIR_REMOVE, classId, predicateId);
+                count[0]++;
+            }
+        });
+        triplets.forEach((classId, predicateId, objectTypeId, value) -> {
+            if (newTriplets.slot(classId, predicateId, objectTypeId) < 0) {
+                writeRemoval(ops, TRIPLET_REMOVE, classId, predicateId, objectTypeId);
+                count[0]++;
+            }
+        });
+        counts.forEach((classId, unused1, unused2, value) -> {
+            if (newCounts.slot(classId, 0, 0) < 0) {
+                writeRemoval(ops, COUNT_REMOVE, classId);
+                count[0]++;
+            }
+        });
+
+        classes = newClasses;
+        pairs = newPairs;
+        triplets = newTriplets;
+        counts = newCounts;
+        // Whatever was loaded so far is part of the state just fingerprinted.
+        loadedFingerprints.clear();
+        return count[0];
+    }
+
+    // Compares the written keys only and updates the remembered fingerprints in place; a key that is no longer in its
+    // map was removed.
+    private long diffChanged(Map<Integer, Map<Integer, Set<Integer>>> cpot, Map<Tuple3<Integer, Integer, Integer>, SupportConfidence> sts,
+                             Map<Integer, Integer> cec, Set<Integer> changedClasses, Set<Tuple3<Integer, Integer, Integer>> changedTriplets,
+                             Set<Integer> changedCounts, DataOutputStream ops) throws IOException {
+        // Every written key's group was loaded before the write, so its persisted fingerprint is queued by now.
+        for (Runnable fingerprint = loadedFingerprints.poll(); fingerprint != null; fingerprint = loadedFingerprints.poll()) {
+            fingerprint.run();
+        }
+        long count = 0;
+        for (int classId : changedClasses) {
+            Map<Integer, Set<Integer>> props = cpot.get(classId);
+            int slot = classes.slot(classId, 0, 0);
+            if (props == null) {
+                if (slot >= 0) {
+                    // The pairs of a removed class go with it.
+                    writeRemoval(ops, CLASS_REMOVE, classId);
+                    count++;
+                    classes.remove(classId, 0, 0);
+                    pairs.removeIf((a, b, c, value) -> a == classId);
+                }
+                continue;
+            }
+            if (slot < 0) {
+                ops.writeByte(CLASS_PUT);
+                ops.writeInt(classId);
+                count++;
+            }
+            long persistedPairs = slot < 0 ? 0 : classes.value(slot);
+            long kept = 0;
+            for (Map.Entry<Integer, Set<Integer>> pair : props.entrySet()) {
+                long fingerprint = fingerprint(pair.getValue());
+                int pairSlot = pairs.slot(classId, pair.getKey(), 0);
+                if (pairSlot >= 0) {
+                    kept++;
+                }
+                if (pairSlot < 0 || pairs.value(pairSlot) != fingerprint) {
+                    writePair(ops, classId, pair.getKey(), pair.getValue());
+                    pairs.put(classId, pair.getKey(), 0, fingerprint);
+                    count++;
+                }
+            }
+            if (kept < persistedPairs) {
+                // A predicate was dropped from the class; the updaters never do that, so finding it may scan all pairs.
+                List<Integer> dropped = new ArrayList<>();
+                pairs.forEach((a, predicateId, c, value) -> {
+                    if (a == classId && !props.containsKey(predicateId)) {
+                        dropped.add(predicateId);
+                    }
+                });
+                for (int predicateId : dropped) {
+                    writeRemoval(ops, PAIR_REMOVE, classId, predicateId);
+                    pairs.remove(classId, predicateId, 0);
+                    count++;
+                }
+            }
+            classes.put(classId, 0, 0, props.size());
+        }
+        for (Tuple3<Integer, Integer, Integer> triplet : changedTriplets) {
+            SupportConfidence sc = sts.get(triplet);
+            int slot = triplets.slot(triplet._1(), triplet._2(), triplet._3());
+            if (sc == null) {
+                if (slot >= 0) {
+                    writeRemoval(ops, TRIPLET_REMOVE, triplet._1(), triplet._2(), triplet._3());
+                    triplets.remove(triplet._1(), triplet._2(), triplet._3());
+                    count++;
+                }
+                continue;
+            }
+            long fingerprint = fingerprint(sc);
+            if (slot < 0 || triplets.value(slot) != fingerprint) {
+                writeTriplet(ops, triplet, sc);
+                triplets.put(triplet._1(), triplet._2(), triplet._3(), fingerprint);
+                count++;
+            }
+        }
+        for (int classId : changedCounts) {
+            Integer entities = cec.get(classId);
+            int slot = counts.slot(classId, 0, 0);
+            if (entities == null) {
+                if (slot >= 0) {
+                    writeRemoval(ops, COUNT_REMOVE, classId);
+                    counts.remove(classId, 0, 0);
+                    count++;
+                }
+                continue;
+            }
+            if (slot < 0 || counts.value(slot) != entities) {
+                ops.writeByte(COUNT_PUT);
+                ops.writeInt(classId);
+                ops.writeInt(entities);
+                counts.put(classId, 0, 0, entities);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static void writePair(DataOutputStream ops, int classId, int predicateId, Set<Integer> objectTypes) throws IOException {
+        ops.writeByte(PAIR_PUT);
+        ops.writeInt(classId);
+        ops.writeInt(predicateId);
+        Integer[] types = objectTypes.toArray(new Integer[0]);
+        ops.writeInt(types.length);
+        for (Integer type : types) {
+            ops.writeInt(type);
+        }
+    }
+
+    private static void writeTriplet(DataOutputStream ops, Tuple3<Integer, Integer, Integer> triplet, SupportConfidence sc) throws IOException {
+        ops.writeByte(TRIPLET_PUT);
+        ops.writeInt(triplet._1());
+        ops.writeInt(triplet._2());
+        ops.writeInt(triplet._3());
+        ops.writeInt(sc.getSupport());
+        ops.writeDouble(sc.getConfidence());
+    }
+
+    private static void writeRemoval(DataOutputStream ops, byte operation, int... ids) throws IOException {
+        ops.writeByte(operation);
+        for (int id : ids) {
+            ops.writeInt(id);
+        }
+    }
+
+    private void remember(Map<Integer, Map<Integer, Set<Integer>>> cpot, Map<Tuple3<Integer, Integer, Integer>, SupportConfidence> sts,
+                          Map<Integer, Integer> cec) throws IOException {
+        clearTables();
+        // Diffing against empty tables fills them; the operations are not needed.
+        diffAll(cpot, sts, cec, new DataOutputStream(OutputStream.nullOutputStream()));
+    }
+
+    // Fingerprints a lazy load without materializing it: the maps that were read eagerly in full, the deferred
+    // groups as they load (those the logs touched are queued already), and then the keys the replay wrote, whose
+    // queued base values the logs changed.
+    private void rememberLoaded(Map<Integer, Map<Integer, Set<Integer>>> cpot, Map<Tuple3<Integer, Integer, Integer>, SupportConfidence> sts,
+                                Map<Integer, Integer> cec) throws IOException {
+        clearTables();
+        if (!isDeferred(cpot)) {
+            cpot.forEach(this::rememberClass);
+        }
+        if (!isDeferred(sts)) {
+            sts.forEach(this::rememberTriplet);
+        }
+        if (!isDeferred(cec)) {
+            cec.forEach((classId, entities) -> counts.put(classId, 0, 0, entities));
+        }
+        diff(cpot, sts, cec, new DataOutputStream(OutputStream.nullOutputStream()));
+    }
+
+    private static boolean isDeferred(Map<?, ?> map) {
+        return map instanceof LazyGroupedMap && ((LazyGroupedMap<?, ?>) map).pendingGroups() > 0;
+    }
+
+    private void clearTables() {
+        classes = new FingerprintTable();
+        pairs = new FingerprintTable();
+        triplets = new FingerprintTable();
+        counts = new FingerprintTable();
+    }
+
+    // Has the deferred maps queue the fingerprints of every entry they load; they are taken right away, before the
+    // loading caller can change the entry.
+    @SuppressWarnings("unchecked")
+    private void fingerprintOnLoad(Map<Integer, Map<Integer, Set<Integer>>> cpot, Map<Tuple3<Integer, Integer, Integer>, SupportConfidence> sts) {
+        loadedFingerprints.clear();
+        if (cpot instanceof LazyGroupedMap) {
+            ((LazyGroupedMap<Integer, Map<Integer, Set<Integer>>>) cpot).onGroupLoad((classId, props) -> {
+                int[] predicates = new int[props.size()];
+                long[] fingerprints = new long[props.size()];
+                int i = 0;
+                for (Map.Entry<Integer, Set<Integer>> pair : props.entrySet()) {
+                    predicates[i] = pair.getKey();
+                    fingerprints[i++] = fingerprint(pair.getValue());
+                }
+                loadedFingerprints.add(() -> {
+                    classes.put(classId, 0, 0, predicates.length);
+                    for (int j = 0; j < predicates.length; j++) {
+                        pairs.put(classId, predicates[j], 0, fingerprints[j]);
+                    }
+                });
+            });
+        }
+        if (sts instanceof LazyGroupedMap) {
+            ((LazyGroupedMap<Tuple3<Integer, Integer, Integer>, SupportConfidence>) sts).onGroupLoad((triplet, sc) -> {
+                long fingerprint = fingerprint(sc);
+                loadedFingerprints.add(() -> triplets.put(triplet._1(), triplet._2(), triplet._3(), fingerprint));
+            });
+        }
+    }
+
+    private void rememberClass(int classId, Map<Integer, Set<Integer>> props) {
+        classes.put(classId, 0, 0, props.size());
+        props.forEach((predicateId, objectTypes) -> pairs.put(classId, predicateId, 0, fingerprint(objectTypes)));
+    }
+
+    private void rememberTriplet(Tuple3<Integer, Integer, Integer> triplet, SupportConfidence sc) {
+        triplets.put(triplet._1(), triplet._2(), triplet._3(), fingerprint(sc));
+    }
+
+    private void append(byte[] payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + payload.length);
+        record.putInt(RECORD_MAGIC).putInt(payload.length).putInt((int) crc.getValue()).put(payload).flip();
+        boolean created = !Files.exists(log);
+        try (FileChannel channel = FileChannel.open(log, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            while (record.hasRemaining()) {
+                channel.write(record);
+            }
+            channel.force(true);
+        }
+        if (created) {
+            forceDirectory(log);
+        }
+    }
+
+    // Runs on the writer thread after an append, once the log is large enough relative to the base.
+    private void compactIfNeeded() throws IOException {
+        if (compactionRatio <= 0 || !Files.exists(log) || Files.size(log) < compactionRatio * Files.size(base)) {
+            return;
+        }
+        // A .log.compacting left by a crashed compaction is folded first; the current log waits for the next one.
+        if (!Files.exists(compactingLog)) {
+            Files.move(log, compactingLog, StandardCopyOption.ATOMIC_MOVE);
+        }
+        compact();
+    }
+
+    // Folds .log.compacting into a new base of the same lineage. Reads only files, never the live maps.
+    private void compact() {
+        long start = System.nanoTime();
+        try {
+            Map<Integer, Map<Integer, Set<Integer>>> cpot = new ConcurrentHashMap<>();
+            Map<Tuple3<Integer, Integer, Integer>, SupportConfidence> sts = new ConcurrentHashMap<>();
+            Map<Integer, Integer> cec = new ConcurrentHashMap<>();
+            Trailer trailer = verify(base);
+            long baseLineage = trailer == null ? 0 : trailer.lineage;
+            readBase(base, cpot, sts, cec);
+            long records = replay(compactingLog, baseLineage, cpot, sts, cec, false);
+            writeBase(base, packed, baseLineage, trailer == null ? 0 : trailer.generation, Stats.copyOf(cpot, sts, cec));
+            Files.deleteIfExists(compactingLog);
+            System.out.println("Compacted " + records + " log records into " + base + " in "
+                    + (System.nanoTime() - start) / 1_000_000 + " ms");
+        } catch (IOException | RuntimeException e) {
+            // The logs stay in place and are replayed on the next load.
+            System.err.println("Compaction of " + base + " failed: " + e.getMessage());
+        }
+    }
+
+    // Order-independent fingerprint of a set of object types.
+    private static long fingerprint(Set<Integer> objectTypes) {
+        long hash = objectTypes.size();
+        for (Integer type : objectTypes) {
+            hash += mix(type);
+        }
+        return mix(hash);
+    }
+
+    private static long fingerprint(SupportConfidence sc) {
+        return mix(sc.getSupport() * 0x9E3779B97F4A7C15L ^ Double.doubleToLongBits(sc.getConfidence()));
+    }
+
+    private static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xFF51AFD7ED558CCDL;
+        value ^= value >>> 33;
+        value *= 0xC4CEB9FE1A85EC53L;
+        value ^= value >>> 33;
+        return value;
+    }
+
+    private interface EntryVisitor {
+        void entry(int a, int b, int c, long value) throws IOException;
+    }
+
+    private interface EntryFilter {
+        boolean test(int a, int b, int c, long value);
+    }
+
+    // Open-addressing map from up to three int ids to a long, for the fingerprints of the persisted state.
+    private static final class FingerprintTable {
+        private int[] keys = new int[3 * 1024];
+        private long[] values = new long[1024];
+        private boolean[] used = new boolean[1024];
+        private int size;
+
+        void put(int a, int b, int c, long value) {
+            if ((size + 1) * 2 > used.length) {
+                grow();
+            }
+            int mask = used.length - 1;
+            int slot = hash(a, b, c) & mask;
+            while (used[slot]) {
+                if (keys[3 * slot] == a && keys[3 * slot + 1] == b && keys[3 * slot + 2] == c) {
+                    values[slot] = value;
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+            used[slot] = true;
+            keys[3 * slot] = a;
+            keys[3 * slot + 1] = b;
+            keys[3 * slot + 2] = c;
+            values[slot] = value;
+            size++;
+        }
+
+        // Slot of the key, or -1.
+        int slot(int a, int b, int c) {
+            int mask = used.length - 1;
+            int slot = hash(a, b, c) & mask;
+            while (used[slot]) {
+                if (keys[3 * slot] == a && keys[3 * slot + 1] == b && keys[3 * slot + 2] == c) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        long value(int slot) {
+            return values[slot];
+        }
+
+        // Backward-shift deletion: later entries of the probe run move up into the hole, so lookups need no tombstones.
+        void remove(int a, int b, int c) {
+            int hole = slot(a, b, c);
+            if (hole < 0) {
+                return;
+            }
+            int mask = used.length - 1;
+            int next = (hole + 1) & mask;
+            while (used[next]) {
+                int home = hash(keys[3 * next], keys[3 * next + 1], keys[3 * next + 2]) & mask;
+                // The entry may move into the hole unless its home slot lies after the hole.
+                if (((next - home) & mask) >= ((next - hole) & mask)) {
+                    System.arraycopy(keys, 3 * next, keys, 3 * hole, 3);
+                    values[hole] = values[next];
+                    hole = next;
+                }
+                next = (next + 1) & mask;
+            }
+            used[hole] = false;
+            size--;
+        }
+
+        // Rebuilds the table without the matching entries.
+        void removeIf(EntryFilter filter) {
+            int[] oldKeys = keys;
+            long[] oldValues = values;
+            boolean[] oldUsed = used;
+            keys = new int[oldKeys.length];
+            values = new long[oldValues.length];
+            used = new boolean[oldUsed.length];
+            size = 0;
+            for (int slot = 0; slot < oldUsed.length; slot++) {
+                if (oldUsed[slot] && !filter.test(oldKeys[3 * slot], oldKeys[3 * slot + 1], oldKeys[3 * slot + 2], oldValues[slot])) {
+                    put(oldKeys[3 * slot], oldKeys[3 * slot + 1], oldKeys[3 * slot + 2], oldValues[slot]);
+                }
+            }
+        }
+
+        void forEach(EntryVisitor visitor) throws IOException {
+            for (int slot = 0; slot < used.length; slot++) {
+                if (used[slot]) {
+                    visitor.entry(keys[3 * slot], keys[3 * slot + 1], keys[3 * slot + 2], values[slot]);
+                }
+            }
+        }
+
+        private static int hash(int a, int b, int c) {
+            return (int) mix(((long) a * 0x9E3779B97F4A7C15L) ^ ((long) b << 32 | (c & 0xFFFFFFFFL)));
+        }
+
+        private void grow() {
+            int[] oldKeys = keys;
+            long[] oldValues = values;
+            boolean[] oldUsed = used;
+            keys = new int[oldKeys.length * 2];
+            values = new long[oldValues.length * 2];
+            used = new boolean[oldUsed.length * 2];
+            size = 0;
+            for (int slot = 0; slot < oldUsed.length; slot++) {
+                if (oldUsed[slot]) {
+                    put(oldKeys[3 * slot], oldKeys[3 * slot + 1], oldKeys[3 * slot + 2], oldValues[slot]);
+                }
+            }
+        }
+    }
+
+    // Plain copy of the statistics for a background write; SupportConfidence values are copied too, since the stages
+    // update them in place.
+    private static final class Stats {
+        private final Map<Integer, Map<Integer, Set<Integer>>> cpot = new HashMap<>();
+        private final Map<Tuple3<Integer, Integer, Integer>, SupportConfidence> sts = new HashMap<>();
+        private final Map<Integer, Integer> cec = new HashMap<>();
+
+        static Stats copyOf(Map<Integer, Map<Integer, Set<Integer>>> cpot, Map<Tuple3<Integer, Integer, Integer>, SupportConfidence> sts,
+                            Map<Integer, Integer> cec) {
+            Stats copy = new Stats();
+            cpot.forEach((classId, pairs) -> {
+                Map<Integer, Set<Integer>> pairsCopy = new HashMap<>();
+                pairs.forEach((predicateId, objectTypes) -> pairsCopy.put(predicateId, new HashSet<>(objectTypes)));
+                copy.cpot.put(classId, pairsCopy);
+            });
+            sts.forEach((triplet, sc) -> copy.sts.put(triplet, new SupportConfidence(sc.getSupport(), sc.getConfidence())));
+            copy.cec.putAll(cec);
+            return copy;
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package cs.utils;
+
+import cs.cose.encoders.JenaNodeEncoder;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.riot.system.StreamRDFBase;
+import org.apache.jena.vocabulary.RDF;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Class statistics in one pass over input whose triples are grouped by subject, as in sorted N-Triples dumps.
+// The triples of the current subject are reduced to its rdf:type set and its distinct (predicate, object type)
+// pairs; when the subject changes, every pair is attributed to every type of the entity. Support in sts and the
+// counts in cec are therefore numbers of distinct entities, and cpot is keyed by class. Untyped subjects are not
+// counted. A subject that shows up again after other subjects is counted as a new entity, so input that is not
+// grouped by subject gives inflated counts. Subjects are told apart by JenaNodeEncoder.instanceKey(), the full
+// 64-bit fingerprint with tiered_dictionary=true.
+public class SubjectGroupedAggregator {
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    private final Map<Integer, Map<Integer, Set<Integer>>> cpot;
+    private final Map<Integer, Integer> cec;
+    private final Map<Tuple3<Integer, Integer, Integer>, SupportConfidence> sts;
+    private final int maxPairs;
+
+    private long currentSubject;
+    private boolean hasSubject;
+    private int[] types = new int[4];
+    private int typeCount;
+    // Open-addressing set of (predicate << 32 | objectType) for the current subject.
+    private long[] pairs = new long[64];
+    private int pairCount;
+    private long entities;
+    private long untypedEntities;
+    private boolean overflowReported;
+
+    // maxPairs bounds the distinct (predicate, object type) pairs buffered for one typed subject. A subject that
+    // exceeds it has its pairs attributed to the types seen so far and the buffer cleared, so pairs repeated after that
+    // point are counted again for that subject. Until the first rdf:type of a subject arrives its pairs have nowhere to
+    // go, so they are kept past the bound and attributed once it does.
+    public SubjectGroupedAggregator(Map<Integer, Map<Integer, Set<Integer>>> cpot, Map<Integer, Integer> cec,
+                                    Map<Tuple3<Integer, Integer, Integer>, SupportConfidence> sts, int maxPairs) {
+        this.cpot = cpot;
+        this.cec = cec;
+        this.sts = sts;
+        this.maxPairs = maxPairs;
+        Arrays.fill(pairs, EMPTY);
+    }
+
+    public void addType(long subject, int classId) {
+        switchSubject(subject);
+        for (int i = 0; i < typeCount; i++) {
+            if (types[i] == classId) {
+                return;
+            }
+        }
+        if (typeCount == types.length) {
+            types = Arrays.copyOf(types, typeCount * 2);
+        }
+        types[typeCount++] = classId;
+        if (pairCount > maxPairs) {
+            attributeEarly();
+        }
+    }
+
+    public void addProperty(long subject, int predicate, int objectType) {
+        switchSubject(subject);
+        long pair = ((long) predicate << 32) | (objectType & 0xFFFFFFFFL);
+        if (!insertPair(pair)) {
+            return;
+        }
+        if (pairCount > maxPairs && typeCount > 0) {
+            attributeEarly();
+        }
+    }
+
+    private void attributeEarly() {
+        if (!overflowReported) {
+            System.err.println("Subject buffer exceeded " + maxPairs + " distinct property pairs; attributing early.");
+            overflowReported = true;
+        }
+        attributePairs();
+        clearPairs();
+    }
+
+    // Attributes the last subject. Must be called once the input is exhausted.
+    public void finish() {
+        if (hasSubject) {
+            endSubject();
+            hasSubject = false;
+        }
+        System.out.println("Aggregated " + entities + " typed entities (" + untypedEntities + " untyped subjects skipped).");
+    }
+
+    // Jena sink for this aggregator: subjects are encoded as entities, rdf:type objects and literal datatypes as
+    // schema terms, and every other IRI or blank node object as undefinedObjectType. Blank node subjects are skipped.
+    public StreamRDF stream(JenaNodeEncoder encoder, int undefinedObjectType) {
+        Node rdfType = RDF.type.asNode();
+        return new StreamRDFBase() {
+            @Override
+            public void triple(Triple triple) {
+                Node predicate = triple.getPredicate();
+                if (!triple.getSubject().isURI() || !predicate.isURI()) {
+                    return;
+                }
+                long subject = encoder.instanceKey(triple.getSubject());
+                Node object = triple.getObject();
+                if (rdfType.equals(predicate)) {
+                    if (object.isURI()) {
+                        addType(subject, encoder.encode(object));
+                    }
+                } else {
+                    addProperty(subject, encoder.encode(predicate), object.isLiteral() ? encoder.encode(object) : undefinedObjectType);
+                }
+            }
+
+            @Override
+            public void finish() {
+                SubjectGroupedAggregator.this.finish();
+            }
+        };
+    }
+
+    private void switchSubject(long subject) {
+        if (hasSubject && subject == currentSubject) {
+            return;
+        }
+        if (hasSubject) {
+            endSubject();
+        }
+        currentSubject = subject;
+        hasSubject = true;
+    }
+
+    private void endSubject() {
+        if (typeCount == 0) {
+            untypedEntities++;
+        } else {
+            entities++;
+            for (int i = 0; i < typeCount; i++) {
+                cec.merge(types[i], 1, Integer::sum);
+                cpot.computeIfAbsent(types[i], k -> new ConcurrentHashMap<>());
+            }
+            attributePairs();
+        }
+        typeCount = 0;
+        clearPairs();
+    }
+
+    private void attributePairs() {
+        for (long pair : pairs) {
+            if (pair == EMPTY) {
+                continue;
+            }
+            int predicate = (int) (pair >>> 32);
+            int objectType = (int) pair;
+            for (int i = 0; i < typeCount; i++) {
+                int classId = types[i];
+                cpot.computeIfAbsent(classId, k -> new ConcurrentHashMap<>())
+                        .computeIfAbsent(predicate, k -> ConcurrentHashMap.newKeySet())
+                        .add(objectType);
+                sts.computeIfAbsent(new Tuple3<>(classId, predicate, objectType), k -> new SupportConfidence()).incrementSupport();
+            }
+        }
+    }
+
+    // Returns false if the pair was already present.
+    private boolean insertPair(long pair) {
+        if ((pairCount + 1) * 2 > pairs.length) {
+            long[] old = pairs;
+            pairs = new long[old.length * 2];
+            Arrays.fill(pairs, EMPTY);
+            pairCount = 0;
+            for (long p : old) {
+                if (p != EMPTY) {
+                    insertPair(p);
+                }
+            }
+        }
+        int mask = pairs.length - 1;
+        int h = (int) (pair ^ (pair >>> 32)) * 0x9E3779B9;
+        int slot = (h ^ (h >>> 16)) & mask;
+        while (pairs[slot] != EMPTY) {
+            if (pairs[slot] == pair) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+        pairs[slot] = pair;
+        pairCount++;
+        return true;
+    }
+
+    private void clearPairs() {
+        if (pairs.length > 1024) {
+            // Do not keep refilling the table of one unusually wide subject for every subject after it.
+            pairs = new long[64];
+            Arrays.fill(pairs, EMPTY);
+            pairCount = 0;
+        } else if (pairCount > 0) {
+            Arrays.fill(pairs, EMPTY);
+            pairCount = 0;
+        }
+    }
+}
@@ -0,0 +1,368 @@
+package cs.utils;
+
+import cs.cose.encoders.TieredEncoder;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFParser;
+import org.apache.jena.riot.system.StreamRDFBase;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+// Persistent index from subject to byte ranges of an N-Triples file, kept in <graph>.subjects, so that the triples
+// of one entity can be read from the memory-mapped file without loading the graph. The index holds one entry per run
+// of consecutive lines with the same subject: the 64-bit fingerprint of the subject term as written in the file
+// (<iri> or _:label), the byte offset of the run and its length, sorted by fingerprint. A lookup reads every run of
+// the fingerprint, parses its lines and keeps only the triples of the requested subject, which also rules out hash
+// collisions. Only IRI subjects can be looked up: blank node labels are not preserved by the parser, and blank nodes
+// in the returned triples are fresh on every lookup. IRIs written with unicode escapes are not found. The subjects
+// can also be enumerated from the index, which together with the triple count in its header lets the validation and
+// sampling stages run without loading the graph.
+public class SubjectOffsetIndex implements Closeable {
+    private static final int MAGIC = 0x434F5349; // "COSI"
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 40;
+    private static final int ENTRY_SIZE = 20;
+    private static final int READ_BUFFER_SIZE = 1 << 20;
+
+    private final MappedFileBuffer source;
+    private final MappedFileBuffer entries;
+    private final long entryCount;
+
+    private SubjectOffsetIndex(MappedFileBuffer source, MappedFileBuffer entries, long entryCount) {
+        this.source = source;
+        this.entries = entries;
+        this.entryCount = entryCount;
+    }
+
+    public static Path indexPath(String graphPath) {
+        return Paths.get(graphPath + ".subjects");
+    }
+
+    // Opens the index of the file, building it first if it is missing or the file changed since it was built.
+    public static SubjectOffsetIndex openOrBuild(String graphPath) throws IOException {
+        Path source = Paths.get(graphPath);
+        Path target = indexPath(graphPath);
+        long sourceSize = Files.size(source);
+        long sourceModified = Files.getLastModifiedTime(source).toMillis();
+        long count = readHeader(target, sourceSize, sourceModified);
+        if (count < 0) {
+            count = build(source, target, sourceSize, sourceModified);
+        }
+        return new SubjectOffsetIndex(MappedFileBuffer.open(source), MappedFileBuffer.open(target, HEADER_SIZE + count * ENTRY_SIZE), count);
+    }
+
+    // Entry count of a current index, or -1 if it has to be rebuilt.
+    private static long readHeader(Path target, long sourceSize, long sourceModified) throws IOException {
+        if (!Files.exists(target) || Files.size(target) < HEADER_SIZE) {
+            return -1;
+        }
+        try (FileChannel channel = FileChannel.open(target, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+            }
+            header.flip();
+            if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+                return -1;
+            }
+            long count = header.getLong();
+            if (header.getLong() != sourceSize || header.getLong() != sourceModified
+                    || channel.size() < HEADER_SIZE + count * ENTRY_SIZE) {
+                return -1;
+            }
+            return count;
+        }
+    }
+
+    private static long build(Path source, Path target, long sourceSize, long sourceModified) throws IOException {
+        long start = System.nanoTime();
+        RunList runs = new RunList();
+        try (InputStream in = Files.newInputStream(source)) {
+            byte[] buffer = new byte[READ_BUFFER_SIZE];
+            int filled = 0;
+            long bufferOffset = 0;
+            while (true) {
+                if (filled == buffer.length) {
+                    // A single line longer than the buffer.
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+                int read = in.read(buffer, filled, buffer.length - filled);
+                if (read > 0) {
+                    filled += read;
+                }
+                int lineStart = 0;
+                int newline;
+                while ((newline = indexOf(buffer, lineStart, filled, (byte) '\n')) >= 0) {
+                    indexLine(runs, buffer, lineStart, newline + 1, bufferOffset + lineStart);
+                    lineStart = newline + 1;
+                }
+                if (read < 0) {
+                    if (lineStart < filled) {
+                        // Last line without a trailing newline.
+                        indexLine(runs, buffer, lineStart, filled, bufferOffset + lineStart);
+                    }
+                    break;
+                }
+                System.arraycopy(buffer, lineStart, buffer, 0, filled - lineStart);
+                filled -= lineStart;
+                bufferOffset += lineStart;
+            }
+        }
+        runs.sort();
+        Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(runs.size);
+            out.writeLong(sourceSize);
+            out.writeLong(sourceModified);
+            out.writeLong(runs.triples);
+            for (int i = 0; i < runs.size; i++) {
+                out.writeLong(runs.hashes[i]);
+                out.writeLong(runs.offsets[i]);
+                out.writeInt(runs.lengths[i]);
+            }
+        }
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        System.out.println("Indexed " + runs.size + " subject runs of " + source + " in "
+                + (System.nanoTime() - start) / 1_000_000 + " ms");
+        return runs.size;
+    }
+
+    // Adds the line [start, end) of the buffer, found at fileOffset, to the runs.
+    private static void indexLine(RunList runs, byte[] buffer, int start, int end, long fileOffset) {
+        int i = start;
+        while (i < end && (buffer[i] == ' ' || buffer[i] == '\t')) {
+            i++;
+        }
+        if (i >= end || buffer[i] == '#' || buffer[i] == '\n' || buffer[i] == '\r') {
+            return;
+        }
+        int termEnd = i;
+        while (termEnd < end && buffer[termEnd] != ' ' && buffer[termEnd] != '\t') {
+            termEnd++;
+        }
+        runs.add(TieredEncoder.fingerprintAscii(buffer, i, termEnd), fileOffset, end - start);
+        runs.triples++;
+    }
+
+    private static int indexOf(byte[] buffer, int from, int to, byte value) {
+        for (int i = from; i < to; i++) {
+            if (buffer[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Fingerprint of the subject IRI in its N-Triples form, as computed by indexLine.
+    private static long fingerprint(Node subject) {
+        byte[] bytes = ("<" + subject.getURI() + ">").getBytes(StandardCharsets.UTF_8);
+        return TieredEncoder.fingerprintAscii(bytes, 0, bytes.length);
+    }
+
+    // Number of runs, the unit of subjectAt and forEachSubject.
+    public long size() {
+        return entryCount;
+    }
+
+    // Number of triples in the file.
+    public long tripleCount() {
+        return entries.getLong(32);
+    }
+
+    // Triples of the file whose subject is the given IRI. Safe to call from several threads.
+    public List<Triple> triplesOf(Node subject) {
+        List<Triple> triples = new ArrayList<>();
+        if (!subject.isURI()) {
+            return triples;
+        }
+        long hash = fingerprint(subject);
+        for (long i = lowerBound(hash); i < entryCount && hashAt(i) == hash; i++) {
+            parseRun(i, triple -> {
+                if (subject.equals(triple.getSubject())) {
+                    triples.add(triple);
+                }
+            });
+        }
+        return triples;
+    }
+
+    // Subject of the given run, or null if it is a blank node. Picking runs at random samples subjects roughly in
+    // proportion to the number of runs they are split into.
+    public Node subjectAt(long run) {
+        long entry = HEADER_SIZE + run * ENTRY_SIZE;
+        long offset = entries.getLong(entry + 8);
+        int length = entries.getInt(entry + 16);
+        int lineLength = 0;
+        while (lineLength < length && source.get(offset + lineLength) != '\n') {
+            lineLength++;
+        }
+        byte[] line = new byte[lineLength];
+        source.get(offset, line, 0, lineLength);
+        Node[] subject = new Node[1];
+        RDFParser.source(new ByteArrayInputStream(line)).lang(Lang.NTRIPLES).parse(new StreamRDFBase() {
+            @Override
+            public void triple(Triple triple) {
+                subject[0] = triple.getSubject();
+            }
+        });
+        return subject[0] != null && subject[0].isURI() ? subject[0] : null;
+    }
+
+    // Calls the action once for every IRI subject with all its triples, for the subjects whose first run lies in
+    // [from, to), so that disjoint ranges can be walked concurrently and together visit every subject once.
+    public void forEachSubject(long from, long to, BiConsumer<Node, List<Triple>> action) {
+        long i = from;
+        // Runs of one fingerprint are adjacent; a group that started before the range belongs to the previous one.
+        while (i > 0 && i < entryCount && hashAt(i) == hashAt(i - 1)) {
+            i++;
+        }
+        while (i < to && i < entryCount) {
+            long hash = hashAt(i);
+            // Distinct subjects only share a group on a fingerprint collision.
+            Map<Node, List<Triple>> subjects = new LinkedHashMap<>();
+            for (; i < entryCount && hashAt(i) == hash; i++) {
+                parseRun(i, triple -> {
+                    if (triple.getSubject().isURI()) {
+                        subjects.computeIfAbsent(triple.getSubject(), subject -> new ArrayList<>()).add(triple);
+                    }
+                });
+            }
+            subjects.forEach(action);
+        }
+    }
+
+    private void parseRun(long run, Consumer<Triple> sink) {
+        long entry = HEADER_SIZE + run * ENTRY_SIZE;
+        byte[] lines = new byte[entries.getInt(entry + 16)];
+        source.get(entries.getLong(entry + 8), lines, 0, lines.length);
+        RDFParser.source(new ByteArrayInputStream(lines)).lang(Lang.NTRIPLES).parse(new StreamRDFBase() {
+            @Override
+            public void triple(Triple triple) {
+                sink.accept(triple);
+            }
+        });
+    }
+
+    private long hashAt(long i) {
+        return entries.getLong(HEADER_SIZE + i * ENTRY_SIZE);
+    }
+
+    private long lowerBound(long hash) {
+        long lo = 0;
+        long hi = entryCount;
+        while (lo < hi) {
+            long mid = (lo + hi) >>> 1;
+            if (hashAt(mid) < hash) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    @Override
+    public void close() throws IOException {
+        entries.close();
+        source.close();
+    }
+
+    // Growable parallel arrays of runs; consecutive lines with the same subject extend the last run.
+    private static final class RunList {
+        private long[] hashes = new long[1024];
+        private long[] offsets = new long[1024];
+        private int[] lengths = new int[1024];
+        private int size;
+        private long triples;
+
+        void add(long hash, long offset, int length) {
+            if (size > 0 && hashes[size - 1] == hash && offsets[size - 1] + lengths[size - 1] == offset
+                    && (long) lengths[size - 1] + length <= Integer.MAX_VALUE) {
+                lengths[size - 1] += length;
+                return;
+            }
+            if (size == hashes.length) {
+                hashes = Arrays.copyOf(hashes, size * 2);
+                offsets = Arrays.copyOf(offsets, size * 2);
+                lengths = Arrays.copyOf(lengths, size * 2);
+            }
+            hashes[size] = hash;
+            offsets[size] = offset;
+            lengths[size] = length;
+            size++;
+        }
+
+        // Sorts by fingerprint, then offset.
+        void sort() {
+            sort(0, size - 1);
+        }
+
+        private void sort(int lo, int hi) {
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                long pivotHash = hashes[mid];
+                long pivotOffset = offsets[mid];
+                int i = lo;
+                int j = hi;
+                while (i <= j) {
+                    while (compare(i, pivotHash, pivotOffset) < 0) {
+                        i++;
+                    }
+                    while (compare(j, pivotHash, pivotOffset) > 0) {
+                        j--;
+                    }
+                    if (i <= j) {
+                        swap(i++, j--);
+                    }
+                }
+                // Recurse into the smaller half to bound the stack depth.
+                if (j - lo < hi - i) {
+                    sort(lo, j);
+                    lo = i;
+                } else {
+                    sort(i, hi);
+                    hi = j;
+                }
+            }
+        }
+
+        private int compare(int i, long hash, long offset) {
+            int c = Long.compare(hashes[i], hash);
+            return c != 0 ? c : Long.compare(offsets[i], offset);
+        }
+
+        private void swap(int i, int j) {
+            long h = hashes[i];
+            hashes[i] = hashes[j];
+            hashes[j] = h;
+            long o = offsets[i];
+            offsets[i] = offsets[j];
+            offsets[j] = o;
+            int l = lengths[i];
+            lengths[i] = lengths[j];
+            lengths[j] = l;
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package cs.utils;
 
+import org.apache.jena.graph.Triple;
 import org.apache.jena.rdf.model.*;
 import org.apache.jena.vocabulary.RDF;
 import java.util.*;
@@ -9,6 +10,8 @@ public class TSSSampler {
     private final Map<Integer, Map<Integer, Set<Integer>>> cpot;
     private final double alpha;
     private final int kmin;
+    // Subject offset indexes of the graphs' source files, consulted instead of the in-memory graphs when set.
+    private final Map<Model, SubjectOffsetIndex> subjectIndexes = Collections.synchronizedMap(new IdentityHashMap<>());
 
     public TSSSampler(Map<Integer, Map<Integer, Set<Integer>>> cpot, double alpha, int kmin) {
         this.cpot = cpot;
@@ -18,8 +21,9 @@ public class TSSSampler {
 
     // Perform Type-Specific Sampling for an entity.
     public void sample(Resource entity, Model updatedGraph, Model subgraph, Set<Resource> visitedNodes) {
-        Set<Integer> classTypes = getClassTypes(entity);
-        int threshold = Math.max((int)(alpha * updatedGraph.size()), kmin);
+        SubjectOffsetIndex index = subjectIndexes.get(updatedGraph);
+        Set<Integer> classTypes = index != null ? getClassTypes(entity, index) : getClassTypes(entity);
+        int threshold = Math.max((int)(alpha * (index != null ? index.tripleCount() : updatedGraph.size())), kmin);
 
         for (Integer classType : classTypes) {
             Map<Integer, Set<Integer>> properties = cpot.get(classType);
@@ -42,8 +46,21 @@ public class TSSSampler {
         }
     }
 
+    // Reads the statements of `graph` through the index of its file from now on.
+    public void setSubjectIndex(Model graph, SubjectOffsetIndex index) {
+        subjectIndexes.put(graph, index);
+    }
+
     // Add relevant statements from the updated graph to the subgraph for the given entity.
     public void addRelevantStatements(Resource entity, Model updatedGraph, Model subgraph) {
+        SubjectOffsetIndex index = subjectIndexes.get(updatedGraph);
+        if (index != null) {
+            List<Triple> triples = index.triplesOf(entity.asNode());
+            synchronized (subgraph) {
+                triples.forEach(subgraph.getGraph()::add);
+            }
+            return;
+        }
         StmtIterator stmtIterator = updatedGraph.listStatements(entity, null, (RDFNode) null);
         List<Statement> stmts = new ArrayList<>();
         while (stmtIterator.hasNext()) {
@@ -68,6 +85,17 @@ public class TSSSampler {
         return classTypes;
     }
 
+    // Same, with the rdf:type triples read through the index of the entity's file.
+    private Set<Integer> getClassTypes(Resource entity, SubjectOffsetIndex index) {
+        Set<Integer> classTypes = new HashSet<>();
+        for (Triple triple : index.triplesOf(entity.asNode())) {
+            if (triple.getPredicate().equals(RDF.type.asNode()) && triple.getObject().isURI()) {
+                classTypes.add(cs.Main.encodeResource(ResourceFactory.createResource(triple.getObject().getURI())));
+            }
+        }
+        return classTypes;
+    }
+
     // Create a resource based on a type; uses a namespace from configuration.
     private Resource createResourceFromType(Integer type) {
         String namespace = ConfigManager.getProperty("namespace");
@@ -0,0 +1,203 @@
+package cs.utils;
+
+import cs.cose.encoders.TieredEncoder;
+import org.apache.jena.graph.Graph;
+import org.apache.jena.graph.Triple;
+import org.apache.jena.graph.impl.GraphBase;
+import org.apache.jena.query.TxnType;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.sparql.core.DatasetGraph;
+import org.apache.jena.system.Txn;
+import org.apache.jena.tdb2.DatabaseMgr;
+import org.apache.jena.tdb2.loader.DataLoader;
+import org.apache.jena.tdb2.loader.LoaderFactory;
+import org.apache.jena.tdb2.loader.base.LoaderOps;
+import org.apache.jena.util.iterator.ExtendedIterator;
+import org.apache.jena.util.iterator.NiceIterator;
+import org.apache.jena.util.iterator.WrappedIterator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Properties;
+import java.util.stream.Stream;
+
+// Keeps an N-Triples graph in an on-disk TDB2 database instead of the heap. The database is bulk loaded with the
+// parallel loader the first time a file is opened and reused by later runs for as long as the size and mtime recorded
+// in its marker file match the source. The returned Model is read-only; every find runs in a read transaction of
+// the calling thread, so the stages can use it from their worker threads without managing transactions.
+public class TdbGraphStore {
+    private static final String MARKER = "cose-source.properties";
+
+    private TdbGraphStore() {
+    }
+
+    // Database directory of a graph: <graph>.tdb2 next to the file, or a per-file directory under baseDirectory.
+    public static Path databaseDirectory(String graphPath, String baseDirectory) {
+        Path source = Paths.get(graphPath).toAbsolutePath();
+        if (baseDirectory == null || baseDirectory.isEmpty()) {
+            return Paths.get(source + ".tdb2");
+        }
+        String name = source.getFileName() + "-" + Long.toHexString(TieredEncoder.fingerprint(source.toString()));
+        return Paths.get(baseDirectory, name);
+    }
+
+    public static Model open(String graphPath, String baseDirectory) {
+        Path source = Paths.get(graphPath);
+        Path directory = databaseDirectory(graphPath, baseDirectory);
+        try {
+            long size = Files.size(source);
+            long mtime = Files.getLastModifiedTime(source).toMillis();
+            boolean current = isLoaded(directory, size, mtime);
+            if (!current && Files.exists(directory)) {
+                System.out.println("Discarding stale TDB2 database " + directory);
+                deleteRecursively(directory);
+            }
+            Files.createDirectories(directory);
+            DatasetGraph dataset = DatabaseMgr.connectDatasetGraph(directory.toString());
+            if (!current) {
+                bulkLoad(dataset, graphPath);
+                writeMarker(directory, size, mtime);
+            } else {
+                System.out.println("Reusing TDB2 database " + directory + " for " + graphPath);
+            }
+            return ModelFactory.createModelForGraph(new ReadTransactionGraph(dataset));
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to open TDB2 database for " + graphPath + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static void bulkLoad(DatasetGraph dataset, String graphPath) {
+        long start = System.nanoTime();
+        DataLoader loader = LoaderFactory.parallelLoader(dataset, LoaderOps.outputToLog());
+        loader.startBulk();
+        try {
+            loader.load(graphPath);
+            loader.finishBulk();
+        } catch (RuntimeException e) {
+            loader.finishException(e);
+            throw e;
+        }
+        System.out.println("Bulk loaded " + graphPath + " into TDB2 in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
+
+    private static boolean isLoaded(Path directory, long size, long mtime) throws IOException {
+        Path marker = directory.resolve(MARKER);
+        if (!Files.exists(marker)) {
+            return false;
+        }
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(marker)) {
+            properties.load(in);
+        }
+        return String.valueOf(size).equals(properties.getProperty("source.size"))
+                && String.valueOf(mtime).equals(properties.getProperty("source.mtime"));
+    }
+
+    // Written only after a complete load, so an interrupted load is redone on the next run.
+    private static void writeMarker(Path directory, long size, long mtime) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("source.size", String.valueOf(size));
+        properties.setProperty("source.mtime", String.valueOf(mtime));
+        try (OutputStream out = Files.newOutputStream(directory.resolve(MARKER))) {
+            properties.store(out, "Source of this TDB2 database");
+        }
+    }
+
+    private static void deleteRecursively(Path dir) {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        } catch (IOException e) {
+            System.err.println("Could not clean up " + dir + ": " + e.getMessage());
+        }
+    }
+
+    // Read-only view of the default graph. A find bound by subject or object (the per-entity lookups of validation
+    // and extraction) collects its matches inside a read transaction, so it leaves no transaction behind whether or
+    // not its iterator is exhausted and works nested inside another find's iteration. Wider scans stream: outside a
+    // transaction they begin one on the calling thread and end it when the iterator is exhausted or closed.
+    private static final class ReadTransactionGraph extends GraphBase {
+        private final DatasetGraph dataset;
+        private final Graph graph;
+        private volatile long size = -1;
+
+        ReadTransactionGraph(DatasetGraph dataset) {
+            this.dataset = dataset;
+            this.graph = dataset.getDefaultGraph();
+        }
+
+        @Override
+        protected ExtendedIterator<Triple> graphBaseFind(Triple pattern) {
+            if (pattern.getSubject().isConcrete() || pattern.getObject().isConcrete()) {
+                List<Triple> matches = Txn.calculateRead(dataset, () -> graph.find(pattern).toList());
+                return WrappedIterator.create(matches.iterator());
+            }
+            if (dataset.isInTransaction()) {
+                return graph.find(pattern);
+            }
+            dataset.begin(TxnType.READ);
+            try {
+                return new TransactionIterator(graph.find(pattern), dataset);
+            } catch (RuntimeException e) {
+                dataset.end();
+                throw e;
+            }
+        }
+
+        // The store does not change while it is open, so the size is counted once.
+        @Override
+        protected int graphBaseSize() {
+            if (size < 0) {
+                size = Txn.calculateRead(dataset, () -> (long) graph.size());
+            }
+            return (int) Math.min(size, Integer.MAX_VALUE);
+        }
+    }
+
+    private static final class TransactionIterator extends NiceIterator<Triple> {
+        private final ExtendedIterator<Triple> inner;
+        private final DatasetGraph dataset;
+        private boolean open = true;
+
+        TransactionIterator(ExtendedIterator<Triple> inner, DatasetGraph dataset) {
+            this.inner = inner;
+            this.dataset = dataset;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (!open) {
+                return false;
+            }
+            if (inner.hasNext()) {
+                return true;
+            }
+            close();
+            return false;
+        }
+
+        @Override
+        public Triple next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return inner.next();
+        }
+
+        @Override
+        public void close() {
+            if (open) {
+                open = false;
+                inner.close();
+                dataset.end();
+            }
+        }
+    }
+}
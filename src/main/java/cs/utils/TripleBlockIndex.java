@@ -0,0 +1,227 @@
+package cs.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+// Skip metadata for an EncodedTripleFile, kept in <graph>.triples.blocks. The triples are cut into blocks of
+// BLOCK_SIZE records and each block stores the range of its subject ids, a bloom filter of its subjects, a bitset of
+// its predicates (hashed into PREDICATE_BITS bits) and a bloom filter of the classes named by its rdf:type triples.
+// Dictionary ids are handed out in order of first appearance in any position, so subject ranges of different blocks
+// overlap unless the file is grouped by subject; the subject bloom is what lets a scan for a few subjects skip most
+// blocks. A block whose metadata cannot match a Filter is skipped without touching its records. All summaries can give
+// false positives, never false negatives, so callers still check the triples they are given.
+public class TripleBlockIndex {
+    public static final int BLOCK_SIZE = 1 << 16;
+    private static final int MAGIC = 0x434F5342; // "COSB"
+    private static final int VERSION = 3;
+    private static final int PREDICATE_BITS = 1024;
+    private static final int CLASS_BLOOM_BITS = 1024;
+    // 4KB per block of 1MB records; about 5% false positives at 5000 distinct subjects per block.
+    private static final int SUBJECT_BLOOM_BITS = 1 << 15;
+    private static final int PREDICATE_WORDS = PREDICATE_BITS / Long.SIZE;
+    private static final int CLASS_BLOOM_WORDS = CLASS_BLOOM_BITS / Long.SIZE;
+    private static final int SUBJECT_BLOOM_WORDS = SUBJECT_BLOOM_BITS / Long.SIZE;
+    private static final int BLOOM_HASHES = 3;
+
+    private final long tripleCount;
+    private final int blockCount;
+    private final int[] minSubject;
+    private final int[] maxSubject;
+    private final long[] subjectBloom;
+    private final long[] predicateBits;
+    private final long[] classBloom;
+
+    private TripleBlockIndex(long tripleCount) {
+        this.tripleCount = tripleCount;
+        this.blockCount = (int) ((tripleCount + BLOCK_SIZE - 1) / BLOCK_SIZE);
+        this.minSubject = new int[blockCount];
+        this.maxSubject = new int[blockCount];
+        this.subjectBloom = new long[blockCount * SUBJECT_BLOOM_WORDS];
+        this.predicateBits = new long[blockCount * PREDICATE_WORDS];
+        this.classBloom = new long[blockCount * CLASS_BLOOM_WORDS];
+        Arrays.fill(minSubject, Integer.MAX_VALUE);
+        Arrays.fill(maxSubject, Integer.MIN_VALUE);
+    }
+
+    // Which blocks a scan needs. Unset criteria match every block; set criteria must all match.
+    public static class Filter {
+        private int[] subjects;
+        private int[] predicates;
+        private int[] classes;
+
+        public static Filter any() {
+            return new Filter();
+        }
+
+        // Blocks holding at least one of these sorted subject ids.
+        public Filter withSubjects(int[] sortedSubjects) {
+            this.subjects = sortedSubjects;
+            return this;
+        }
+
+        // Blocks containing at least one of these predicates.
+        public Filter withPredicates(int... predicates) {
+            this.predicates = predicates;
+            return this;
+        }
+
+        // Blocks typing at least one subject with one of these classes.
+        public Filter withClasses(int... classes) {
+            this.classes = classes;
+            return this;
+        }
+    }
+
+    // Loads the sidecar if it belongs to a file with tripleCount triples, otherwise builds and saves it.
+    static TripleBlockIndex loadOrBuild(Path path, EncodedTripleFile triples, int rdfType) throws IOException {
+        if (Files.exists(path)) {
+            TripleBlockIndex index = read(path, triples.size());
+            if (index != null) {
+                return index;
+            }
+        }
+        TripleBlockIndex index = build(triples, rdfType);
+        index.write(path);
+        System.out.println("Built " + index.blockCount + " block summaries in " + path);
+        return index;
+    }
+
+    private static TripleBlockIndex build(EncodedTripleFile triples, int rdfType) {
+        TripleBlockIndex index = new TripleBlockIndex(triples.size());
+        for (int block = 0; block < index.blockCount; block++) {
+            int b = block;
+            long from = (long) block * BLOCK_SIZE;
+            triples.forEach(from, Math.min(triples.size(), from + BLOCK_SIZE), (s, p, o, datatype) -> {
+                index.minSubject[b] = Math.min(index.minSubject[b], s);
+                index.maxSubject[b] = Math.max(index.maxSubject[b], s);
+                for (int k = 0; k < BLOOM_HASHES; k++) {
+                    setBit(index.subjectBloom, b * SUBJECT_BLOOM_WORDS, bloomBit(s, k, SUBJECT_BLOOM_BITS));
+                }
+                setBit(index.predicateBits, b * PREDICATE_WORDS, mix(p) & (PREDICATE_BITS - 1));
+                if (p == rdfType) {
+                    for (int k = 0; k < BLOOM_HASHES; k++) {
+                        setBit(index.classBloom, b * CLASS_BLOOM_WORDS, bloomBit(o, k, CLASS_BLOOM_BITS));
+                    }
+                }
+            });
+        }
+        return index;
+    }
+
+    public int blockCount() {
+        return blockCount;
+    }
+
+    public boolean matches(int block, Filter filter) {
+        if (filter.subjects != null && !anySubject(block, filter.subjects)) {
+            return false;
+        }
+        if (filter.predicates != null && !anyPredicate(block, filter.predicates)) {
+            return false;
+        }
+        return filter.classes == null || anyBloom(classBloom, block * CLASS_BLOOM_WORDS, CLASS_BLOOM_BITS, filter.classes, 0, filter.classes.length);
+    }
+
+    // Only the subjects inside the block's id range are checked against its bloom.
+    private boolean anySubject(int block, int[] sortedSubjects) {
+        int from = Arrays.binarySearch(sortedSubjects, minSubject[block]);
+        from = from < 0 ? -from - 1 : from;
+        int to = Arrays.binarySearch(sortedSubjects, maxSubject[block]);
+        to = to < 0 ? -to - 1 : to + 1;
+        return from < to && anyBloom(subjectBloom, block * SUBJECT_BLOOM_WORDS, SUBJECT_BLOOM_BITS, sortedSubjects, from, to);
+    }
+
+    private boolean anyPredicate(int block, int[] predicates) {
+        for (int p : predicates) {
+            if (getBit(predicateBits, block * PREDICATE_WORDS, mix(p) & (PREDICATE_BITS - 1))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean anyBloom(long[] bloom, int offset, int bits, int[] ids, int from, int to) {
+        for (int i = from; i < to; i++) {
+            boolean all = true;
+            for (int k = 0; k < BLOOM_HASHES && all; k++) {
+                all = getBit(bloom, offset, bloomBit(ids[i], k, bits));
+            }
+            if (all) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void setBit(long[] words, int offset, int bit) {
+        words[offset + (bit >>> 6)] |= 1L << bit;
+    }
+
+    private static boolean getBit(long[] words, int offset, int bit) {
+        return (words[offset + (bit >>> 6)] & (1L << bit)) != 0;
+    }
+
+    private static int mix(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    // bits must be a power of two.
+    private static int bloomBit(int id, int k, int bits) {
+        return mix(id + k * 0x61C88647) & (bits - 1);
+    }
+
+    private static TripleBlockIndex read(Path path, long tripleCount) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readLong() != tripleCount || in.readInt() != BLOCK_SIZE) {
+                return null;
+            }
+            TripleBlockIndex index = new TripleBlockIndex(tripleCount);
+            for (int b = 0; b < index.blockCount; b++) {
+                index.minSubject[b] = in.readInt();
+                index.maxSubject[b] = in.readInt();
+            }
+            readWords(in, index.subjectBloom);
+            readWords(in, index.predicateBits);
+            readWords(in, index.classBloom);
+            return index;
+        }
+    }
+
+    private void write(Path path) throws IOException {
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(tripleCount);
+            out.writeInt(BLOCK_SIZE);
+            for (int b = 0; b < blockCount; b++) {
+                out.writeInt(minSubject[b]);
+                out.writeInt(maxSubject[b]);
+            }
+            writeWords(out, subjectBloom);
+            writeWords(out, predicateBits);
+            writeWords(out, classBloom);
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void readWords(DataInputStream in, long[] words) throws IOException {
+        for (int i = 0; i < words.length; i++) {
+            words[i] = in.readLong();
+        }
+    }
+
+    private static void writeWords(DataOutputStream out, long[] words) throws IOException {
+        for (long word : words) {
+            out.writeLong(word);
+        }
+    }
+}
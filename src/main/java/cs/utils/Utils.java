@@ -10,6 +10,8 @@ import java.io.*;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -233,10 +235,28 @@ public class Utils {
 
 
     public static String extractNamespaceFromGraph(String graphFilePath) {
-        try {
-            Model model = RDFDataMgr.loadModel(graphFilePath);
-            StmtIterator stmtIter = model.listStatements();
+        // For part files, the namespace that the most triples are profiled under; a part that cannot be profiled is
+        // left out rather than discarding the others.
+        Map<String, Long> namespaces = new HashMap<>();
+        for (String file : GraphFiles.resolve(graphFilePath)) {
+            try {
+                DatasetProfiler.Profile profile = DatasetProfiler.profile(file);
+                namespaces.merge(profile.getNamespace(), profile.getTripleCount(), Long::sum);
+            } catch (RuntimeException e) {
+                System.err.println("Could not profile " + file + " for its namespace: " + e.getMessage());
+            }
+        }
+        if (namespaces.isEmpty()) {
+            System.err.println("No namespace found for " + graphFilePath + "; using http://example.org/");
+            return "http://example.org/";
+        }
+        return Collections.max(namespaces.entrySet(), Map.Entry.comparingByValue()).getKey();
+    }
 
+    // Same as extractNamespaceFromGraph for a graph that is already loaded.
+    public static String extractNamespaceFromModel(Model model) {
+        StmtIterator stmtIter = model.listStatements();
+        try {
             while (stmtIter.hasNext()) {
                 Statement stmt = stmtIter.nextStatement();
                 String subjectNamespace = getNamespace(stmt.getSubject().toString());
@@ -248,14 +268,13 @@ public class Utils {
                     return predicateNamespace;
                 }
             }
-        } catch (Exception e) {
-            e.printStackTrace();
+        } finally {
+            stmtIter.close();
         }
-
         return "http://example.org/";
     }
 
-    private static String getNamespace(String iri) {
+    public static String getNamespace(String iri) {
         int lastSlashIndex = iri.lastIndexOf('/');
         int lastHashIndex = iri.lastIndexOf('#');
         int index = Math.max(lastSlashIndex, lastHashIndex);
@@ -0,0 +1,134 @@
+package cs.utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LazyGroupedMapTest {
+    private static final int GROUPS = 200;
+    private static final int ROWS = 50;
+
+    @Test
+    public void concurrentAccessLoadsEachGroupOnce() throws Exception {
+        LazyGroupedMap<Tuple3<Integer, Integer, Integer>, Integer> map = LazyGroupedMap.byFirstComponent();
+        AtomicIntegerArray loads = new AtomicIntegerArray(GROUPS);
+        Map<Tuple3<Integer, Integer, Integer>, Integer> listened = new ConcurrentHashMap<>();
+        AtomicInteger listenedTwice = new AtomicInteger();
+        map.onGroupLoad((key, value) -> {
+            if (listened.put(key, value) != null) {
+                listenedTwice.incrementAndGet();
+            }
+        });
+        map.defer(groups(), (group, sink) -> {
+            loads.incrementAndGet(group);
+            for (int row = 0; row < ROWS; row++) {
+                sink.accept(new Tuple3<>(group, row, 0), group * ROWS + row);
+            }
+        });
+
+        int threads = 16;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    for (int i = 0; i < 5000; i++) {
+                        int group = random.nextInt(GROUPS);
+                        int row = random.nextInt(ROWS);
+                        Integer value = map.get(new Tuple3<>(group, row, 0));
+                        if (value == null || value != group * ROWS + row) {
+                            throw new AssertionError("group " + group + " row " + row + " read " + value);
+                        }
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(GROUPS * ROWS, map.size());
+        assertEquals(0, map.pendingGroups());
+        for (int group = 0; group < GROUPS; group++) {
+            assertEquals("loads of group " + group, 1, loads.get(group));
+        }
+        assertEquals(GROUPS * ROWS, listened.size());
+        assertEquals(0, listenedTwice.get());
+    }
+
+    @Test
+    public void writesToAPendingGroupKeepItsOtherEntries() throws Exception {
+        LazyGroupedMap<Integer, Set<Integer>> map = LazyGroupedMap.byKey();
+        map.defer(groups(), (group, sink) -> {
+            Set<Integer> values = ConcurrentHashMap.newKeySet();
+            values.add(-1);
+            sink.accept(group, values);
+        });
+        int threads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int thread = t;
+                futures.add(executor.submit(() -> {
+                    for (int group = 0; group < GROUPS; group++) {
+                        map.computeIfAbsent(group, k -> ConcurrentHashMap.newKeySet()).add(thread);
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        for (int group = 0; group < GROUPS; group++) {
+            assertEquals(threads + 1, map.get(group).size());
+        }
+    }
+
+    @Test
+    public void takeChangesReportsWrittenKeysOnly() {
+        LazyGroupedMap<Integer, Integer> map = LazyGroupedMap.byKey();
+        map.put(1, 1);
+        assertNull("nothing recorded before the first call", map.takeChanges());
+        map.put(2, 2);
+        map.merge(3, 1, Integer::sum);
+        map.get(1);
+        map.remove(4);
+        assertEquals(Set.of(2, 3, 4), map.takeChanges());
+        assertTrue(map.takeChanges().isEmpty());
+        map.replaceAll((key, value) -> value + 1);
+        assertNull("replaceAll may change every entry", map.takeChanges());
+    }
+
+    private static int[] groups() {
+        int[] groups = new int[GROUPS];
+        for (int group = 0; group < GROUPS; group++) {
+            groups[group] = group;
+        }
+        return groups;
+    }
+}
@@ -0,0 +1,269 @@
+package cs.utils;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StatsSnapshotTest {
+
+    // The live statistics, as Main keeps them.
+    private final Map<Integer, Map<Integer, Set<Integer>>> cpot = LazyGroupedMap.byKey();
+    private final Map<Tuple3<Integer, Integer, Integer>, SupportConfidence> sts = LazyGroupedMap.byFirstComponent();
+    private final Map<Integer, Integer> cec = LazyGroupedMap.byKey();
+
+    @Test
+    public void savesOnlyTheWrittenEntries() throws IOException {
+        Path base = newBase();
+        StatsSnapshot snapshot = new StatsSnapshot(base.toString(), true, 0, false, false);
+        for (int classId = 0; classId < 1000; classId++) {
+            count(classId, 10);
+            pair(classId, 1, 100);
+            triplet(classId, 1, 100, 5);
+        }
+        snapshot.rewrite(cpot, sts, cec);
+        snapshot.awaitWrites();
+
+        pair(7, 2, 200);
+        triplet(7, 2, 200, 1);
+        count(7, 11);
+        cec.remove(8);
+        sts.remove(new Tuple3<>(9, 1, 100));
+        snapshot.save(cpot, sts, cec);
+        snapshot.awaitWrites();
+
+        long logSize = Files.size(log(base));
+        assertTrue("log record of " + logSize + " bytes for five changes", logSize < 200);
+        assertLoads(base);
+    }
+
+    @Test
+    public void droppedPredicateAndClassAreLogged() throws IOException {
+        Path base = newBase();
+        StatsSnapshot snapshot = new StatsSnapshot(base.toString(), true, 0, false, false);
+        pair(1, 1, 10);
+        pair(1, 2, 20);
+        pair(2, 1, 10);
+        snapshot.rewrite(cpot, sts, cec);
+        snapshot.awaitWrites();
+
+        cpot.computeIfAbsent(1, k -> new ConcurrentHashMap<>()).remove(2);
+        cpot.remove(2);
+        snapshot.save(cpot, sts, cec);
+        snapshot.awaitWrites();
+
+        assertLoads(base);
+    }
+
+    @Test
+    public void tornRecordIsCutOffOnLoad() throws IOException {
+        Path base = newBase();
+        StatsSnapshot snapshot = new StatsSnapshot(base.toString(), true, 0, false, false);
+        count(1, 1);
+        snapshot.rewrite(cpot, sts, cec);
+        count(2, 2);
+        snapshot.save(cpot, sts, cec);
+        snapshot.awaitWrites();
+        Map<Integer, Integer> persisted = new HashMap<>(cec);
+        long complete = Files.size(log(base));
+        count(3, 3);
+        snapshot.save(cpot, sts, cec);
+        snapshot.awaitWrites();
+
+        // A crash halfway through the append leaves part of the last record.
+        try (RandomAccessFile file = new RandomAccessFile(log(base).toFile(), "rw")) {
+            file.setLength(complete + (file.length() - complete) / 2);
+        }
+        Map<Integer, Integer> loaded = LazyGroupedMap.byKey();
+        new StatsSnapshot(base.toString(), true, 0, false, false).load(LazyGroupedMap.byKey(), LazyGroupedMap.byFirstComponent(), loaded);
+        assertEquals(persisted, new HashMap<>(loaded));
+        assertEquals(complete, Files.size(log(base)));
+    }
+
+    @Test
+    public void corruptRecordEndsReplay() throws IOException {
+        Path base = newBase();
+        StatsSnapshot snapshot = new StatsSnapshot(base.toString(), true, 0, false, false);
+        count(1, 1);
+        snapshot.rewrite(cpot, sts, cec);
+        count(2, 2);
+        snapshot.save(cpot, sts, cec);
+        snapshot.awaitWrites();
+        Map<Integer, Integer> persisted = new HashMap<>(cec);
+        count(3, 3);
+        snapshot.save(cpot, sts, cec);
+        snapshot.awaitWrites();
+
+        // Flipping a byte of the last record's payload breaks its CRC.
+        try (RandomAccessFile file = new RandomAccessFile(log(base).toFile(), "rw")) {
+            file.seek(file.length() - 1);
+            int last = file.read();
+            file.seek(file.length() - 1);
+            file.write(last ^ 0xFF);
+        }
+        Map<Integer, Integer> loaded = LazyGroupedMap.byKey();
+        new StatsSnapshot(base.toString(), true, 0, false, false).load(LazyGroupedMap.byKey(), LazyGroupedMap.byFirstComponent(), loaded);
+        assertEquals(persisted, new HashMap<>(loaded));
+    }
+
+    @Test
+    public void crashMidCompactionReplaysBothLogs() throws IOException {
+        Path base = newBase();
+        StatsSnapshot snapshot = new StatsSnapshot(base.toString(), true, 0, false, false);
+        count(1, 1);
+        snapshot.rewrite(cpot, sts, cec);
+        count(2, 2);
+        triplet(2, 1, 1, 4);
+        snapshot.save(cpot, sts, cec);
+        snapshot.awaitWrites();
+        // Compaction renamed the log and crashed before writing the new base; later saves started a new log.
+        Files.move(log(base), compacting(base));
+        count(3, 3);
+        triplet(2, 1, 1, 5);
+        snapshot.save(cpot, sts, cec);
+        snapshot.awaitWrites();
+
+        assertTrue(Files.exists(compacting(base)));
+        assertLoads(base);
+    }
+
+    @Test
+    public void recordsOfAnOlderBaseAreSkipped() throws IOException {
+        Path base = newBase();
+        StatsSnapshot snapshot = new StatsSnapshot(base.toString(), true, 0, false, false);
+        count(1, 1);
+        snapshot.rewrite(cpot, sts, cec);
+        count(2, 2);
+        snapshot.save(cpot, sts, cec);
+        snapshot.awaitWrites();
+        Path stale = Paths.get(base + ".stale");
+        Files.copy(log(base), stale);
+
+        // A full rewrite starts a new lineage; a crash left the old log behind as .log.compacting.
+        cec.remove(2);
+        count(4, 4);
+        snapshot.rewrite(cpot, sts, cec);
+        snapshot.awaitWrites();
+        Files.move(stale, compacting(base), StandardCopyOption.REPLACE_EXISTING);
+
+        assertLoads(base);
+    }
+
+    @Test
+    public void packedBaseSavesAfterLoad() throws IOException {
+        Path base = newBase();
+        StatsSnapshot snapshot = new StatsSnapshot(base.toString(), true, 0, true, false);
+        for (int classId = 0; classId < 50; classId++) {
+            count(classId, classId);
+            pair(classId, 1, 100);
+            triplet(classId, 1, 100, 3);
+        }
+        snapshot.rewrite(cpot, sts, cec);
+        snapshot.awaitWrites();
+
+        Map<Integer, Map<Integer, Set<Integer>>> loadedCpot = LazyGroupedMap.byKey();
+        Map<Tuple3<Integer, Integer, Integer>, SupportConfidence> loadedSts = LazyGroupedMap.byFirstComponent();
+        Map<Integer, Integer> loadedCec = LazyGroupedMap.byKey();
+        StatsSnapshot reopened = new StatsSnapshot(base.toString(), true, 0, true, false);
+        reopened.load(loadedCpot, loadedSts, loadedCec);
+        loadedSts.computeIfAbsent(new Tuple3<>(3, 1, 100), k -> new SupportConfidence()).incrementSupport();
+        loadedCpot.computeIfAbsent(3, k -> new ConcurrentHashMap<>()).computeIfAbsent(2, k -> ConcurrentHashMap.newKeySet()).add(7);
+        reopened.save(loadedCpot, loadedSts, loadedCec);
+        reopened.awaitWrites();
+        assertTrue("only the changed class was materialized", ((LazyGroupedMap<?, ?>) loadedSts).pendingGroups() > 0);
+
+        sts.computeIfAbsent(new Tuple3<>(3, 1, 100), k -> new SupportConfidence()).incrementSupport();
+        pair(3, 2, 7);
+        assertLoads(base);
+    }
+
+    @Test
+    public void lazyLoadCountsReplayedValuesAsPersisted() throws IOException {
+        Path base = newBase();
+        StatsSnapshot snapshot = new StatsSnapshot(base.toString(), true, 0, true, false);
+        for (int classId = 0; classId < 20; classId++) {
+            triplet(classId, 1, 100, 3);
+        }
+        snapshot.rewrite(cpot, sts, cec);
+        triplet(3, 1, 100, 4);
+        sts.remove(new Tuple3<>(5, 1, 100));
+        snapshot.save(cpot, sts, cec);
+        snapshot.awaitWrites();
+
+        // Back to the base values: against the replayed state these are changes again.
+        Map<Integer, Map<Integer, Set<Integer>>> loadedCpot = LazyGroupedMap.byKey();
+        Map<Tuple3<Integer, Integer, Integer>, SupportConfidence> loadedSts = LazyGroupedMap.byFirstComponent();
+        Map<Integer, Integer> loadedCec = LazyGroupedMap.byKey();
+        StatsSnapshot reopened = new StatsSnapshot(base.toString(), true, 0, true, false);
+        reopened.load(loadedCpot, loadedSts, loadedCec);
+        loadedSts.put(new Tuple3<>(3, 1, 100), new SupportConfidence(3, 0.3));
+        loadedSts.put(new Tuple3<>(5, 1, 100), new SupportConfidence(3, 0.3));
+        reopened.save(loadedCpot, loadedSts, loadedCec);
+        reopened.awaitWrites();
+
+        triplet(3, 1, 100, 3);
+        triplet(5, 1, 100, 3);
+        assertLoads(base);
+    }
+
+    private void count(int classId, int entities) {
+        cec.put(classId, entities);
+    }
+
+    private void pair(int classId, int predicateId, int objectType) {
+        cpot.computeIfAbsent(classId, k -> new ConcurrentHashMap<>())
+                .computeIfAbsent(predicateId, k -> ConcurrentHashMap.newKeySet())
+                .add(objectType);
+    }
+
+    private void triplet(int classId, int predicateId, int objectType, int support) {
+        sts.put(new Tuple3<>(classId, predicateId, objectType), new SupportConfidence(support, support / 10.0));
+    }
+
+    // Loads the snapshot into fresh maps and compares them with the live ones.
+    private void assertLoads(Path base) throws IOException {
+        Map<Integer, Map<Integer, Set<Integer>>> loadedCpot = LazyGroupedMap.byKey();
+        Map<Tuple3<Integer, Integer, Integer>, SupportConfidence> loadedSts = LazyGroupedMap.byFirstComponent();
+        Map<Integer, Integer> loadedCec = LazyGroupedMap.byKey();
+        new StatsSnapshot(base.toString(), true, 0, PackedStats.isPacked(base), false).load(loadedCpot, loadedSts, loadedCec);
+        assertEquals(plain(cpot), plain(loadedCpot));
+        assertEquals(new HashMap<>(sts), new HashMap<>(loadedSts));
+        assertEquals(new HashMap<>(cec), new HashMap<>(loadedCec));
+    }
+
+    private static Map<Integer, Map<Integer, Set<Integer>>> plain(Map<Integer, Map<Integer, Set<Integer>>> cpot) {
+        Map<Integer, Map<Integer, Set<Integer>>> copy = new HashMap<>();
+        cpot.forEach((classId, pairs) -> {
+            Map<Integer, Set<Integer>> pairsCopy = new HashMap<>();
+            pairs.forEach((predicateId, objectTypes) -> pairsCopy.put(predicateId, new HashSet<>(objectTypes)));
+            copy.put(classId, pairsCopy);
+        });
+        return copy;
+    }
+
+    private static Path newBase() throws IOException {
+        Path directory = Files.createTempDirectory("stats-snapshot");
+        directory.toFile().deleteOnExit();
+        return directory.resolve("stats.kryo");
+    }
+
+    private static Path log(Path base) {
+        return Paths.get(base + ".log");
+    }
+
+    private static Path compacting(Path base) {
+        return Paths.get(base + ".log.compacting");
+    }
+}